@@ -0,0 +1,31 @@
+// Pass 4, run several times: a weak candidate next to a strong edge becomes
+// strong. Each run grows edges by one pixel, so a few runs approximate the
+// full connectivity walk of cv::Canny. The final run (uFinal = 1) drops the
+// remaining weak candidates and writes the binary mask.
+// highp so neighbour taps land on the right texel at any frame width
+precision highp float;
+varying vec2 vTexCoord;
+uniform sampler2D sState;
+uniform vec2 uTexel;
+uniform float uFinal;
+
+float stateAt(float dx, float dy) {
+    return texture2D(sState, vTexCoord + vec2(dx, dy) * uTexel).r;
+}
+
+void main() {
+    float state = stateAt(0.0, 0.0);
+    if (state > 0.25 && state < 0.75) {
+        float strongest = max(max(max(stateAt(-1.0, -1.0), stateAt(0.0, -1.0)),
+                                  max(stateAt(1.0, -1.0), stateAt(-1.0, 0.0))),
+                              max(max(stateAt(1.0, 0.0), stateAt(-1.0, 1.0)),
+                                  max(stateAt(0.0, 1.0), stateAt(1.0, 1.0))));
+        if (strongest > 0.75) {
+            state = 1.0;
+        }
+    }
+    if (uFinal > 0.5) {
+        state = state > 0.75 ? 1.0 : 0.0;
+    }
+    gl_FragColor = vec4(state, state, state, 1.0);
+}
@@ -0,0 +1,11 @@
+#extension GL_OES_EGL_image_external : require
+// Pass 1: camera frame to 8-bit luma (BT.601 weights), sampled without the
+// SurfaceTexture transform so the result matches the ImageReader layout.
+precision mediump float;
+varying vec2 vTexCoord;
+uniform samplerExternalOES sCamera;
+
+void main() {
+    float y = dot(texture2D(sCamera, vTexCoord).rgb, vec3(0.299, 0.587, 0.114));
+    gl_FragColor = vec4(y, y, y, 1.0);
+}
@@ -0,0 +1,40 @@
+// Pass 3: non-maximum suppression and double threshold. Neighbours outside the
+// frame count as zero magnitude, like the padded buffer in cv::Canny. Output
+// in R: 1.0 strong edge, 0.5 weak candidate, 0.0 none.
+// Needs highp, like the Sobel pass.
+precision highp float;
+varying vec2 vTexCoord;
+uniform sampler2D sGradient;
+uniform vec2 uTexel;
+uniform vec2 uSize;
+uniform float uLowThreshold;
+uniform float uHighThreshold;
+
+float magnitudeAt(vec2 offset) {
+    vec2 pixel = gl_FragCoord.xy + offset;
+    if (pixel.x < 0.0 || pixel.y < 0.0 || pixel.x > uSize.x || pixel.y > uSize.y) {
+        return 0.0;
+    }
+    vec4 g = texture2D(sGradient, vTexCoord + offset * uTexel);
+    return floor(g.r * 255.0 + 0.5) * 256.0 + floor(g.g * 255.0 + 0.5);
+}
+
+void main() {
+    vec4 g = texture2D(sGradient, vTexCoord);
+    float m = floor(g.r * 255.0 + 0.5) * 256.0 + floor(g.g * 255.0 + 0.5);
+    float sector = floor(g.b * 255.0 + 0.5);
+    bool maximum = false;
+    if (m > uLowThreshold) {
+        // Row -1 is the previous row in buffer order
+        if (sector < 0.5) {
+            maximum = m > magnitudeAt(vec2(-1.0, 0.0)) && m >= magnitudeAt(vec2(1.0, 0.0));
+        } else if (sector < 1.5) {
+            maximum = m > magnitudeAt(vec2(0.0, -1.0)) && m >= magnitudeAt(vec2(0.0, 1.0));
+        } else {
+            float s = sector < 2.5 ? -1.0 : 1.0;
+            maximum = m > magnitudeAt(vec2(-s, -1.0)) && m > magnitudeAt(vec2(s, 1.0));
+        }
+    }
+    float state = maximum ? (m > uHighThreshold ? 1.0 : 0.5) : 0.0;
+    gl_FragColor = vec4(state, state, state, 1.0);
+}
@@ -0,0 +1,11 @@
+// Full-screen quad for the edge passes. Texture coordinates are unflipped, so
+// output pixel (x, y) lines up with input texel (x, y) and every intermediate
+// texture keeps the camera buffer's row order.
+attribute vec4 aPosition;
+attribute vec2 aTexCoord;
+varying vec2 vTexCoord;
+
+void main() {
+    gl_Position = aPosition;
+    vTexCoord = aTexCoord;
+}
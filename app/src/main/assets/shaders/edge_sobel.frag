@@ -0,0 +1,46 @@
+// Pass 2: 3x3 Sobel on 0-255 luma with replicated borders (CLAMP_TO_EDGE),
+// L1 magnitude as in cv::Canny. The magnitude (0-2040) does not fit one 8-bit
+// channel, so it is split into high and low bytes in R and G. B holds the
+// gradient sector used by non-maximum suppression:
+//   0 horizontal, 1 vertical, 2 diagonal with opposite signs, 3 same signs.
+// Needs highp: GpuEdgeDetector refuses to run without it (see its comment).
+precision highp float;
+varying vec2 vTexCoord;
+uniform sampler2D sLuma;
+uniform vec2 uTexel;
+
+float luma(vec2 offset) {
+    return floor(texture2D(sLuma, vTexCoord + offset * uTexel).r * 255.0 + 0.5);
+}
+
+void main() {
+    float a00 = luma(vec2(-1.0, -1.0));
+    float a01 = luma(vec2( 0.0, -1.0));
+    float a02 = luma(vec2( 1.0, -1.0));
+    float a10 = luma(vec2(-1.0,  0.0));
+    float a12 = luma(vec2( 1.0,  0.0));
+    float a20 = luma(vec2(-1.0,  1.0));
+    float a21 = luma(vec2( 0.0,  1.0));
+    float a22 = luma(vec2( 1.0,  1.0));
+    float gx = (a02 + 2.0 * a12 + a22) - (a00 + 2.0 * a10 + a20);
+    float gy = (a20 + 2.0 * a21 + a22) - (a00 + 2.0 * a01 + a02);
+    float ax = abs(gx);
+    float ay = abs(gy);
+    float magnitude = ax + ay;
+
+    // Same Q15 tangent tests as cv::Canny (tan 22.5 = 13573 / 32768), divided
+    // through by 32768 so no operand leaves the 0-2040 range of the gradient.
+    // TG22 has 14 significant bits and ax at most 10, so every product is
+    // exact in a 24-bit float mantissa and matches the integer test.
+    const float TG22 = 0.414215087890625;
+    float sector;
+    if (ay < ax * TG22) {
+        sector = 0.0;
+    } else if (ay - 2.0 * ax > ax * TG22) {
+        sector = 1.0;
+    } else {
+        sector = gx * gy < 0.0 ? 2.0 : 3.0;
+    }
+    float high = floor(magnitude / 256.0);
+    gl_FragColor = vec4(high / 255.0, (magnitude - high * 256.0) / 255.0, sector / 255.0, 1.0);
+}
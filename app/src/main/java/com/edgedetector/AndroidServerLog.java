@@ -0,0 +1,23 @@
+package com.edgedetector;
+
+import android.util.Log;
+
+// Sends the server module's log lines to logcat
+final class AndroidServerLog implements ServerLog.Sink {
+    private static boolean installed;
+
+    private AndroidServerLog() {
+    }
+
+    static synchronized void install() {
+        if (!installed) {
+            ServerLog.setSink(new AndroidServerLog());
+            installed = true;
+        }
+    }
+
+    @Override
+    public void log(int priority, String tag, String message, Throwable error) {
+        Log.println(priority, tag, error != null ? message + '\n' + Log.getStackTraceString(error) : message);
+    }
+}
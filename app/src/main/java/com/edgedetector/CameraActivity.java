@@ -3,14 +3,16 @@ package com.edgedetector;
 import android.Manifest;
 import android.app.Activity;
 import android.content.pm.PackageManager;
-import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.*;
-import android.media.Image;
-import android.media.ImageReader;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Range;
 import android.util.Size;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
@@ -19,21 +21,47 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import com.edgedetector.capture.Camera2FrameSource;
+import com.edgedetector.capture.FrameSource;
+import com.edgedetector.capture.RecordingFrameSource;
+import com.edgedetector.capture.ReplayFrameSource;
+import com.edgedetector.capture.YuvRecorder;
 import com.edgedetector.gl.GLRenderer;
+import com.edgedetector.gl.GpuEdgeDetector;
+import com.edgedetector.metrics.Counter;
+import com.edgedetector.metrics.Histogram;
+import com.edgedetector.metrics.MetricsHttpServer;
+import com.edgedetector.metrics.MetricsRegistry;
+import com.edgedetector.protocol.FrameMessage;
+import com.edgedetector.protocol.RegionLayout;
+import com.edgedetector.protocol.StreamProfile;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 public class CameraActivity extends Activity {
     private TextureView textureView;
+    // Camera preview texture owned by the renderer in composite mode
+    private volatile SurfaceTexture cameraTexture;
     private GLSurfaceView glSurfaceView;
     private GLRenderer glRenderer;
     private CameraDevice cameraDevice;
     private CameraCaptureSession captureSession;
     private CaptureRequest.Builder previewRequestBuilder;
     private Size previewSize;
-    private ImageReader imageReader;
+    // Feeds frameProcessor: the camera's ImageReader (replaced whenever the
+    // session is rebuilt), or a replayed recording instead of the camera
+    private FrameSource frameSource;
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private FrameProcessor<CameraFrame> frameProcessor;
+    private ResolutionGovernor governor;
     private static final int REQUEST_CAMERA_PERMISSION = 200;
     private EdgeDetectorWebSocketServer webSocketServer;
     private static final int WEBSOCKET_PORT = 8765;
+    private static final int METRICS_PORT = 8766;
     
     // UI Elements
     private TextView fpsValue;
@@ -41,23 +69,227 @@ public class CameraActivity extends Activity {
     private TextView connectionCount;
     private TextView serverIp;
     private TextView processingStatus;
+    private TextView latencyValue;
     private View recordingIndicator;
     
-    // Stats tracking
-    private int totalFrames = 0;
-    private long startTime = System.currentTimeMillis();
+    // Stats tracking. The registry feeds both the on-screen stats and the
+    // Prometheus text endpoint on METRICS_PORT.
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsHttpServer metricsServer;
+    private final Counter framesProcessed = metrics.counter("edge_frames_processed_total",
+            "Frames that went through edge detection");
+    private final Counter framesUnchanged = metrics.counter("edge_frames_unchanged_total",
+            "Frames skipped by the motion gate");
+    private final Counter framesFailed = metrics.counter("edge_frames_failed_total",
+            "Frames the native pipeline rejected");
+    private final Histogram frameLatency = stageLatency("frame");
+    private final Histogram processLatency = stageLatency("process");
+    private final Histogram encodeLatency = stageLatency("encode");
+    private final Histogram broadcastLatency = stageLatency("broadcast");
+    private final Histogram.Window frameLatencyWindow = frameLatency.newWindow();
+    // Written by the processing thread, read by updateStats on others
+    private volatile int totalFrames = 0;
+    private long lastStatsFrames;
+    private long lastStatsTime = System.nanoTime();
+    
+    // Local display path: RAW uploads the edge mask straight into a luminance
+    // texture; PNG keeps the encode/decode round trip for comparison. Only the
+    // network path always pays for compression.
+    private static final int DISPLAY_MODE_RAW = 0;
+    private static final int DISPLAY_MODE_PNG = 1;
+    private int displayMode = DISPLAY_MODE_RAW;
+    
+    // Composite display draws the camera preview and the edge overlay in one
+    // GL pass on the GLSurfaceView and drops the TextureView layer. Otherwise
+    // the TextureView shows the preview and the GL view is stacked on top.
+    private boolean compositeDisplay = true;
+    private int overlayBlend = GLRenderer.BLEND_NORMAL;
+    private int overlayTint = android.graphics.Color.GREEN;
+    private float overlayOpacity = 0.8f;
+    
+    // Where the edge mask comes from. CPU runs the native pipeline on the
+    // ImageReader frames. GPU runs Canny as shader passes on the camera
+    // texture (composite display only) and reads the mask back only while
+    // viewers are connected. COMPARE shows the CPU mask and checks every GPU
+    // mask of the same capture against it. The settings button cycles them.
+    private static final int BACKEND_CPU = 0;
+    private static final int BACKEND_GPU = 1;
+    private static final int BACKEND_COMPARE = 2;
+    private static final String[] BACKEND_NAMES = { "CPU", "GPU", "GPU vs CPU" };
+    private volatile int edgeBackend = BACKEND_CPU;
+    private GpuEdgeDetector gpuDetector;
+    private GLRenderer.GpuMask pendingGpuMask;
+    private final Counter gpuComparedFrames = metrics.counter("edge_gpu_compared_frames_total",
+            "Frames whose GPU mask was compared with the CPU mask");
+    private final Counter gpuComparedPixels = metrics.counter("edge_gpu_compared_pixels_total",
+            "Pixels compared between GPU and CPU masks");
+    private final Counter gpuMismatchedPixels = metrics.counter("edge_gpu_mismatched_pixels_total",
+            "Pixels where the GPU and CPU masks disagree");
+    
+    // Run Canny on the Y plane only instead of converting to BGR first.
+    // Long-pressing the settings button switches between the two, and
+    //   adb shell am start -n com.edgedetector/.CameraActivity --ez lumaOnly false
+    // starts on the color path. The processing thread applies it to the
+    // next frame.
+    public static final String EXTRA_LUMA_ONLY = "lumaOnly";
+    private volatile boolean lumaOnly = true;
+    // What the pipeline runs right now; processing thread only
+    private boolean lumaOnlyActive;
+    
+    // Worker threads for tiled (banded) Canny; 0 uses OpenCV's single call.
+    // The output is identical either way. Off until a device run shows a
+    // win: on one host core a single band takes 0.93 ms against 0.73 ms for
+    // cv::Canny at 640x480 (pipeline_regress), so it needs a second free
+    // core to come out ahead.
+    private int tiledWorkers = 0;
+    
+    // Motion gating: frames whose downsampled Y plane did not change by more
+    // than the threshold (mean absolute difference per tile) reuse the last
+    // edge mask; partially changed frames only recompute the dirty tiles.
+    private boolean motionGating = true;
+    private int motionThreshold = 6;
+    private int motionRefreshInterval = 30;
+    // Whether the pipeline's gate is on right now; processing thread only
+    private boolean motionGateActive;
+    
+    // Viewers that fall behind by more than the queue limit get half-size
+    // frames until they catch up, and skip frames if even those do not fit
+    private int slowViewerPolicy = EdgeDetectorWebSocketServer.SLOW_CLIENT_DOWNGRADE;
+    private int viewerQueueLimit = 256 * 1024;
+    private static final int REDUCED_FRAME_DOWNSCALE = 2;
+    
+    // Between keyframes viewers get only the tiles of this size that changed
+    private static final int DELTA_TILE_SIZE = 32;
+    private static final int KEYFRAME_INTERVAL = 60;
+    
+    // Profile of viewers that do not subscribe to one: full resolution,
+    // every frame. The 1bpp run-length codec encodes in tens of microseconds
+    // where PNG takes about a millisecond, at a similar size; viewers can
+    // still ask for PNG.
+    private StreamProfile defaultViewerProfile = new StreamProfile(1, 0, FrameMessage.CODEC_RLE_1BPP);
+    
+    // permessage-deflate for viewers whose browser offers it. Level 1 takes
+    // RLE keyframes to about a third and tile deltas to a sixth for a few
+    // hundred microseconds, once per frame; higher levels and context
+    // takeover save little more and cost far more (jni/bench/deflate_bench.cpp)
+    private int viewerCompressionLevel = 1;
+    private int viewerCompressionThreshold = 256;
+    private boolean viewerCompressionContext = false;
+    
+    // Capture size and frame rate follow measured processing latency unless
+    // adaptive capture is off, in which case the default size is used as is
+    private static final Size DEFAULT_CAPTURE_SIZE = new Size(640, 480);
+    private static final int TARGET_FPS = 30;
+    private boolean adaptiveCapture = true;
+    
+    // Intent extras for reproducible runs without pointing the camera at
+    // anything, e.g.
+    //   adb shell am start -n com.edgedetector/.CameraActivity --es record run.yuv --ei recordSeconds 30
+    //   adb shell am start -n com.edgedetector/.CameraActivity --es replay run.yuv --ez replayRealtime false
+    // Relative paths are resolved against the app's external files directory.
+    // Recording tees the camera frames into a file (see YuvRecorder) and
+    // fixes the capture size so the whole recording shares one. Replay runs
+    // the pipeline on a recording instead of the camera, in real time or as
+    // fast as frames are processed, optionally looping for soak tests; the
+    // camera is not opened and only the edges are drawn.
+    public static final String EXTRA_RECORD = "record";
+    public static final String EXTRA_RECORD_SECONDS = "recordSeconds";
+    public static final String EXTRA_REPLAY = "replay";
+    public static final String EXTRA_REPLAY_REALTIME = "replayRealtime";
+    public static final String EXTRA_REPLAY_LOOP = "replayLoop";
+    private static final int DEFAULT_RECORD_SECONDS = 60;
+    private YuvRecorder recorder;
+    private ReplayFrameSource replaySource;
+    
+    // The last seconds of CPU edge masks, kept in a ring file in the cache
+    // directory and exported by a viewer's {"type": "dump"} control message
+    // to the external files directory (see FlightRecorder). Off unless
+    // started with
+    //   adb shell am start -n com.edgedetector/.CameraActivity --ez flightRecorder true
+    // Any viewer can ask for a dump, so dumps are spaced out and only the
+    // newest few files are kept.
+    public static final String EXTRA_FLIGHT_RECORDER = "flightRecorder";
+    private boolean flightRecording;
+    private static final int FLIGHT_RECORDER_SECONDS = 10;
+    private static final int FLIGHT_RECORDER_BYTES = 8 * 1024 * 1024;
+    private static final long MIN_DUMP_INTERVAL_MS = 30_000;
+    private static final int MAX_DUMP_FILES = 5;
+    private FlightRecorder flightRecorder;
+    // Only touched on the WebSocket server's thread
+    private long lastDumpMillis;
+    
+    // Regions of interest (see RegionLayout): only these parts of the frame
+    // go through edge detection and out to viewers, so processing and
+    // encoding cost follow their area, and the resolution governor can raise
+    // the capture size as latency drops. Dragging over the preview adds one,
+    // a long press goes back to the whole frame, and viewers can set them
+    // with a "regions" control message. Fractions of the frame, null for all
+    // of it; the processing thread applies them to the next frame.
+    private volatile double[] requestedRegions;
+    // Drags smaller than this fraction of the view are taps, not regions
+    private static final float MIN_REGION_DRAG = 0.05f;
+    // Processing thread only
+    private double[] appliedRegions;
+    private RegionLayout regionLayout;
+    // Frame latency over the whole replay, read once it has finished
+    private Histogram.Window replayLatencyWindow;
+    
+    // Reused across frames so the JNI calls never touch the Java heap. The
+    // edge mask itself is written straight into the renderer's back buffer.
+    private ByteBuffer encodedBuffer;
+    private ByteBuffer deltaBuffer;
+    private long pipelineHandle;
+    private int pipelineWidth;
+    private int pipelineHeight;
+    // Size of the mask sent to viewers: the frame, or the regions' canvas
+    private int maskWidth;
+    private int maskHeight;
+    // Sensor timestamp of the capture behind the pipeline's current mask
+    private long maskTimestamp;
 
     // Load native library
     static {
         System.loadLibrary("edge_detector");
     }
 
-    // Native method declaration
-    public native byte[] processFrame(byte[] input, int width, int height);
+    // Native pipeline: a handle owns the working buffers for one resolution.
+    // processFramePlanes reads the camera planes in place (honouring row and
+    // pixel strides) and writes the raw 8-bit edge mask into a direct buffer.
+    // encodeFrame PNG-encodes the last mask for the network, shrunk by
+    // `downscale` when that is above 1. Both return the
+    // number of bytes written, or -1 on failure; processFramePlanes returns 0
+    // when motion gating found nothing to redo and left the buffer untouched.
+    // `seq` labels the native trace sections (see FrameTrace).
+    private native long createPipeline(int width, int height);
+    private native int processFramePlanes(long handle, ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+            int yRowStride, int uvRowStride, int uvPixelStride,
+            int width, int height, ByteBuffer maskOutput, long seq);
+    // `codec` is FrameMessage.CODEC_PNG or CODEC_RLE_1BPP
+    private native int encodeFrame(long handle, ByteBuffer output, long seq, int downscale, int codec);
+    // Tiles changed since the previous call for `stream` (see
+    // EdgePipeline::encodeDelta), or -1 when viewers need a keyframe instead
+    private native int encodeDelta(long handle, ByteBuffer output, int tileSize, long seq, int stream,
+            int downscale, boolean restart);
+    private native void setLumaOnly(long handle, boolean lumaOnly);
+    private native void setTiledWorkers(long handle, int workers);
+    private native void configureMotionGate(long handle, boolean enabled, int threshold, int refreshInterval);
+    // RegionLayout.toArray(), or null for the whole frame. The processed mask
+    // stays frame-sized with zeros outside the regions; encodeFrame,
+    // encodeDelta and loadGpuMask work on the canvas. Returns false for a
+    // layout that does not fit the pipeline's size.
+    private native boolean setRegions(long handle, int[] layout);
+    private native void releasePipeline(long handle);
+    // GPU masks come back as RGBA (edge where the first byte is set).
+    // loadGpuMask makes one the pipeline's current mask so encodeFrame can
+    // send it; compareGpuMask counts the pixels where it disagrees with the
+    // last processed mask. Both return -1 on a size mismatch.
+    private native int loadGpuMask(long handle, ByteBuffer rgba, int width, int height);
+    private native int compareGpuMask(long handle, ByteBuffer rgba, int width, int height);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AndroidServerLog.install();
         setContentView(R.layout.activity_camera);
         
         // Initialize UI elements
@@ -68,10 +300,18 @@ public class CameraActivity extends Activity {
         connectionCount = findViewById(R.id.connection_count);
         serverIp = findViewById(R.id.server_ip);
         processingStatus = findViewById(R.id.processing_status);
+        latencyValue = findViewById(R.id.latency_value);
         recordingIndicator = findViewById(R.id.recording_indicator);
         
         // Start WebSocket server
-        webSocketServer = new EdgeDetectorWebSocketServer();
+        webSocketServer = new EdgeDetectorWebSocketServer(metrics);
+        webSocketServer.setSlowClientPolicy(slowViewerPolicy);
+        webSocketServer.setSendQueueLimit(viewerQueueLimit);
+        webSocketServer.setKeyframeInterval(KEYFRAME_INTERVAL);
+        webSocketServer.setDefaultProfile(defaultViewerProfile);
+        webSocketServer.setCompression(viewerCompressionLevel, viewerCompressionThreshold,
+                viewerCompressionContext);
+        webSocketServer.setControlHandler("regions", this::onRegionsRequest);
         try {
             webSocketServer.start();
             android.util.Log.i("EdgeDetector", "WebSocket server started on port " + WEBSOCKET_PORT);
@@ -81,19 +321,303 @@ public class CameraActivity extends Activity {
             updateServerStatus(false);
         }
         
+        // Camera callbacks run on their own looper; they only acquire and hand
+        // off images. Edge detection, encoding and broadcast run on the
+        // processing thread so neither competes with the UI.
+        cameraThread = new HandlerThread("CameraBackground");
+        cameraThread.start();
+        cameraHandler = new Handler(cameraThread.getLooper());
+        frameProcessor = new FrameProcessor<>("FrameProcessor", this::handleFrame);
+        frameProcessor.start();
+        metrics.counter("edge_frames_dropped_total", "Frames replaced before the processor got to them",
+                frameProcessor::getDroppedFrames);
+        openFrameFiles();
+        
+        metricsServer = new MetricsHttpServer(metrics, METRICS_PORT);
+        try {
+            metricsServer.start();
+            android.util.Log.i("EdgeDetector", "Metrics endpoint started on port " + METRICS_PORT);
+        } catch (java.io.IOException e) {
+            android.util.Log.e("EdgeDetector", "Failed to start metrics endpoint: " + e.getMessage());
+            metricsServer = null;
+        }
+        
+        lumaOnly = getIntent().getBooleanExtra(EXTRA_LUMA_ONLY, true);
+        flightRecording = getIntent().getBooleanExtra(EXTRA_FLIGHT_RECORDER, false);
+        if (flightRecording) {
+            try {
+                flightRecorder = new FlightRecorder(new File(getCacheDir(), "flight.ring"), FLIGHT_RECORDER_SECONDS,
+                        FLIGHT_RECORDER_BYTES, metrics);
+                webSocketServer.setControlHandler("dump", this::onDumpRequest);
+            } catch (IOException e) {
+                android.util.Log.e("EdgeDetector", "Failed to create the flight recorder", e);
+            }
+        }
+        
         // Set up OpenGL surface view
         glSurfaceView.setEGLContextClientVersion(2);
         glRenderer = new GLRenderer();
+        glRenderer.setUploadLatency(stageLatency("gl_upload"));
+        metrics.counter("edge_gl_frames_displayed_total", "Frames uploaded to the display texture",
+                glRenderer::getFramesDisplayed);
+        metrics.counter("edge_gl_frames_skipped_total", "Frames replaced before the GL thread picked them up",
+                glRenderer::getFramesSkipped);
+        if (replaySource != null) {
+            // No camera preview to draw under the edges
+            textureView.setVisibility(View.GONE);
+            glSurfaceView.setAlpha(1.0f);
+        } else if (compositeDisplay) {
+            // Opacity is applied in the shader, not by the compositor
+            textureView.setVisibility(View.GONE);
+            glSurfaceView.setAlpha(1.0f);
+            glRenderer.setOverlayStyle(overlayBlend, overlayTint, overlayOpacity);
+            glRenderer.setCameraPreview(this::onCameraTextureAvailable,
+                    texture -> glSurfaceView.requestRender());
+            gpuDetector = new GpuEdgeDetector(getAssets(), GpuEdgeDetector.DEFAULT_HYSTERESIS_PASSES);
+            glRenderer.setGpuDetector(gpuDetector);
+        }
         glSurfaceView.setRenderer(glRenderer);
         glSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         
-        // Set up camera texture view (for preview)
-        textureView.setSurfaceTextureListener(surfaceTextureListener);
+        if (replaySource != null) {
+            frameSource = replaySource;
+            frameSource.start(frameProcessor::submit);
+        } else if (!compositeDisplay) {
+            // Set up camera texture view (for preview)
+            textureView.setSurfaceTextureListener(surfaceTextureListener);
+        }
+        
+        findViewById(R.id.fab_settings).setOnClickListener(
+                v -> setEdgeBackend((edgeBackend + 1) % BACKEND_NAMES.length));
+        findViewById(R.id.fab_settings).setOnLongClickListener(v -> {
+            setLumaOnlyMode(!lumaOnly);
+            return true;
+        });
+        setUpRegionGestures();
         
         // Initialize stats
         updateStats();
     }
     
+    // Opens the recording to replay, or the file to record to, named by the
+    // intent extras. A replay that cannot be opened falls back to the camera.
+    private void openFrameFiles() {
+        android.content.Intent intent = getIntent();
+        String replay = intent.getStringExtra(EXTRA_REPLAY);
+        String record = intent.getStringExtra(EXTRA_RECORD);
+        if (replay != null) {
+            try {
+                replaySource = new ReplayFrameSource(resolveFrameFile(replay),
+                        intent.getBooleanExtra(EXTRA_REPLAY_REALTIME, true),
+                        intent.getBooleanExtra(EXTRA_REPLAY_LOOP, false), this::onReplayFinished);
+                android.util.Log.i("EdgeDetector", "Replaying " + replaySource.getFrameCount() + " frames of "
+                        + replaySource.getWidth() + "x" + replaySource.getHeight() + " from " + replay);
+                metrics.counter("edge_replay_frames_total", "Frames delivered from the replayed recording",
+                        replaySource::getDeliveredFrames);
+                replayLatencyWindow = frameLatency.newWindow();
+            } catch (IOException e) {
+                android.util.Log.e("EdgeDetector", "Failed to open recording " + replay, e);
+            }
+        } else if (record != null) {
+            int seconds = intent.getIntExtra(EXTRA_RECORD_SECONDS, DEFAULT_RECORD_SECONDS);
+            try {
+                recorder = new YuvRecorder(resolveFrameFile(record), seconds * TARGET_FPS);
+                // One size for the whole recording
+                adaptiveCapture = false;
+                android.util.Log.i("EdgeDetector", "Recording up to " + seconds + " s of frames to " + record);
+                metrics.counter("edge_recorded_frames_total", "Camera frames written to the recording",
+                        recorder::getFrameCount);
+            } catch (IOException e) {
+                android.util.Log.e("EdgeDetector", "Failed to create recording " + record, e);
+            }
+        }
+    }
+    
+    private File resolveFrameFile(String name) {
+        File file = new File(name);
+        return file.isAbsolute() ? file : new File(getExternalFilesDir(null), name);
+    }
+    
+    // Runs on the replay thread. At maximum speed the wall time over the
+    // processed frames is the pipeline's throughput on this device.
+    private void onReplayFinished() {
+        replayLatencyWindow.advance();
+        android.util.Log.i("EdgeDetector", String.format(
+                "Replay finished: processed %d, dropped %d, unchanged %d, frame latency p50 %.2f ms, p99 %.2f ms",
+                frameProcessor.getProcessedFrames(), frameProcessor.getDroppedFrames(), framesUnchanged.get(),
+                replayLatencyWindow.quantileMillis(0.5), replayLatencyWindow.quantileMillis(0.99)));
+    }
+    
+    // Runs on the WebSocket server's thread; the export runs on the flight
+    // recorder's and replies when it is done
+    private void onDumpRequest(JSONObject message, EdgeDetectorWebSocketServer.ControlReply reply) {
+        long now = System.currentTimeMillis();
+        long wait = lastDumpMillis + MIN_DUMP_INTERVAL_MS - now;
+        if (wait > 0) {
+            replyError(reply, "Wait " + (wait + 999) / 1000 + " s before the next dump");
+            return;
+        }
+        File out = new File(getExternalFilesDir(null), "flight-" + now + ".edgedump");
+        boolean started = flightRecorder.dump(out, new FlightRecorder.DumpListener() {
+            @Override
+            public void onDumped(File file, int frames, long bytes, double seconds) {
+                deleteOldDumps();
+                try {
+                    reply.send("dump", new JSONObject().put("path", file.getAbsolutePath())
+                            .put("frames", frames).put("bytes", bytes).put("seconds", seconds));
+                } catch (JSONException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            
+            @Override
+            public void onDumpFailed(String error) {
+                replyError(reply, error);
+            }
+        });
+        if (!started) {
+            replyError(reply, "A dump is already running");
+            return;
+        }
+        lastDumpMillis = now;
+    }
+    
+    // Runs on the flight recorder's thread. Keeps the MAX_DUMP_FILES most
+    // recently written dumps.
+    private void deleteOldDumps() {
+        File[] dumps = getExternalFilesDir(null).listFiles(
+                (dir, name) -> name.startsWith("flight-") && name.endsWith(".edgedump"));
+        if (dumps == null || dumps.length <= MAX_DUMP_FILES) {
+            return;
+        }
+        java.util.Arrays.sort(dumps, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < dumps.length - MAX_DUMP_FILES; i++) {
+            if (!dumps[i].delete()) {
+                android.util.Log.w("EdgeDetector", "Could not delete old dump " + dumps[i]);
+            }
+        }
+    }
+    
+    // Runs on the WebSocket server's thread; every viewer hears the outcome
+    // as the "layout" the processing thread announces
+    private void onRegionsRequest(JSONObject message, EdgeDetectorWebSocketServer.ControlReply reply) {
+        try {
+            setRequestedRegions(RegionLayout.parseRegions(message));
+        } catch (IllegalArgumentException e) {
+            replyError(reply, e.getMessage());
+        }
+    }
+    
+    private void setUpRegionGestures() {
+        GestureDetector gestures = new GestureDetector(this, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public void onLongPress(MotionEvent event) {
+                setRequestedRegions(null);
+            }
+        });
+        float[] dragStart = new float[2];
+        glSurfaceView.setOnTouchListener((view, event) -> {
+            gestures.onTouchEvent(event);
+            if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                dragStart[0] = event.getX() / view.getWidth();
+                dragStart[1] = event.getY() / view.getHeight();
+            } else if (event.getActionMasked() == MotionEvent.ACTION_UP) {
+                addDraggedRegion(dragStart[0], dragStart[1], event.getX() / view.getWidth(),
+                        event.getY() / view.getHeight());
+                view.performClick();
+            }
+            return true;
+        });
+    }
+    
+    // Adds the region under a drag between two points of the view (0-1),
+    // dropping the oldest beyond RegionLayout.MAX_REGIONS
+    private void addDraggedRegion(float startX, float startY, float endX, float endY) {
+        if (Math.abs(endX - startX) < MIN_REGION_DRAG || Math.abs(endY - startY) < MIN_REGION_DRAG) {
+            return;
+        }
+        // The preview can be rotated or mirrored, so every corner is mapped
+        float[] corner = new float[2];
+        float left = 1;
+        float top = 1;
+        float right = 0;
+        float bottom = 0;
+        for (int i = 0; i < 4; i++) {
+            glRenderer.viewToFrame(i % 2 == 0 ? startX : endX, i < 2 ? startY : endY, corner);
+            left = Math.min(left, corner[0]);
+            top = Math.min(top, corner[1]);
+            right = Math.max(right, corner[0]);
+            bottom = Math.max(bottom, corner[1]);
+        }
+        left = Math.max(0, left);
+        top = Math.max(0, top);
+        right = Math.min(1, right);
+        bottom = Math.min(1, bottom);
+        if (right <= left || bottom <= top) {
+            return;
+        }
+        double[] current = requestedRegions;
+        int kept = current == null ? 0 : Math.min(current.length / 4, RegionLayout.MAX_REGIONS - 1);
+        double[] regions = new double[(kept + 1) * 4];
+        if (kept > 0) {
+            System.arraycopy(current, current.length - kept * 4, regions, 0, kept * 4);
+        }
+        regions[kept * 4] = left;
+        regions[kept * 4 + 1] = top;
+        regions[kept * 4 + 2] = right - left;
+        regions[kept * 4 + 3] = bottom - top;
+        setRequestedRegions(regions);
+    }
+    
+    // Any thread; null or empty is the whole frame
+    private void setRequestedRegions(double[] regions) {
+        int count = regions != null ? regions.length / 4 : 0;
+        requestedRegions = count > 0 ? regions : null;
+        runOnUiThread(() -> android.widget.Toast.makeText(this,
+                count > 0 ? "Edges in " + count + (count == 1 ? " region" : " regions") : "Edges in the whole frame",
+                android.widget.Toast.LENGTH_SHORT).show());
+    }
+    
+    private static void replyError(EdgeDetectorWebSocketServer.ControlReply reply, String error) {
+        try {
+            reply.send("error", new JSONObject().put("message", error));
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private void setEdgeBackend(int backend) {
+        if (backend != BACKEND_CPU && (gpuDetector == null || !gpuDetector.isSupported())) {
+            // The GPU passes read the camera texture, which only exists in
+            // composite mode, and need highp floats
+            backend = BACKEND_CPU;
+        }
+        edgeBackend = backend;
+        applyEdgeBackend();
+        android.widget.Toast.makeText(this, "Edges: " + BACKEND_NAMES[backend],
+                android.widget.Toast.LENGTH_SHORT).show();
+    }
+    
+    private void setLumaOnlyMode(boolean enabled) {
+        lumaOnly = enabled;
+        android.widget.Toast.makeText(this, "Canny: " + (enabled ? "luma only" : "color"),
+                android.widget.Toast.LENGTH_SHORT).show();
+    }
+    
+    // GPU masks are computed at the capture size so they line up with the
+    // CPU pipeline; called again whenever the capture size changes
+    private void applyEdgeBackend() {
+        Size size = previewSize;
+        int backend = edgeBackend;
+        if (size == null) {
+            return;
+        }
+        glRenderer.setGpuEdges(backend != BACKEND_CPU, backend == BACKEND_GPU,
+                size.getWidth(), size.getHeight());
+        // In GPU mode the processing thread turns readback on for viewers
+        glRenderer.setGpuReadback(backend == BACKEND_COMPARE);
+    }
+    
     private void updateServerStatus(boolean isOnline) {
         runOnUiThread(() -> {
             if (isOnline) {
@@ -109,21 +633,36 @@ public class CameraActivity extends Activity {
         });
     }
     
+    private Histogram stageLatency(String stage) {
+        return metrics.histogram("edge_stage_latency_seconds", "stage=\"" + stage + "\"",
+                "Time spent per frame in each pipeline stage");
+    }
+    
     private void updateStats() {
         runOnUiThread(() -> {
-            // Calculate FPS
-            long currentTime = System.currentTimeMillis();
-            long elapsed = currentTime - startTime;
+            // FPS and latency over the interval since the last update rather
+            // than the whole session
+            long now = System.nanoTime();
+            long frames = totalFrames;
+            long elapsed = now - lastStatsTime;
             if (elapsed > 0) {
-                float fps = (totalFrames * 1000.0f) / elapsed;
+                float fps = (frames - lastStatsFrames) * 1e9f / elapsed;
                 fpsValue.setText(String.format("%.1f", fps));
             }
+            lastStatsFrames = frames;
+            lastStatsTime = now;
+            
+            frameLatencyWindow.advance();
+            if (frameLatencyWindow.count() > 0) {
+                latencyValue.setText(String.format("Latency p50 %.1f ms · p99 %.1f ms",
+                        frameLatencyWindow.quantileMillis(0.5), frameLatencyWindow.quantileMillis(0.99)));
+            }
             
             // Update frame count
-            frameCount.setText(String.format("%,d", totalFrames));
+            frameCount.setText(String.format("%,d", frames));
             
-            // Update connection count (simulate for now)
-            connectionCount.setText("1");
+            connectionCount.setText(String.valueOf(
+                    webSocketServer != null ? webSocketServer.getConnectionCount() : 0));
         });
     }
     
@@ -168,7 +707,27 @@ public class CameraActivity extends Activity {
         }
     };
 
+    // Called on the GL thread, first when the surface is created and again if
+    // the GL context is lost, in which case the session needs the new texture
+    private void onCameraTextureAvailable(SurfaceTexture texture) {
+        runOnUiThread(() -> {
+            cameraTexture = texture;
+            if (cameraDevice != null) {
+                cameraHandler.post(this::restartPreview);
+            } else {
+                openCamera();
+            }
+        });
+    }
+    
     private void openCamera() {
+        if (replaySource != null) {
+            return;
+        }
+        if (compositeDisplay && cameraTexture == null) {
+            // onCameraTextureAvailable opens the camera once the texture exists
+            return;
+        }
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(this, new String[] { Manifest.permission.CAMERA },
                     REQUEST_CAMERA_PERMISSION);
@@ -177,7 +736,11 @@ public class CameraActivity extends Activity {
         CameraManager manager = (CameraManager) getSystemService(CAMERA_SERVICE);
         try {
             String cameraId = manager.getCameraIdList()[0];
-            manager.openCamera(cameraId, stateCallback, null);
+            if (adaptiveCapture) {
+                governor = ResolutionGovernor.fromCharacteristics(
+                        manager.getCameraCharacteristics(cameraId), TARGET_FPS, DEFAULT_CAPTURE_SIZE);
+            }
+            manager.openCamera(cameraId, stateCallback, cameraHandler);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -205,35 +768,34 @@ public class CameraActivity extends Activity {
 
     private void startPreview() {
         try {
-            SurfaceTexture texture = textureView.getSurfaceTexture();
-            texture.setDefaultBufferSize(640, 480);
+            previewSize = governor != null ? governor.getSize() : DEFAULT_CAPTURE_SIZE;
+            SurfaceTexture texture = compositeDisplay ? cameraTexture : textureView.getSurfaceTexture();
+            texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+            applyEdgeBackend();
             Surface surface = new Surface(texture);
             
-            // Set up ImageReader for frame processing
-            imageReader = ImageReader.newInstance(640, 480, ImageFormat.YUV_420_888, 2);
-            imageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
-                @Override
-                public void onImageAvailable(ImageReader reader) {
-                    Image image = reader.acquireLatestImage();
-                    if (image != null) {
-                        processImageFrame(image);
-                        image.close();
-                    }
-                }
-            }, null);
+            // Camera frames for processing, written to the recording first
+            // when there is one
+            Camera2FrameSource cameraSource = new Camera2FrameSource(previewSize.getWidth(),
+                    previewSize.getHeight(), cameraHandler);
+            frameSource = recorder != null ? new RecordingFrameSource(cameraSource, recorder) : cameraSource;
+            frameSource.start(frameProcessor::submit);
             
             previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             previewRequestBuilder.addTarget(surface);
-            previewRequestBuilder.addTarget(imageReader.getSurface());
+            previewRequestBuilder.addTarget(cameraSource.getSurface());
+            if (governor != null) {
+                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, governor.getFpsRange());
+            }
             
             cameraDevice.createCaptureSession(
-                java.util.Arrays.asList(surface, imageReader.getSurface()),
+                java.util.Arrays.asList(surface, cameraSource.getSurface()),
                 new CameraCaptureSession.StateCallback() {
                     @Override
                     public void onConfigured(@NonNull CameraCaptureSession session) {
                         captureSession = session;
                         try {
-                            captureSession.setRepeatingRequest(previewRequestBuilder.build(), null, null);
+                            captureSession.setRepeatingRequest(previewRequestBuilder.build(), null, cameraHandler);
                         } catch (CameraAccessException e) {
                             e.printStackTrace();
                         }
@@ -242,7 +804,7 @@ public class CameraActivity extends Activity {
                     @Override
                     public void onConfigureFailed(@NonNull CameraCaptureSession session) {
                     }
-                }, null);
+                }, cameraHandler);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
@@ -258,44 +820,436 @@ public class CameraActivity extends Activity {
         }
     }
     
-    private void processImageFrame(Image image) {
-        // Convert Image to byte array for JNI processing
-        Image.Plane[] planes = image.getPlanes();
-        ByteBuffer yBuffer = planes[0].getBuffer();
-        ByteBuffer uBuffer = planes[1].getBuffer();
-        ByteBuffer vBuffer = planes[2].getBuffer();
-        
-        int ySize = yBuffer.remaining();
-        int uSize = uBuffer.remaining();
-        int vSize = vBuffer.remaining();
-        
-        byte[] nv21 = new byte[ySize + uSize + vSize];
-        yBuffer.get(nv21, 0, ySize);
-        uBuffer.get(nv21, ySize, uSize);
-        vBuffer.get(nv21, ySize + uSize, vSize);
+    private void handleFrame(CameraFrame frame) {
+        long start = System.nanoTime();
+        boolean processed = processFrame(frame);
+        long latency = System.nanoTime() - start;
+        frameLatency.observeNanos(latency);
+        // Unchanged frames cost next to nothing and would make a static scene
+        // look like headroom, so only frames that ran detection are measured
+        if (processed && governor != null && governor.onFrameProcessed(latency)) {
+            cameraHandler.post(this::reconfigureCapture);
+        }
+    }
+    
+    // Runs on the camera thread. A frame-rate change only updates the repeating
+    // request; a size change rebuilds the ImageReader and the session.
+    private void reconfigureCapture() {
+        if (cameraDevice == null || governor == null) {
+            return;
+        }
+        Size size = governor.getSize();
+        Range<Integer> fpsRange = governor.getFpsRange();
+        if (captureSession != null && size.equals(previewSize)) {
+            try {
+                previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+                captureSession.setRepeatingRequest(previewRequestBuilder.build(), null, cameraHandler);
+            } catch (CameraAccessException | IllegalStateException e) {
+                android.util.Log.e("EdgeDetector", "Failed to update frame rate", e);
+            }
+            return;
+        }
+        restartPreview();
+    }
+    
+    // Runs on the camera thread. Tears the session and frame source down and
+    // builds them again for the current size and preview texture.
+    private void restartPreview() {
+        if (cameraDevice == null) {
+            return;
+        }
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (frameSource != null) {
+            // Image callbacks run on this thread, so after this nothing new is
+            // submitted; flushing waits out the frame still being processed
+            // before its buffers go away with the reader
+            frameSource.stop();
+            frameProcessor.flush();
+            frameSource.close();
+            frameSource = null;
+        }
+        startPreview();
+    }
+    
+    // Returns true when the frame went through edge detection
+    private boolean processFrame(CameraFrame frame) {
+        long seq = frame.getSeq();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
         
-        // Process frame using JNI
-        byte[] processedFrame = processFrame(nv21, image.getWidth(), image.getHeight());
+        if (!ensurePipeline(width, height)) {
+            return false;
+        }
+        ensureRegions(width, height);
+        boolean luma = lumaOnly;
+        if (luma != lumaOnlyActive) {
+            setLumaOnly(pipelineHandle, luma);
+            lumaOnlyActive = luma;
+        }
         
         // Update frame counter
         totalFrames++;
         
+        // Update UI stats every 30 frames to avoid too frequent updates
+        if (totalFrames % 30 == 0) {
+            updateStats();
+        }
+        
+        int backend = edgeBackend;
+        if (backend == BACKEND_GPU && replaySource == null) {
+            processGpuFrame(seq);
+            return false;
+        }
+        // Compare mode needs a full CPU mask for every frame: gated frames
+        // are skipped or only partly recomputed, which would bias the counts
+        boolean gate = motionGating && backend != BACKEND_COMPARE;
+        if (gate != motionGateActive) {
+            configureMotionGate(pipelineHandle, gate, motionThreshold, motionRefreshInterval);
+            motionGateActive = gate;
+        }
+        
+        // Process frame using JNI directly on the frame's planes
+        FrameTrace.begin(FrameTrace.PROCESS, seq);
+        long start = System.nanoTime();
+        ByteBuffer maskBuffer = glRenderer.beginFrame(width, height);
+        int maskLength;
+        try {
+            maskLength = processFramePlanes(pipelineHandle,
+                    frame.getYPlane(), frame.getUPlane(), frame.getVPlane(),
+                    frame.getYRowStride(), frame.getUvRowStride(), frame.getUvPixelStride(),
+                    width, height, maskBuffer, seq);
+        } finally {
+            processLatency.observeNanos(System.nanoTime() - start);
+            FrameTrace.end();
+        }
+        
+        if (maskLength < 0) {
+            framesFailed.inc();
+            android.util.Log.w("EdgeDetector", "Native frame processing failed");
+            return false;
+        }
+        
+        boolean hasViewers = webSocketServer != null && webSocketServer.hasViewers();
+        if (maskLength == 0) {
+            // Static scene: the renderer keeps its texture and viewers already
+            // have this frame, unless one is waiting for a keyframe or a
+            // rate-limited stream still owes them the last change
+            framesUnchanged.inc();
+            if (hasViewers && webSocketServer.needsBroadcast()) {
+                broadcastFrame(null, seq);
+            }
+            return false;
+        }
+        
+        framesProcessed.inc();
+        maskTimestamp = frame.getTimestamp();
+        if (flightRecorder != null) {
+            // Before the mask is published, after which it belongs to the GL thread
+            flightRecorder.record(maskBuffer, width, height, seq, frame.getTimestamp());
+        }
+        if (backend == BACKEND_COMPARE && replaySource == null) {
+            compareWithGpu(frame.getTimestamp(), width, height);
+        }
+        
+        // Viewers mostly get deltas, so only PNG display needs the encoded
+        // frame up front; the broadcast reuses it for keyframes
+        byte[] encodedFrame = null;
+        if (displayMode == DISPLAY_MODE_PNG) {
+            encodedFrame = encodeCurrentFrame(seq, 1, FrameMessage.CODEC_PNG);
+        }
+        
         // Send processed frame to OpenGL renderer and WebSocket
-        if (processedFrame != null) {
-            if (glRenderer != null) {
-                glRenderer.updateFrame(processedFrame);
-                glSurfaceView.requestRender();
+        if (displayMode == DISPLAY_MODE_RAW) {
+            glRenderer.publishMask(seq);
+            glSurfaceView.requestRender();
+        } else if (encodedFrame != null) {
+            glRenderer.publishEncoded(encodedFrame, width, height, seq);
+            glSurfaceView.requestRender();
+        }
+        // Send frame to connected web viewers
+        if (hasViewers) {
+            broadcastFrame(encodedFrame, seq);
+        }
+        return true;
+    }
+    
+    // GPU backend: the renderer already drew this frame's edges, so the
+    // camera image is only a clock here. The mask is read back, loaded into
+    // the pipeline and sent only while someone is watching. The GPU cost does
+    // not show up in the processing latency, so the governor is not fed.
+    private void processGpuFrame(long seq) {
+        boolean hasViewers = webSocketServer != null && webSocketServer.hasViewers();
+        glRenderer.setGpuReadback(hasViewers);
+        if (!hasViewers) {
+            return;
+        }
+        GLRenderer.GpuMask mask = glRenderer.acquireGpuMask();
+        if (mask == null) {
+            return;
+        }
+        FrameTrace.begin(FrameTrace.PROCESS, seq);
+        long start = System.nanoTime();
+        int maskLength;
+        try {
+            maskLength = loadGpuMask(pipelineHandle, mask.getRgba(), mask.getWidth(), mask.getHeight());
+        } finally {
+            processLatency.observeNanos(System.nanoTime() - start);
+            FrameTrace.end();
+        }
+        if (maskLength < 0) {
+            // Still sized for the previous capture size
+            framesFailed.inc();
+            return;
+        }
+        framesProcessed.inc();
+        maskTimestamp = mask.getTimestamp();
+        broadcastFrame(null, seq);
+    }
+    
+    // Compares the GPU mask of the capture with sensor timestamp `timestamp`
+    // against the CPU mask just computed. The renderer usually gets to a
+    // camera frame before this thread does, so a newer GPU mask is kept until
+    // its CPU counterpart arrives; older ones can no longer be matched.
+    private void compareWithGpu(long timestamp, int width, int height) {
+        GLRenderer.GpuMask mask = glRenderer.acquireGpuMask();
+        if (mask != null) {
+            pendingGpuMask = mask;
+        }
+        mask = pendingGpuMask;
+        if (mask == null || mask.getTimestamp() > timestamp) {
+            return;
+        }
+        pendingGpuMask = null;
+        if (mask.getTimestamp() < timestamp) {
+            return;
+        }
+        int mismatched = compareGpuMask(pipelineHandle, mask.getRgba(), mask.getWidth(), mask.getHeight());
+        if (mismatched < 0) {
+            return;
+        }
+        gpuComparedFrames.inc();
+        // Only the regions are compared
+        long pixels = regionLayout.area();
+        gpuComparedPixels.add(pixels);
+        gpuMismatchedPixels.add(mismatched);
+        if (gpuComparedFrames.get() % 30 == 0) {
+            android.util.Log.i("EdgeDetector", String.format("GPU vs CPU: %d of %d pixels differ (%.3f%%)",
+                    mismatched, pixels, mismatched * 100.0 / pixels));
+        }
+    }
+    
+    private byte[] encodeCurrentFrame(long seq, int downscale, int codec) {
+        FrameTrace.begin(FrameTrace.ENCODE, seq);
+        long start = System.nanoTime();
+        try {
+            int length = encodeFrame(pipelineHandle, encodedBuffer, seq, downscale, codec);
+            if (length <= 0) {
+                return null;
             }
-            // Send frame to connected web viewers
-            if (webSocketServer != null) {
-                webSocketServer.broadcastFrame(processedFrame);
-                android.util.Log.d("EdgeDetector", "Frame sent to web viewers");
+            byte[] encodedFrame = new byte[length];
+            encodedBuffer.clear();
+            encodedBuffer.get(encodedFrame, 0, length);
+            return encodedFrame;
+        } finally {
+            encodeLatency.observeNanos(System.nanoTime() - start);
+            FrameTrace.end();
+        }
+    }
+    
+    // `encodedFrame` is the PNG of the current mask when it was already
+    // encoded for display, else null; keyframes reuse it when they are PNG. The server pulls the delta and, for
+    // viewers that need them, keyframes from BroadcastFrame, so the broadcast
+    // latency includes that encoding.
+    private void broadcastFrame(byte[] encodedFrame, long seq) {
+        FrameTrace.begin(FrameTrace.BROADCAST, seq);
+        long start = System.nanoTime();
+        try {
+            webSocketServer.broadcastFrame(new BroadcastFrame(encodedFrame, seq));
+        } finally {
+            broadcastLatency.observeNanos(System.nanoTime() - start);
+            FrameTrace.end();
+        }
+    }
+    
+    // The pipeline's current mask in the forms the server asks for. Runs on
+    // the processing thread, from inside broadcastFrame.
+    private final class BroadcastFrame implements EdgeDetectorWebSocketServer.FrameSource {
+        private final byte[] png;
+        private final long seq;
+        
+        BroadcastFrame(byte[] png, long seq) {
+            this.png = png;
+            this.seq = seq;
+        }
+        
+        @Override
+        public ByteBuffer keyframe(StreamProfile profile) {
+            return encodeKeyframe(profile.scale, profile.codec);
+        }
+        
+        @Override
+        public ByteBuffer reducedKeyframe(StreamProfile profile) {
+            return encodeKeyframe(profile.scale * REDUCED_FRAME_DOWNSCALE, profile.codec);
+        }
+        
+        private ByteBuffer encodeKeyframe(int downscale, int codec) {
+            byte[] frame = png != null && downscale == 1 && codec == FrameMessage.CODEC_PNG
+                    ? png : encodeCurrentFrame(seq, downscale, codec);
+            if (frame == null) {
+                return null;
             }
+            return FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8,
+                    codec, seq, maskTimestamp, scaledSize(maskWidth, downscale),
+                    scaledSize(maskHeight, downscale), frame, 0, frame.length);
         }
         
-        // Update UI stats every 30 frames to avoid too frequent updates
-        if (totalFrames % 30 == 0) {
-            updateStats();
+        @Override
+        public ByteBuffer delta(StreamProfile profile, int stream, boolean restart) {
+            FrameTrace.begin(FrameTrace.ENCODE, seq);
+            long start = System.nanoTime();
+            try {
+                int length = encodeDelta(pipelineHandle, deltaBuffer, DELTA_TILE_SIZE, seq, stream,
+                        profile.scale, restart);
+                if (length < 0) {
+                    return null;
+                }
+                deltaBuffer.clear();
+                deltaBuffer.limit(length);
+                return FrameMessage.encode(FrameMessage.TYPE_DELTA, FrameMessage.PIXEL_FORMAT_GRAY8,
+                        FrameMessage.CODEC_TILES_1BPP, seq, maskTimestamp, scaledSize(maskWidth, profile.scale),
+                        scaledSize(maskHeight, profile.scale), deltaBuffer);
+            } finally {
+                encodeLatency.observeNanos(System.nanoTime() - start);
+                FrameTrace.end();
+            }
+        }
+    }
+    
+    // Mask dimension after the pipeline shrinks it by `downscale`, rounding up
+    private static int scaledSize(int size, int downscale) {
+        return (size + downscale - 1) / downscale;
+    }
+    
+    private boolean ensurePipeline(int width, int height) {
+        if (pipelineHandle != 0 && pipelineWidth == width && pipelineHeight == height) {
+            return true;
+        }
+        releaseNativePipeline();
+        pipelineHandle = createPipeline(width, height);
+        if (pipelineHandle == 0) {
+            android.util.Log.e("EdgeDetector", "Failed to create native pipeline for " + width + "x" + height);
+            return false;
+        }
+        lumaOnlyActive = lumaOnly;
+        setLumaOnly(pipelineHandle, lumaOnlyActive);
+        setTiledWorkers(pipelineHandle, tiledWorkers);
+        configureMotionGate(pipelineHandle, motionGating, motionThreshold, motionRefreshInterval);
+        motionGateActive = motionGating;
+        pipelineWidth = width;
+        pipelineHeight = height;
+        // A new pipeline starts out on the whole frame
+        regionLayout = null;
+        return true;
+    }
+    
+    // Lays the requested regions out on the pipeline when they changed or the
+    // pipeline is new. Viewers are told before any frame that uses the new
+    // layout, as both go out from this thread.
+    private void ensureRegions(int width, int height) {
+        double[] requested = requestedRegions;
+        if (regionLayout != null && requested == appliedRegions) {
+            return;
+        }
+        RegionLayout layout = RegionLayout.place(requested, width, height);
+        if (!setRegions(pipelineHandle, layout.isWholeFrame() ? null : layout.toArray())) {
+            android.util.Log.w("EdgeDetector", "Failed to apply " + layout + ", using the whole frame");
+            layout = RegionLayout.place(null, width, height);
+            setRegions(pipelineHandle, null);
+        }
+        appliedRegions = requested;
+        regionLayout = layout;
+        maskWidth = layout.canvasWidth;
+        maskHeight = layout.canvasHeight;
+        // Worst case is an incompressible single-channel PNG plus headers
+        encodedBuffer = ByteBuffer.allocateDirect(maskWidth * maskHeight + maskHeight + 1024);
+        // Worst case is every tile changed: 4 bytes of position plus the bits
+        int tiles = ((maskWidth + DELTA_TILE_SIZE - 1) / DELTA_TILE_SIZE)
+                * ((maskHeight + DELTA_TILE_SIZE - 1) / DELTA_TILE_SIZE);
+        deltaBuffer = ByteBuffer.allocateDirect(4 + tiles * (4 + (DELTA_TILE_SIZE * DELTA_TILE_SIZE + 7) / 8));
+        if (webSocketServer != null) {
+            webSocketServer.announce("layout", layout.toJson());
+        }
+        android.util.Log.i("EdgeDetector", "Edges in the " + layout);
+    }
+    
+    private void releaseNativePipeline() {
+        if (pipelineHandle != 0) {
+            releasePipeline(pipelineHandle);
+            pipelineHandle = 0;
+        }
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        // Stop the processing thread before the camera buffers and the native
+        // pipeline it works on go away
+        if (frameSource instanceof ReplayFrameSource) {
+            // The replay thread may be waiting for the processor
+            frameSource.stop();
+        }
+        if (frameProcessor != null) {
+            frameProcessor.stop();
+            android.util.Log.i("EdgeDetector", "Frames processed: " + frameProcessor.getProcessedFrames()
+                    + ", dropped: " + frameProcessor.getDroppedFrames()
+                    + ", unchanged: " + framesUnchanged.get());
+        }
+        if (cameraThread != null) {
+            // Camera frame callbacks run on this thread: stop the source there
+            // and let it finish before the reader and the recording close
+            FrameSource source = frameSource;
+            if (source != null && source != replaySource) {
+                cameraHandler.post(source::stop);
+            }
+            cameraThread.quitSafely();
+            try {
+                cameraThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            cameraThread = null;
+        }
+        if (frameSource != null) {
+            frameSource.close();
+            frameSource = null;
+        }
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        releaseNativePipeline();
+        if (webSocketServer != null) {
+            webSocketServer.setControlHandler("regions", null);
+        }
+        if (flightRecorder != null) {
+            webSocketServer.setControlHandler("dump", null);
+            flightRecorder.close();
+            flightRecorder = null;
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
         }
     }
     
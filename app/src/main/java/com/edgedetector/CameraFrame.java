@@ -0,0 +1,104 @@
+package com.edgedetector;
+
+import android.media.Image;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A YUV 4:2:0 frame tagged with its sequence number: a camera image, or a
+// frame replayed from a recording (see capture.FrameSource). Closing it
+// releases the buffers to their owner and ends the frame's trace slice,
+// whether it was processed or dropped.
+public final class CameraFrame implements AutoCloseable {
+    // One sequence across sources, so a replay started after the camera keeps
+    // trace sections and viewer sequence numbers increasing
+    private static final AtomicLong NEXT_SEQ = new AtomicLong();
+
+    private final long seq;
+    private final long timestamp;
+    private final int width;
+    private final int height;
+    private final ByteBuffer yPlane;
+    private final ByteBuffer uPlane;
+    private final ByteBuffer vPlane;
+    private final int yRowStride;
+    private final int uvRowStride;
+    private final int uvPixelStride;
+    private final Runnable release;
+
+    public CameraFrame(Image image, long seq) {
+        this(seq, image.getTimestamp(), image.getWidth(), image.getHeight(), image.getPlanes(), image::close);
+    }
+
+    private CameraFrame(long seq, long timestamp, int width, int height, Image.Plane[] planes, Runnable release) {
+        this(seq, timestamp, width, height, planes[0].getBuffer(), planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(), release);
+    }
+
+    // The planes must be direct buffers starting at their first pixel; U and V
+    // share their strides. `release` runs once, on close().
+    public CameraFrame(long seq, long timestamp, int width, int height, ByteBuffer yPlane, ByteBuffer uPlane,
+            ByteBuffer vPlane, int yRowStride, int uvRowStride, int uvPixelStride, Runnable release) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.width = width;
+        this.height = height;
+        this.yPlane = yPlane;
+        this.uPlane = uPlane;
+        this.vPlane = vPlane;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.release = release;
+    }
+
+    public static long nextSeq() {
+        return NEXT_SEQ.getAndIncrement();
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    // Capture time in nanoseconds, on the sensor's clock for camera frames
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ByteBuffer getYPlane() {
+        return yPlane;
+    }
+
+    public ByteBuffer getUPlane() {
+        return uPlane;
+    }
+
+    public ByteBuffer getVPlane() {
+        return vPlane;
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    @Override
+    public void close() {
+        release.run();
+        FrameTrace.endFrame(seq);
+    }
+}
@@ -0,0 +1,299 @@
+package com.edgedetector;
+
+import android.util.Log;
+import com.edgedetector.metrics.Counter;
+import com.edgedetector.metrics.Histogram;
+import com.edgedetector.metrics.MetricsRegistry;
+import com.edgedetector.protocol.FrameMessage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Keeps the edge masks of the last few seconds in a fixed-size memory-mapped
+// ring file, so a glitch a viewer reports can be looked at afterwards. The
+// processing thread only copies the mask into one of a few preallocated
+// slots and queues it, without allocating; when no slot is free the frame is
+// skipped. A writer thread RLE-encodes it (the viewers' CODEC_RLE_1BPP) and
+// appends it to the ring as a complete FrameMessage, overwriting the oldest
+// frames. dump() freezes the ring and exports the frames of the last
+// `seconds` to a file of their own.
+//
+// Ring file, big-endian: a HEADER_BYTES header ("EDGEFLT1", u32 ring size,
+// u64 logical start of the oldest record, u64 logical end of the newest,
+// padding), then the ring. A record is a u32 length followed by that many
+// bytes of FrameMessage; a record that would cross the end of the ring
+// starts over at its beginning, after a u32 WRAP marker when there is room
+// for one. Logical positions grow without wrapping, the ring offset is
+// position % ring size. The header is updated around every record, so the
+// file stays readable if the app dies.
+//
+// Dump file: "EDGEFLD1", u32 frame count, then per frame a u32 length and
+// the FrameMessage, oldest first.
+public final class FlightRecorder {
+    private static final String TAG = "FlightRecorder";
+
+    private static final byte[] RING_MAGIC = "EDGEFLT1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DUMP_MAGIC = "EDGEFLD1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_BYTES = 32;
+    private static final int OLDEST_OFFSET = 12;
+    private static final int NEWEST_OFFSET = 20;
+    private static final int WRAP = 0xFFFFFFFF;
+    // One mask being written, one queued and spares for bursts
+    private static final int STAGING_SLOTS = 4;
+    // Index entries; bounds the frames held when they are small
+    private static final int MAX_FPS = 60;
+
+    // Called on the writer thread once a dump has been written or has failed
+    public interface DumpListener {
+        void onDumped(File file, int frames, long bytes, double seconds);
+
+        void onDumpFailed(String message);
+    }
+
+    // A mask waiting for the writer, or a dump request
+    private static final class Slot {
+        ByteBuffer mask;
+        int width;
+        int height;
+        long seq;
+        long timestamp;
+        File dumpFile;
+        DumpListener dumpListener;
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer ring;
+    private final int ringBytes;
+    private final long windowNanos;
+    private final ArrayBlockingQueue<Slot> free = new ArrayBlockingQueue<>(STAGING_SLOTS);
+    // One more than the slots, so a dump request always fits
+    private final ArrayBlockingQueue<Slot> filled = new ArrayBlockingQueue<>(STAGING_SLOTS + 1);
+    private final Slot dumpRequest = new Slot();
+    private final Thread writer;
+    // Set from dump() until the writer has exported the ring
+    private volatile boolean frozen;
+    private volatile boolean closed;
+
+    // Writer thread only: where each record in the ring starts, oldest first
+    private final long[] recordStart;
+    private final long[] recordTimestamp;
+    private int oldestRecord;
+    private int recordCount;
+    private long newest;
+    private ByteBuffer packed;
+    private ByteBuffer encoded;
+
+    private final Histogram recordLatency;
+    private final Histogram writeLatency;
+    private final Counter framesRecorded;
+    private final Counter framesSkipped;
+    private final Counter bytesRecorded;
+    private final Counter dumps;
+
+    // Packs `pixels` mask bytes at one bit per pixel into `packed` and
+    // run-length codes them into `out` (jni/mask_codec.h). Stateless, so the
+    // writer thread can call it while the pipeline runs. Returns the length,
+    // or -1 when a buffer is too small.
+    private static native int encodeMask(ByteBuffer mask, int pixels, ByteBuffer packed, ByteBuffer out);
+
+    // `ringBytes` bounds the file and the memory it maps; it should hold
+    // `seconds` of masks at the frame rate (RLE masks run ~10 KB at 640x480)
+    public FlightRecorder(File path, int seconds, int ringBytes, MetricsRegistry metrics) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        this.ring = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) ringBytes);
+        this.ringBytes = ringBytes;
+        this.windowNanos = seconds * 1_000_000_000L;
+        ring.put(RING_MAGIC);
+        ring.putInt(ringBytes);
+        recordStart = new long[seconds * MAX_FPS];
+        recordTimestamp = new long[seconds * MAX_FPS];
+        for (int i = 0; i < STAGING_SLOTS; i++) {
+            free.add(new Slot());
+        }
+        recordLatency = metrics.histogram("edge_stage_latency_seconds", "stage=\"flight_record\"",
+                "Time spent per frame in each pipeline stage");
+        writeLatency = metrics.histogram("edge_flight_recorder_write_seconds", null,
+                "Time the flight recorder's writer spends encoding and storing one mask");
+        framesRecorded = metrics.counter("edge_flight_recorder_frames_total", "Masks written to the flight recorder");
+        framesSkipped = metrics.counter("edge_flight_recorder_skipped_total",
+                "Masks not recorded because the writer was behind or a dump was running");
+        bytesRecorded = metrics.counter("edge_flight_recorder_bytes_total", "Bytes written to the flight recorder");
+        dumps = metrics.counter("edge_flight_recorder_dumps_total", "Flight recorder dumps exported");
+        metrics.gauge("edge_flight_recorder_ring_bytes", "Size of the flight recorder's ring", () -> ringBytes);
+        writer = new Thread(this::runWriter, "FlightRecorder");
+        writer.start();
+    }
+
+    // Processing thread. Copies the first width * height bytes of `mask`;
+    // its position and limit are left as they were.
+    public void record(ByteBuffer mask, int width, int height, long seq, long timestamp) {
+        long start = System.nanoTime();
+        Slot slot = frozen || closed ? null : free.poll();
+        if (slot == null) {
+            framesSkipped.inc();
+            return;
+        }
+        int pixels = width * height;
+        if (slot.mask == null || slot.mask.capacity() < pixels) {
+            // Only when the resolution grows, like the renderer's buffers
+            slot.mask = ByteBuffer.allocateDirect(pixels);
+        }
+        int position = mask.position();
+        int limit = mask.limit();
+        mask.limit(pixels).position(0);
+        slot.mask.clear();
+        slot.mask.put(mask);
+        mask.limit(limit).position(position);
+        slot.width = width;
+        slot.height = height;
+        slot.seq = seq;
+        slot.timestamp = timestamp;
+        filled.offer(slot);
+        recordLatency.observeNanos(System.nanoTime() - start);
+    }
+
+    // Freezes the ring and exports it to `out` on the writer thread. Returns
+    // false, without calling the listener, while another dump is running.
+    public synchronized boolean dump(File out, DumpListener listener) {
+        if (frozen || closed) {
+            return false;
+        }
+        frozen = true;
+        dumpRequest.dumpFile = out;
+        dumpRequest.dumpListener = listener;
+        filled.offer(dumpRequest);
+        return true;
+    }
+
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join();
+            file.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the ring", e);
+        }
+    }
+
+    private void runWriter() {
+        while (!closed) {
+            Slot slot;
+            try {
+                slot = filled.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (slot == dumpRequest) {
+                export(slot.dumpFile, slot.dumpListener);
+                frozen = false;
+                continue;
+            }
+            long start = System.nanoTime();
+            append(slot);
+            free.offer(slot);
+            writeLatency.observeNanos(System.nanoTime() - start);
+        }
+    }
+
+    private void append(Slot slot) {
+        int pixels = slot.width * slot.height;
+        int packedBytes = (pixels + 7) / 8;
+        if (packed == null || packed.capacity() < packedBytes) {
+            packed = ByteBuffer.allocateDirect(packedBytes);
+            // Alternating zero and literal bytes cost 1.5x; leave room beyond
+            encoded = ByteBuffer.allocateDirect(packedBytes * 2 + 16);
+        }
+        int length = encodeMask(slot.mask, pixels, packed, encoded);
+        int recordBytes = 4 + FrameMessage.HEADER_SIZE + length;
+        if (length < 0 || recordBytes > ringBytes) {
+            framesSkipped.inc();
+            return;
+        }
+        long start = newest;
+        int offset = (int) (start % ringBytes);
+        if (offset + recordBytes > ringBytes) {
+            if (ringBytes - offset >= 4) {
+                ring.putInt(HEADER_BYTES + offset, WRAP);
+            }
+            start += ringBytes - offset;
+            offset = 0;
+        }
+        long end = start + recordBytes;
+        // Forget the records about to be overwritten before touching them
+        while (recordCount > 0 && (recordStart[oldestRecord] < end - ringBytes
+                || recordCount == recordStart.length)) {
+            oldestRecord = (oldestRecord + 1) % recordStart.length;
+            recordCount--;
+        }
+        ring.putLong(OLDEST_OFFSET, recordCount > 0 ? recordStart[oldestRecord] : start);
+
+        ring.position(HEADER_BYTES + offset);
+        ring.putInt(FrameMessage.HEADER_SIZE + length);
+        FrameMessage.writeHeader(ring, FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_RLE_1BPP, slot.seq, slot.timestamp, slot.width, slot.height, length);
+        encoded.limit(length).position(0);
+        ring.put(encoded);
+        encoded.clear();
+
+        int index = (oldestRecord + recordCount) % recordStart.length;
+        recordStart[index] = start;
+        recordTimestamp[index] = slot.timestamp;
+        recordCount++;
+        newest = end;
+        ring.putLong(NEWEST_OFFSET, newest);
+        framesRecorded.inc();
+        bytesRecorded.add(recordBytes);
+    }
+
+    // Writer thread, with the ring frozen: the records of the last `seconds`
+    // before the newest one, oldest first
+    private void export(File out, DumpListener listener) {
+        if (recordCount == 0) {
+            listener.onDumpFailed("Nothing recorded yet");
+            return;
+        }
+        int newestIndex = (oldestRecord + recordCount - 1) % recordStart.length;
+        long cutoff = recordTimestamp[newestIndex] - windowNanos;
+        int first = 0;
+        while (first < recordCount - 1
+                && recordTimestamp[(oldestRecord + first) % recordStart.length] < cutoff) {
+            first++;
+        }
+        int frames = recordCount - first;
+        long bytes = 0;
+        try (FileOutputStream stream = new FileOutputStream(out)) {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(DUMP_MAGIC.length + 4);
+            header.put(DUMP_MAGIC).putInt(frames).flip();
+            bytes += channel.write(header);
+            for (int i = first; i < recordCount; i++) {
+                int offset = HEADER_BYTES + (int) (recordStart[(oldestRecord + i) % recordStart.length] % ringBytes);
+                ByteBuffer record = ring.duplicate();
+                record.limit(offset + 4 + ring.getInt(offset)).position(offset);
+                while (record.hasRemaining()) {
+                    bytes += channel.write(record);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export the ring", e);
+            listener.onDumpFailed(e.getMessage());
+            return;
+        }
+        dumps.inc();
+        double seconds = (recordTimestamp[newestIndex]
+                - recordTimestamp[(oldestRecord + first) % recordStart.length]) / 1e9;
+        Log.i(TAG, "Exported " + frames + " frames (" + bytes + " bytes, " + String.format("%.1f", seconds)
+                + " s) to " + out);
+        listener.onDumped(out, frames, bytes, seconds);
+    }
+}
@@ -0,0 +1,135 @@
+package com.edgedetector;
+
+import android.util.Log;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs frame processing on one dedicated thread behind a single pending slot.
+// Producers (camera callbacks) never block: a frame submitted while an older one
+// is still waiting replaces it, and the replaced frame is closed and counted as
+// dropped. The worker therefore always picks up the newest frame available.
+public class FrameProcessor<T extends AutoCloseable> {
+    private static final String TAG = "FrameProcessor";
+
+    public interface Handler<T> {
+        void process(T frame);
+    }
+
+    private final Handler<T> handler;
+    private final AtomicReference<T> pending = new AtomicReference<>();
+    private final Semaphore available = new Semaphore(0);
+    private final AtomicLong submittedFrames = new AtomicLong();
+    private final AtomicLong processedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    // Held while a frame is being processed so flush() can wait for it
+    private final Object processLock = new Object();
+    private final Thread worker;
+    private volatile boolean running;
+
+    public FrameProcessor(String name, Handler<T> handler) {
+        this.handler = handler;
+        this.worker = new Thread(this::runLoop, name);
+    }
+
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    // Hands a frame to the worker. Ownership moves to the processor, which
+    // closes the frame once it has been processed or dropped.
+    public void submit(T frame) {
+        if (!running) {
+            closeQuietly(frame);
+            return;
+        }
+        submittedFrames.incrementAndGet();
+        T replaced = pending.getAndSet(frame);
+        if (replaced != null) {
+            droppedFrames.incrementAndGet();
+            closeQuietly(replaced);
+        }
+        // A stop() since the check above may already have drained the slot;
+        // take the frame back unless stop() got to it
+        if (!running) {
+            if (pending.compareAndSet(frame, null)) {
+                closeQuietly(frame);
+            }
+            return;
+        }
+        available.release();
+    }
+
+    // Stops the worker and waits for the frame in flight to finish.
+    public void stop() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        T leftover = pending.getAndSet(null);
+        if (leftover != null) {
+            closeQuietly(leftover);
+        }
+    }
+
+    // Drops the pending frame and waits for the one in flight, if any. Call it
+    // before closing the source the frames came from (e.g. an ImageReader).
+    public void flush() {
+        synchronized (processLock) {
+            T leftover = pending.getAndSet(null);
+            if (leftover != null) {
+                droppedFrames.incrementAndGet();
+                closeQuietly(leftover);
+            }
+        }
+    }
+
+    public long getSubmittedFrames() {
+        return submittedFrames.get();
+    }
+
+    public long getProcessedFrames() {
+        return processedFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                available.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            synchronized (processLock) {
+                // Permits can outnumber frames when several submits were coalesced
+                T frame = pending.getAndSet(null);
+                if (frame == null) {
+                    continue;
+                }
+                try {
+                    handler.process(frame);
+                    processedFrames.incrementAndGet();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Frame processing failed", e);
+                } finally {
+                    closeQuietly(frame);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable frame) {
+        try {
+            frame.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to close frame", e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.edgedetector;
+
+import android.os.Build;
+import android.os.Trace;
+
+// Named systrace/Perfetto sections for the frame pipeline. From API 29 every
+// section name carries the frame sequence number ("canny #42") so a single
+// frame can be followed across the camera, processing and GL threads; native
+// stages use the same naming through jni/trace.h. The whole frame lifetime,
+// from acquire until its image is closed, is also emitted as an async
+// "frame" slice.
+public final class FrameTrace {
+    public static final String ACQUIRE = "acquire";
+    public static final String PROCESS = "process";
+    public static final String ENCODE = "encode";
+    public static final String GL_UPLOAD = "glUpload";
+    public static final String DRAW = "draw";
+    public static final String BROADCAST = "broadcast";
+
+    private static final String FRAME = "frame";
+
+    private FrameTrace() {
+    }
+
+    // Trace.isEnabled() only exists from API 29
+    private static final boolean CAN_ASK = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+
+    // False before API 29, where there is no way to ask
+    public static boolean isEnabled() {
+        return CAN_ASK && Trace.isEnabled();
+    }
+
+    // Before API 29 sections go out under the bare stage name, so nothing is
+    // built per frame while no trace is running
+    public static void begin(String stage, long seq) {
+        if (!CAN_ASK) {
+            Trace.beginSection(stage);
+        } else if (Trace.isEnabled()) {
+            Trace.beginSection(stage + " #" + seq);
+        }
+    }
+
+    // Same condition as begin(); a trace that starts in between only sees
+    // an unmatched end, which the trace processors ignore
+    public static void end() {
+        if (!CAN_ASK || Trace.isEnabled()) {
+            Trace.endSection();
+        }
+    }
+
+    public static void beginFrame(long seq) {
+        if (isEnabled()) {
+            Trace.beginAsyncSection(FRAME, (int) seq);
+        }
+    }
+
+    public static void endFrame(long seq) {
+        if (isEnabled()) {
+            Trace.endAsyncSection(FRAME, (int) seq);
+        }
+    }
+}
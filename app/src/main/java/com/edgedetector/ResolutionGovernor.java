@@ -0,0 +1,199 @@
+package com.edgedetector;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Picks the capture size and AE frame-rate range from what the camera offers
+// and steps them to hold a target frame rate. Processing latency is kept in a
+// moving window; once its 90th percentile eats most of the frame budget the
+// governor steps down (resolution first, then frame rate), and it only steps
+// back up when the latency predicted for the next level still leaves clear
+// headroom for a sustained period. The gap between the two thresholds plus the
+// hold period keeps it from oscillating between neighbouring levels.
+public class ResolutionGovernor {
+    private static final String TAG = "ResolutionGovernor";
+
+    private static final int WINDOW_FRAMES = 30;
+    // Step down when p90 latency exceeds this share of the frame budget
+    private static final double DOWN_THRESHOLD = 0.9;
+    // Step up only when the predicted p90 at the next level stays below this share
+    private static final double UP_THRESHOLD = 0.6;
+    private static final int UP_HOLD_FRAMES = 90;
+
+    // Bounds for candidate sizes; anything larger costs more than it shows
+    private static final int MIN_PIXELS = 320 * 240;
+    private static final int MAX_PIXELS = 1920 * 1440;
+
+    private final List<Size> sizes;
+    private final List<Range<Integer>> fpsRanges;
+    private final int targetFpsIndex;
+    private final long[] window = new long[WINDOW_FRAMES];
+    private final long[] sorted = new long[WINDOW_FRAMES];
+    private int windowCount;
+    private int windowNext;
+    private int healthyFrames;
+    private int sizeIndex;
+    private int fpsIndex;
+
+    // `sizes` ascending by area, `fpsRanges` ascending by upper bound
+    public ResolutionGovernor(List<Size> sizes, List<Range<Integer>> fpsRanges, int targetFps, Size preferredSize) {
+        if (sizes.isEmpty() || fpsRanges.isEmpty()) {
+            throw new IllegalArgumentException("No capture sizes or frame rates to choose from");
+        }
+        this.sizes = sizes;
+        this.fpsRanges = fpsRanges;
+
+        int fps = 0;
+        for (int i = 0; i < fpsRanges.size(); i++) {
+            if (fpsRanges.get(i).getUpper() <= targetFps) {
+                fps = i;
+            }
+        }
+        targetFpsIndex = fps;
+        fpsIndex = fps;
+
+        // Start at the largest size that does not exceed the preferred one
+        int preferredArea = preferredSize.getWidth() * preferredSize.getHeight();
+        sizeIndex = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            if (area(sizes.get(i)) <= preferredArea) {
+                sizeIndex = i;
+            }
+        }
+    }
+
+    // Builds a governor from the YUV_420_888 output sizes with the same aspect
+    // ratio as `preferredSize` and the camera's AE target frame-rate ranges.
+    public static ResolutionGovernor fromCharacteristics(CameraCharacteristics characteristics,
+            int targetFps, Size preferredSize) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] outputSizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+
+        List<Size> sizes = new ArrayList<>();
+        if (outputSizes != null) {
+            for (Size size : outputSizes) {
+                int pixels = area(size);
+                boolean sameAspect = (long) size.getWidth() * preferredSize.getHeight()
+                        == (long) size.getHeight() * preferredSize.getWidth();
+                if (sameAspect && pixels >= MIN_PIXELS && pixels <= MAX_PIXELS) {
+                    sizes.add(size);
+                }
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(preferredSize);
+        }
+        Collections.sort(sizes, (a, b) -> Integer.compare(area(a), area(b)));
+
+        // One range per upper bound, preferring the highest lower bound so the
+        // frame rate stays close to the chosen level instead of sagging in low light
+        Range<Integer>[] available = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        List<Range<Integer>> fpsRanges = new ArrayList<>();
+        if (available != null) {
+            Range<Integer>[] ranges = available.clone();
+            Arrays.sort(ranges, (a, b) -> a.getUpper().equals(b.getUpper())
+                    ? Integer.compare(b.getLower(), a.getLower())
+                    : Integer.compare(a.getUpper(), b.getUpper()));
+            for (Range<Integer> range : ranges) {
+                if (fpsRanges.isEmpty() || !fpsRanges.get(fpsRanges.size() - 1).getUpper().equals(range.getUpper())) {
+                    fpsRanges.add(range);
+                }
+            }
+        }
+        if (fpsRanges.isEmpty()) {
+            fpsRanges.add(new Range<>(targetFps, targetFps));
+        }
+        return new ResolutionGovernor(sizes, fpsRanges, targetFps, preferredSize);
+    }
+
+    public synchronized Size getSize() {
+        return sizes.get(sizeIndex);
+    }
+
+    public synchronized Range<Integer> getFpsRange() {
+        return fpsRanges.get(fpsIndex);
+    }
+
+    // Records the processing latency of one frame. Returns true when the size
+    // or frame-rate range changed and the capture session should be updated.
+    public synchronized boolean onFrameProcessed(long latencyNanos) {
+        window[windowNext] = latencyNanos;
+        windowNext = (windowNext + 1) % WINDOW_FRAMES;
+        if (windowCount < WINDOW_FRAMES) {
+            windowCount++;
+            return false;
+        }
+
+        long p90 = percentile90();
+        double budget = frameBudgetNanos(fpsIndex);
+        if (p90 > budget * DOWN_THRESHOLD) {
+            healthyFrames = 0;
+            if (sizeIndex > 0) {
+                sizeIndex--;
+            } else if (fpsIndex > 0) {
+                fpsIndex--;
+            } else {
+                return false;
+            }
+            return changed("down", p90);
+        }
+
+        // Recover frame rate before resolution; a level is only worth taking
+        // when the latency scaled to it still fits comfortably
+        boolean canStepUp;
+        if (fpsIndex < targetFpsIndex) {
+            canStepUp = p90 < frameBudgetNanos(fpsIndex + 1) * UP_THRESHOLD;
+        } else if (sizeIndex < sizes.size() - 1) {
+            double scale = (double) area(sizes.get(sizeIndex + 1)) / area(sizes.get(sizeIndex));
+            canStepUp = p90 * scale < budget * UP_THRESHOLD;
+        } else {
+            canStepUp = false;
+        }
+        if (!canStepUp) {
+            healthyFrames = 0;
+            return false;
+        }
+        if (++healthyFrames < UP_HOLD_FRAMES) {
+            return false;
+        }
+        healthyFrames = 0;
+        if (fpsIndex < targetFpsIndex) {
+            fpsIndex++;
+        } else {
+            sizeIndex++;
+        }
+        return changed("up", p90);
+    }
+
+    private boolean changed(String direction, long p90) {
+        // Latencies measured at the old level say nothing about the new one
+        windowCount = 0;
+        windowNext = 0;
+        Size size = sizes.get(sizeIndex);
+        Log.i(TAG, "Stepping " + direction + " to " + size.getWidth() + "x" + size.getHeight()
+                + " @ " + fpsRanges.get(fpsIndex) + " fps (p90 " + (p90 / 1000) + " us)");
+        return true;
+    }
+
+    private long percentile90() {
+        System.arraycopy(window, 0, sorted, 0, WINDOW_FRAMES);
+        Arrays.sort(sorted);
+        return sorted[(WINDOW_FRAMES * 9) / 10];
+    }
+
+    private double frameBudgetNanos(int index) {
+        return 1e9 / fpsRanges.get(index).getUpper();
+    }
+
+    private static int area(Size size) {
+        return size.getWidth() * size.getHeight();
+    }
+}
@@ -13,6 +13,7 @@ public class TestActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AndroidServerLog.install();
         
         TextView textView = new TextView(this);
         setContentView(textView);
@@ -30,6 +30,7 @@ public class TestWebSocketActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        AndroidServerLog.install();
         setContentView(R.layout.activity_test_websocket);
         
         // Initialize views
@@ -0,0 +1,64 @@
+package com.edgedetector.capture;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.view.Surface;
+import com.edgedetector.CameraFrame;
+import com.edgedetector.FrameTrace;
+
+// Camera2 frames through an ImageReader. The capture session targets
+// getSurface(); image callbacks run on `handler`'s thread and only acquire
+// the image and hand it off.
+public final class Camera2FrameSource implements FrameSource {
+    // One image being processed, one waiting in the processor slot and one
+    // being acquired
+    private static final int MAX_IMAGES = 3;
+
+    private final ImageReader reader;
+    private final Handler handler;
+
+    public Camera2FrameSource(int width, int height, Handler handler) {
+        this.reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_IMAGES);
+        this.handler = handler;
+    }
+
+    public Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    @Override
+    public void start(Listener listener) {
+        reader.setOnImageAvailableListener(r -> {
+            long seq = CameraFrame.nextSeq();
+            FrameTrace.beginFrame(seq);
+            FrameTrace.begin(FrameTrace.ACQUIRE, seq);
+            Image image;
+            try {
+                image = r.acquireNextImage();
+            } catch (IllegalStateException e) {
+                image = null;
+            } finally {
+                FrameTrace.end();
+            }
+            if (image != null) {
+                listener.onFrame(new CameraFrame(image, seq));
+            } else {
+                FrameTrace.endFrame(seq);
+            }
+        }, handler);
+    }
+
+    // Image callbacks run on the handler's thread, so call this there for the
+    // guarantee that no callback is still in flight
+    @Override
+    public void stop() {
+        reader.setOnImageAvailableListener(null, null);
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+}
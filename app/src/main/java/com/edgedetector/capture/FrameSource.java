@@ -0,0 +1,23 @@
+package com.edgedetector.capture;
+
+import com.edgedetector.CameraFrame;
+
+// Where the frames the pipeline processes come from: the camera, or a
+// recording replayed for reproducible runs (see ReplayFrameSource). A source
+// hands each frame to its listener on a thread of its own; ownership moves
+// with it, and whoever ends up with the frame closes it.
+public interface FrameSource {
+    interface Listener {
+        void onFrame(CameraFrame frame);
+    }
+
+    void start(Listener listener);
+
+    // Returns once the listener will not be called again. Frames already
+    // handed out stay valid until close().
+    void stop();
+
+    // Releases the buffers behind the frames; call it once the frames handed
+    // out are closed (FrameProcessor.flush() waits for that)
+    void close();
+}
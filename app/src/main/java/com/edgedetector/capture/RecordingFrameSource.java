@@ -0,0 +1,34 @@
+package com.edgedetector.capture;
+
+import com.edgedetector.CameraFrame;
+
+// Passes another source's frames on after writing each one to a recorder.
+// The recorder outlives the source, so one recording can span several
+// camera sessions; closing this source leaves the recorder open.
+public final class RecordingFrameSource implements FrameSource {
+    private final FrameSource source;
+    private final YuvRecorder recorder;
+
+    public RecordingFrameSource(FrameSource source, YuvRecorder recorder) {
+        this.source = source;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        source.start(frame -> {
+            recorder.write(frame);
+            listener.onFrame(frame);
+        });
+    }
+
+    @Override
+    public void stop() {
+        source.stop();
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+}
@@ -0,0 +1,206 @@
+package com.edgedetector.capture;
+
+import android.util.Log;
+import com.edgedetector.CameraFrame;
+import com.edgedetector.FrameTrace;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+// Plays a YuvRecorder file back on a thread of its own. Frames are NV21
+// views straight into the mapped file, so nothing is copied. In real-time
+// mode each frame is due at its recorded offset from the first one, and a
+// consumer that falls behind drops frames as it would with the camera. At
+// maximum speed the next frame goes out as soon as the previous one is
+// closed, so every frame is processed exactly once, in order: the same
+// recording gives the same output on every run. Looping replays restart with
+// timestamps that keep increasing, for soak tests.
+public final class ReplayFrameSource implements FrameSource {
+    private static final String TAG = "ReplayFrameSource";
+    // Spacing used when the recording has a single frame
+    private static final long DEFAULT_FRAME_INTERVAL_NANOS = 33_333_333L;
+    private static final Runnable NO_RELEASE = () -> { };
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean realTime;
+    private final boolean loop;
+    private final Runnable onFinished;
+    private final int width;
+    private final int height;
+    private final int frameBytes;
+    private final int frameCount;
+    // Released when a delivered frame is closed; only waited on at maximum speed
+    private final Semaphore released = new Semaphore(1);
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long deliveredFrames;
+
+    // `onFinished`, if set, runs on the replay thread after the last frame of
+    // a replay that does not loop
+    public ReplayFrameSource(File path, boolean realTime, boolean loop, Runnable onFinished) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        this.realTime = realTime;
+        this.loop = loop;
+        this.onFinished = onFinished;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(channel.size(), YuvRecorder.HEADER_BYTES));
+        byte[] magic = new byte[YuvRecorder.MAGIC.length];
+        if (header.remaining() < YuvRecorder.HEADER_BYTES) {
+            file.close();
+            throw new IOException(path + " is not a frame recording");
+        }
+        header.get(magic);
+        width = header.getInt();
+        height = header.getInt();
+        if (!Arrays.equals(magic, YuvRecorder.MAGIC) || width <= 0 || height <= 0) {
+            file.close();
+            throw new IOException(path + " is not a frame recording");
+        }
+        frameBytes = YuvRecorder.frameBytes(width, height);
+        // A file cut short holds fewer whole frames than its header claims
+        long stored = (channel.size() - YuvRecorder.HEADER_BYTES) / frameBytes;
+        frameCount = (int) Math.min(header.getInt(YuvRecorder.FRAME_COUNT_OFFSET), stored);
+        if (frameCount <= 0) {
+            file.close();
+            throw new IOException(path + " holds no frames");
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        running = true;
+        thread = new Thread(() -> replay(listener), "FrameReplay");
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    // Frames still held keep their mapping alive after the file is closed
+    @Override
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the recording", e);
+        }
+    }
+
+    private void replay(Listener listener) {
+        try {
+            long first = timestampAt(map(0), 0);
+            long last = timestampAt(segmentFor(frameCount - 1), (frameCount - 1) % YuvRecorder.SEGMENT_FRAMES);
+            long period = frameCount > 1
+                    ? (last - first) + (last - first) / (frameCount - 1) : DEFAULT_FRAME_INTERVAL_NANOS;
+            long started = System.nanoTime();
+            long passStart = started;
+            for (long pass = 0; running; pass++) {
+                MappedByteBuffer segment = null;
+                for (int index = 0; index < frameCount && running; index++) {
+                    int slot = index % YuvRecorder.SEGMENT_FRAMES;
+                    if (slot == 0) {
+                        segment = map(index);
+                    }
+                    long offset = timestampAt(segment, slot) - first;
+                    if (realTime) {
+                        long wait = passStart + offset - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                        }
+                    } else {
+                        released.acquire();
+                    }
+                    listener.onFrame(frameAt(segment, slot, first + pass * period + offset));
+                    deliveredFrames++;
+                }
+                if (!loop) {
+                    break;
+                }
+                passStart += period;
+            }
+            if (!realTime) {
+                // Until the last frame is closed it is still being processed
+                released.acquire();
+                released.release();
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+            Log.i(TAG, String.format("Replayed %d frames of %dx%d in %.1f s (%.1f fps)", deliveredFrames, width,
+                    height, seconds, deliveredFrames / seconds));
+            if (running && onFinished != null) {
+                onFinished.run();
+            }
+        } catch (InterruptedException e) {
+            // stop()
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the recording", e);
+        }
+    }
+
+    // Maps the segment starting at frame `index`, as the recorder wrote it
+    private MappedByteBuffer map(int index) throws IOException {
+        int frames = Math.min(YuvRecorder.SEGMENT_FRAMES, frameCount - index);
+        return channel.map(FileChannel.MapMode.READ_ONLY, YuvRecorder.HEADER_BYTES + (long) index * frameBytes,
+                (long) frames * frameBytes);
+    }
+
+    private MappedByteBuffer segmentFor(int index) throws IOException {
+        return map(index - index % YuvRecorder.SEGMENT_FRAMES);
+    }
+
+    private long timestampAt(ByteBuffer segment, int slot) {
+        return segment.getLong(slot * frameBytes);
+    }
+
+    private CameraFrame frameAt(MappedByteBuffer segment, int slot, long timestamp) {
+        long seq = CameraFrame.nextSeq();
+        FrameTrace.beginFrame(seq);
+        int luma = width * height;
+        int base = slot * frameBytes + 8;
+        ByteBuffer y = view(segment, base, luma);
+        // NV21: V first, U one byte behind, both with a pixel stride of 2
+        ByteBuffer v = view(segment, base + luma, luma / 2);
+        ByteBuffer u = view(segment, base + luma + 1, luma / 2 - 1);
+        return new CameraFrame(seq, timestamp, width, height, y, u, v, width, width, 2,
+                realTime ? NO_RELEASE : released::release);
+    }
+
+    private static ByteBuffer view(ByteBuffer segment, int offset, int length) {
+        ByteBuffer view = segment.duplicate();
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+}
@@ -0,0 +1,149 @@
+package com.edgedetector.capture;
+
+import android.util.Log;
+import com.edgedetector.CameraFrame;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Writes frames to a memory-mapped recording file that ReplayFrameSource
+// plays back and jni/bench/pipeline_regress reads as a corpus. All fields are
+// big-endian:
+//   header (HEADER_BYTES): "EDGEYUV1", u32 width, u32 height, u32 frameCount,
+//   zero padding
+//   per frame: i64 timestamp (ns), width * height bytes of Y, then
+//   width * height / 2 bytes of interleaved V and U (NV21), no padding
+// The file is mapped SEGMENT_FRAMES frames at a time and the frame count is
+// updated after every frame, so a recording cut short by a crash still
+// replays up to its last whole frame. Frames of another size than the first
+// one, and frames past `maxFrames`, are skipped.
+public final class YuvRecorder {
+    private static final String TAG = "YuvRecorder";
+
+    static final byte[] MAGIC = "EDGEYUV1".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_BYTES = 32;
+    static final int FRAME_COUNT_OFFSET = 16;
+    static final int SEGMENT_FRAMES = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int maxFrames;
+    private MappedByteBuffer header;
+    private MappedByteBuffer segment;
+    private int width;
+    private int height;
+    private int frameBytes;
+    private int frameCount;
+    private long skippedFrames;
+    private boolean closed;
+
+    public YuvRecorder(File path, int maxFrames) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.maxFrames = maxFrames;
+        channel.truncate(0);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.put(MAGIC);
+    }
+
+    static int frameBytes(int width, int height) {
+        return 8 + width * height * 3 / 2;
+    }
+
+    // Copies the frame into the file. Runs on the source's thread before the
+    // frame is handed on, so the processing thread never waits for it.
+    public synchronized boolean write(CameraFrame frame) {
+        if (closed) {
+            return false;
+        }
+        if (width == 0) {
+            width = frame.getWidth();
+            height = frame.getHeight();
+            frameBytes = frameBytes(width, height);
+            header.putInt(MAGIC.length, width);
+            header.putInt(MAGIC.length + 4, height);
+        }
+        if (frame.getWidth() != width || frame.getHeight() != height || frameCount >= maxFrames) {
+            skippedFrames++;
+            return false;
+        }
+        try {
+            if (frameCount % SEGMENT_FRAMES == 0) {
+                int frames = Math.min(SEGMENT_FRAMES, maxFrames - frameCount);
+                segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + (long) frameCount * frameBytes, (long) frames * frameBytes);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to extend the recording, stopping", e);
+            closed = true;
+            return false;
+        }
+        segment.putLong(frame.getTimestamp());
+        copyLuma(frame);
+        copyChroma(frame);
+        frameCount++;
+        header.putInt(FRAME_COUNT_OFFSET, frameCount);
+        return true;
+    }
+
+    // Row by row, so a row stride wider than the image is dropped; the source
+    // buffer's position and limit are put back afterwards
+    private void copyLuma(CameraFrame frame) {
+        ByteBuffer y = frame.getYPlane();
+        int position = y.position();
+        int limit = y.limit();
+        int stride = frame.getYRowStride();
+        for (int row = 0; row < height; row++) {
+            y.limit(row * stride + width).position(row * stride);
+            segment.put(y);
+        }
+        y.limit(limit).position(position);
+    }
+
+    // Camera2 only promises the strides, not how the U and V planes overlap,
+    // so chroma is gathered pixel by pixel into NV21 order
+    private void copyChroma(CameraFrame frame) {
+        ByteBuffer u = frame.getUPlane();
+        ByteBuffer v = frame.getVPlane();
+        int rowStride = frame.getUvRowStride();
+        int pixelStride = frame.getUvPixelStride();
+        for (int row = 0; row < height / 2; row++) {
+            int index = row * rowStride;
+            for (int col = 0; col < width / 2; col++, index += pixelStride) {
+                segment.put(v.get(index));
+                segment.put(u.get(index));
+            }
+        }
+    }
+
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    // Cuts the file after the last frame written
+    public synchronized void close() {
+        if (header == null) {
+            return;
+        }
+        closed = true;
+        header.force();
+        header = null;
+        segment = null;
+        try {
+            channel.truncate(HEADER_BYTES + (long) frameCount * frameBytes);
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to finish the recording", e);
+        }
+        Log.i(TAG, "Recorded " + frameCount + " frames of " + width + "x" + height
+                + (skippedFrames > 0 ? ", skipped " + skippedFrames : ""));
+    }
+}
@@ -1,13 +1,20 @@
 package com.edgedetector.gl;
 
+import android.graphics.Color;
+import android.graphics.SurfaceTexture;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLUtils;
+import com.edgedetector.FrameTrace;
+import com.edgedetector.metrics.Histogram;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -29,13 +36,154 @@ public class GLRenderer implements GLSurfaceView.Renderer {
             "  gl_FragColor = texture2D(sTexture, texCoord);" +
             "}";
 
+    // Composite pass: camera preview from an external (OES) texture with the
+    // edge mask blended over it, so the screen needs a single layer. The
+    // camera's SurfaceTexture transform works in bottom-up texture space,
+    // hence the flip before applying it. Edge masks (CPU upload or GPU pass)
+    // store rows in camera buffer order just like the external texture, so
+    // both are sampled through the same transform and stay aligned whatever
+    // rotation the camera applies to the preview.
+    private static final String COMPOSITE_VERTEX_SHADER_CODE =
+            "attribute vec4 vPosition;" +
+            "attribute vec2 vTexCoord;" +
+            "uniform mat4 uCameraMatrix;" +
+            "varying vec2 cameraCoord;" +
+            "void main() {" +
+            "  gl_Position = vPosition;" +
+            "  cameraCoord = (uCameraMatrix * vec4(vTexCoord.x, 1.0 - vTexCoord.y, 0.0, 1.0)).xy;" +
+            "}";
+
+    // All three blends are computed and selected; that is cheaper on mobile
+    // GPUs than branching and the pass is bandwidth bound anyway
+    private static final String COMPOSITE_FRAGMENT_SHADER_CODE =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;" +
+            "varying vec2 cameraCoord;" +
+            "uniform samplerExternalOES sCamera;" +
+            "uniform sampler2D sTexture;" +
+            "uniform vec3 uTint;" +
+            "uniform float uOpacity;" +
+            "uniform float uBlend;" +
+            "void main() {" +
+            "  vec3 camera = texture2D(sCamera, cameraCoord).rgb;" +
+            "  float edge = texture2D(sTexture, cameraCoord).r * uOpacity;" +
+            "  vec3 normal = mix(camera, uTint, edge);" +
+            "  vec3 added = min(camera + uTint * edge, 1.0);" +
+            "  vec3 screen = 1.0 - (1.0 - camera) * (1.0 - uTint * edge);" +
+            "  vec3 color = uBlend < 0.5 ? normal : (uBlend < 1.5 ? added : screen);" +
+            "  gl_FragColor = vec4(color, 1.0);" +
+            "}";
+
+    // Overlay blend modes for the composite pass
+    public static final int BLEND_NORMAL = 0;
+    public static final int BLEND_ADD = 1;
+    public static final int BLEND_SCREEN = 2;
+
+    // Receives the SurfaceTexture the camera should render into. Called on
+    // the GL thread whenever the surface (and with it the texture) is created.
+    public interface CameraTextureListener {
+        void onCameraTextureAvailable(SurfaceTexture texture);
+    }
+
+    // GPU edge mask read back for the network or for comparison with the CPU
+    // result: RGBA rows in camera buffer order, R = 255 on edges. `timestamp`
+    // is the camera frame's sensor timestamp, which matches Image.getTimestamp()
+    // of the same capture.
+    public static final class GpuMask {
+        ByteBuffer rgba;
+        int width;
+        int height;
+        long timestamp;
+
+        public ByteBuffer getRgba() {
+            return rgba;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    // One frame on its way to the GL thread: either a raw edge mask
+    // (width * height bytes) or a PNG-encoded frame.
+    private static final class FrameSlot {
+        ByteBuffer pixels;
+        byte[] encoded;
+        int width;
+        int height;
+        long seq;
+    }
+
     private int program;
     private int textureId;
+    private int positionHandle;
+    private int texCoordHandle;
+    private int textureHandle;
     private FloatBuffer vertexBuffer;
     private FloatBuffer textureBuffer;
-    private volatile byte[] frameData;
-    private int frameWidth = 640;
-    private int frameHeight = 480;
+
+    // Composite mode state; only used when a camera listener is set
+    private CameraTextureListener cameraTextureListener;
+    private SurfaceTexture.OnFrameAvailableListener cameraFrameListener;
+    private SurfaceTexture cameraTexture;
+    private int cameraTextureId;
+    private int compositeProgram;
+    private int compositePositionHandle;
+    private int compositeTexCoordHandle;
+    private int compositeCameraHandle;
+    private int compositeEdgesHandle;
+    private int cameraMatrixHandle;
+    private int tintHandle;
+    private int opacityHandle;
+    private int blendHandle;
+    private final float[] cameraMatrix = new float[16];
+    // Copy of the last camera transform drawn, for viewToFrame; replaced only
+    // when the transform changes
+    private volatile float[] displayedCameraMatrix;
+    private int surfaceWidth;
+    private int surfaceHeight;
+
+    // GPU edge backend (composite mode only). It runs once per new camera
+    // frame; `gpuDisplay` picks its mask over the uploaded CPU mask and
+    // readback hands masks to the processing thread
+    private GpuEdgeDetector gpuDetector;
+    private volatile boolean gpuEnabled;
+    private volatile boolean gpuDisplay;
+    private volatile boolean gpuReadback;
+    private volatile int processingWidth;
+    private volatile int processingHeight;
+    private int gpuTextureId;
+    private long gpuTimestamp = -1;
+    private final TripleBuffer<GpuMask> gpuMasks =
+            new TripleBuffer<>(new GpuMask(), new GpuMask(), new GpuMask());
+    private volatile int overlayBlend = BLEND_NORMAL;
+    private volatile int overlayTint = Color.GREEN;
+    private volatile float overlayOpacity = 1.0f;
+
+    // Frames move from the processing thread to the GL thread through a
+    // triple buffer, so publishing never waits on an upload or a decode
+    private final TripleBuffer<FrameSlot> frames =
+            new TripleBuffer<>(new FrameSlot(), new FrameSlot(), new FrameSlot());
+    private final AtomicLong framesDisplayed = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+    private volatile Histogram uploadLatency;
+
+    // Texture storage is specified once per size and format and then updated
+    // in place; 0 means nothing has been allocated for this surface yet
+    private int textureWidth;
+    private int textureHeight;
+    private int textureFormat;
+    private long displayedSeq;
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    private Bitmap decodeBitmap;
 
     // Quad vertices (2 triangles forming a rectangle)
     private static final float[] QUAD_VERTICES = {
@@ -56,7 +204,7 @@ public class GLRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
-        
+
         // Initialize buffers
         ByteBuffer bb = ByteBuffer.allocateDirect(QUAD_VERTICES.length * 4);
         bb.order(ByteOrder.nativeOrder());
@@ -78,75 +226,373 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         GLES20.glAttachShader(program, fragmentShader);
         GLES20.glLinkProgram(program);
 
-        // Generate texture
+        // Locations only change when the program is relinked
+        positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+        texCoordHandle = GLES20.glGetAttribLocation(program, "vTexCoord");
+        textureHandle = GLES20.glGetUniformLocation(program, "sTexture");
+
+        // Generate texture; its parameters stay fixed for the surface lifetime
         int[] textures = new int[1];
         GLES20.glGenTextures(1, textures, 0);
         textureId = textures[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        // Mask rows are tightly packed and need not be 4-byte aligned
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        // A new context starts without texture storage
+        textureWidth = 0;
+        textureHeight = 0;
+        textureFormat = 0;
+
+        if (cameraTextureListener != null) {
+            createCameraTexture();
+            if (gpuDetector != null) {
+                try {
+                    gpuDetector.init();
+                    if (!gpuDetector.isSupported()) {
+                        gpuDetector = null;
+                    }
+                } catch (java.io.IOException e) {
+                    android.util.Log.e("GLRenderer", "Failed to load edge shaders", e);
+                    gpuDetector = null;
+                }
+                gpuTimestamp = -1;
+            }
+        }
+    }
+
+    private void createCameraTexture() {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, COMPOSITE_VERTEX_SHADER_CODE);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, COMPOSITE_FRAGMENT_SHADER_CODE);
+        compositeProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(compositeProgram, vertexShader);
+        GLES20.glAttachShader(compositeProgram, fragmentShader);
+        GLES20.glLinkProgram(compositeProgram);
+        compositePositionHandle = GLES20.glGetAttribLocation(compositeProgram, "vPosition");
+        compositeTexCoordHandle = GLES20.glGetAttribLocation(compositeProgram, "vTexCoord");
+        compositeCameraHandle = GLES20.glGetUniformLocation(compositeProgram, "sCamera");
+        compositeEdgesHandle = GLES20.glGetUniformLocation(compositeProgram, "sTexture");
+        cameraMatrixHandle = GLES20.glGetUniformLocation(compositeProgram, "uCameraMatrix");
+        tintHandle = GLES20.glGetUniformLocation(compositeProgram, "uTint");
+        opacityHandle = GLES20.glGetUniformLocation(compositeProgram, "uOpacity");
+        blendHandle = GLES20.glGetUniformLocation(compositeProgram, "uBlend");
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        cameraTextureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        // The previous texture died with the old context
+        if (cameraTexture != null) {
+            cameraTexture.release();
+        }
+        cameraTexture = new SurfaceTexture(cameraTextureId);
+        cameraTexture.setOnFrameAvailableListener(cameraFrameListener);
+        android.opengl.Matrix.setIdentityM(cameraMatrix, 0);
+        cameraTextureListener.onCameraTextureAvailable(cameraTexture);
     }
 
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
+        surfaceWidth = width;
+        surfaceHeight = height;
         GLES20.glViewport(0, 0, width, height);
     }
 
     @Override
     public void onDrawFrame(GL10 unused) {
+        FrameSlot frame = frames.acquire();
+        if (frame != null) {
+            FrameTrace.begin(FrameTrace.GL_UPLOAD, frame.seq);
+            long start = System.nanoTime();
+            upload(frame);
+            Histogram latency = uploadLatency;
+            if (latency != null) {
+                latency.observeNanos(System.nanoTime() - start);
+            }
+            displayedSeq = frame.seq;
+            framesDisplayed.incrementAndGet();
+            FrameTrace.end();
+        }
+
+        FrameTrace.begin(FrameTrace.DRAW, displayedSeq);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        
-        if (frameData != null) {
-            updateTexture();
+        if (cameraTexture != null) {
+            drawComposite();
+            FrameTrace.end();
+            return;
         }
-        
         GLES20.glUseProgram(program);
-        
-        // Get attribute locations
-        int positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
-        int texCoordHandle = GLES20.glGetAttribLocation(program, "vTexCoord");
-        int textureHandle = GLES20.glGetUniformLocation(program, "sTexture");
-        
+
         // Enable vertex attributes
         GLES20.glEnableVertexAttribArray(positionHandle);
         GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 0, vertexBuffer);
-        
+
         GLES20.glEnableVertexAttribArray(texCoordHandle);
         GLES20.glVertexAttribPointer(texCoordHandle, 2, GLES20.GL_FLOAT, false, 0, textureBuffer);
-        
+
         // Bind texture
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
         GLES20.glUniform1i(textureHandle, 0);
-        
+
         // Draw the quad
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        
+
         // Disable vertex attributes
         GLES20.glDisableVertexAttribArray(positionHandle);
         GLES20.glDisableVertexAttribArray(texCoordHandle);
+        FrameTrace.end();
     }
 
-    public void updateFrame(byte[] data) {
-        synchronized(this) {
-            frameData = data;
+    private void drawComposite() {
+        // Latch the newest camera frame; a no-op when none arrived
+        cameraTexture.updateTexImage();
+        cameraTexture.getTransformMatrix(cameraMatrix);
+        float[] displayed = displayedCameraMatrix;
+        if (displayed == null || !Arrays.equals(displayed, cameraMatrix)) {
+            displayedCameraMatrix = cameraMatrix.clone();
+        }
+
+        int edgesTextureId = textureId;
+        if (gpuEnabled && gpuDetector != null) {
+            runGpuEdges();
+            if (gpuDisplay && gpuTextureId != 0) {
+                edgesTextureId = gpuTextureId;
+            }
         }
+
+        GLES20.glUseProgram(compositeProgram);
+        GLES20.glEnableVertexAttribArray(compositePositionHandle);
+        GLES20.glVertexAttribPointer(compositePositionHandle, 2, GLES20.GL_FLOAT, false, 0, vertexBuffer);
+        GLES20.glEnableVertexAttribArray(compositeTexCoordHandle);
+        GLES20.glVertexAttribPointer(compositeTexCoordHandle, 2, GLES20.GL_FLOAT, false, 0, textureBuffer);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, edgesTextureId);
+        GLES20.glUniform1i(compositeEdgesHandle, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+        GLES20.glUniform1i(compositeCameraHandle, 1);
+
+        int tint = overlayTint;
+        GLES20.glUniformMatrix4fv(cameraMatrixHandle, 1, false, cameraMatrix, 0);
+        GLES20.glUniform3f(tintHandle, Color.red(tint) / 255f, Color.green(tint) / 255f, Color.blue(tint) / 255f);
+        GLES20.glUniform1f(opacityHandle, overlayOpacity);
+        GLES20.glUniform1f(blendHandle, overlayBlend);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLES20.glDisableVertexAttribArray(compositePositionHandle);
+        GLES20.glDisableVertexAttribArray(compositeTexCoordHandle);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     }
 
-    private void updateTexture() {
-        if (frameData == null) return;
-        
-        synchronized(this) {
-            try {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(frameData, 0, frameData.length);
-                if (bitmap != null) {
-                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-                    bitmap.recycle();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void runGpuEdges() {
+        long timestamp = cameraTexture.getTimestamp();
+        int width = processingWidth;
+        int height = processingHeight;
+        if (timestamp == gpuTimestamp || width <= 0 || height <= 0) {
+            return;
+        }
+        gpuTimestamp = timestamp;
+        gpuTextureId = gpuDetector.process(cameraTextureId, width, height);
+        if (gpuReadback) {
+            GpuMask mask = gpuMasks.writeSlot();
+            int size = width * height * 4;
+            if (mask.rgba == null || mask.rgba.capacity() < size) {
+                mask.rgba = ByteBuffer.allocateDirect(size);
             }
+            gpuDetector.readMask(mask.rgba);
+            mask.width = width;
+            mask.height = height;
+            mask.timestamp = timestamp;
+            gpuMasks.publish();
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+    }
+
+    // Installs the GPU edge backend. Only used in composite mode, and must be
+    // set before the renderer is attached to its view.
+    public void setGpuDetector(GpuEdgeDetector detector) {
+        gpuDetector = detector;
+    }
+
+    // Runs the GPU passes on every camera frame at the given size (the CPU
+    // pipeline size, so masks are comparable); `display` shows the GPU mask
+    // instead of the CPU one
+    public void setGpuEdges(boolean enabled, boolean display, int width, int height) {
+        processingWidth = width;
+        processingHeight = height;
+        gpuDisplay = display;
+        gpuEnabled = enabled;
+    }
+
+    public void setGpuReadback(boolean readback) {
+        gpuReadback = readback;
+    }
+
+    // Consumer side of the readback, called from a single thread: the newest
+    // GPU mask, or null when none arrived since the last call. Valid until
+    // the next call.
+    public GpuMask acquireGpuMask() {
+        return gpuMasks.acquire();
+    }
+
+    // Switches the renderer to composite mode: it owns the camera preview
+    // texture and draws preview and edges in one pass. Must be called before
+    // the renderer is attached to its view. `frameListener` should request a
+    // render, since the view only draws on demand.
+    public void setCameraPreview(CameraTextureListener listener,
+            SurfaceTexture.OnFrameAvailableListener frameListener) {
+        cameraTextureListener = listener;
+        cameraFrameListener = frameListener;
+    }
+
+    // Maps a point of the view (0-1 from its top left) to where it falls in
+    // the camera frame as drawn (0-1 from the first pixel of the first row),
+    // so a touch can be matched to the mask whatever rotation or mirroring
+    // the preview applies. Safe from any thread.
+    public void viewToFrame(float x, float y, float[] out) {
+        float[] matrix = displayedCameraMatrix;
+        if (matrix == null) {
+            // The mask is stretched over the view as is
+            out[0] = x;
+            out[1] = y;
+            return;
+        }
+        // The composite vertex shader's transform; the matrix is column-major
+        float flipped = 1.0f - y;
+        out[0] = matrix[0] * x + matrix[4] * flipped + matrix[12];
+        out[1] = matrix[1] * x + matrix[5] * flipped + matrix[13];
+    }
+
+    // Overlay look in composite mode: one of the BLEND_ modes, an RGB tint
+    // (alpha ignored) and an opacity from 0 to 1
+    public void setOverlayStyle(int blendMode, int tintColor, float opacity) {
+        overlayBlend = blendMode;
+        overlayTint = tintColor;
+        overlayOpacity = Math.max(0f, Math.min(1f, opacity));
+    }
+
+    // Records how long texture uploads (including PNG decode) take
+    public void setUploadLatency(Histogram histogram) {
+        uploadLatency = histogram;
+    }
+
+    // Frames that reached a texture, and frames replaced in the handoff
+    // before the GL thread got to them
+    public long getFramesDisplayed() {
+        return framesDisplayed.get();
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    // Producer side, called from a single thread. beginFrame() returns a
+    // buffer of at least width * height bytes that the caller (or native code)
+    // fills with the edge mask; publishMask() then hands it to the GL thread.
+    // The buffer must not be touched after publishing. It is only reallocated
+    // when the resolution grows.
+    public ByteBuffer beginFrame(int width, int height) {
+        FrameSlot slot = frames.writeSlot();
+        int size = width * height;
+        if (slot.pixels == null || slot.pixels.capacity() < size) {
+            slot.pixels = ByteBuffer.allocateDirect(size);
+        }
+        slot.width = width;
+        slot.height = height;
+        slot.encoded = null;
+        return slot.pixels;
+    }
+
+    public void publishMask(long seq) {
+        frames.writeSlot().seq = seq;
+        if (frames.publish()) {
+            framesSkipped.incrementAndGet();
+        }
+    }
+
+    // Hands a PNG-encoded frame to the GL thread, which decodes it before
+    // uploading; only used to compare against the raw path
+    public void publishEncoded(byte[] data, int width, int height, long seq) {
+        FrameSlot slot = frames.writeSlot();
+        slot.encoded = data;
+        slot.width = width;
+        slot.height = height;
+        slot.seq = seq;
+        if (frames.publish()) {
+            framesSkipped.incrementAndGet();
+        }
+    }
+
+    private void upload(FrameSlot frame) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        if (frame.encoded != null) {
+            uploadEncoded(frame);
+            return;
+        }
+        frame.pixels.clear();
+        if (!hasStorage(frame.width, frame.height, GLES20.GL_LUMINANCE)) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, frame.width, frame.height, 0,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, frame.pixels);
+            return;
+        }
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, frame.width, frame.height,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, frame.pixels);
+    }
+
+    private void uploadEncoded(FrameSlot frame) {
+        // Decode into the previous bitmap when the size allows, so steady
+        // state does not allocate a new bitmap per frame
+        BitmapFactory.Options options = decodeOptions;
+        options.inMutable = true;
+        options.inBitmap = null;
+        if (decodeBitmap != null && decodeBitmap.getWidth() == frame.width
+                && decodeBitmap.getHeight() == frame.height) {
+            options.inBitmap = decodeBitmap;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(frame.encoded, 0, frame.encoded.length, options);
+        } catch (IllegalArgumentException e) {
+            // The reused bitmap did not fit this image
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(frame.encoded, 0, frame.encoded.length, options);
+        }
+        if (bitmap == null) {
+            return;
+        }
+        if (bitmap != decodeBitmap && decodeBitmap != null) {
+            decodeBitmap.recycle();
+        }
+        decodeBitmap = bitmap;
+        if (!hasStorage(bitmap.getWidth(), bitmap.getHeight(), GLES20.GL_RGBA)) {
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            return;
+        }
+        GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+    }
+
+    // Returns whether the bound texture already has storage of this shape;
+    // if not, records it so the caller's next full specification matches
+    private boolean hasStorage(int width, int height, int format) {
+        if (textureWidth == width && textureHeight == height && textureFormat == format) {
+            return true;
         }
+        textureWidth = width;
+        textureHeight = height;
+        textureFormat = format;
+        return false;
     }
 
     private static int loadShader(int type, String shaderCode) {
@@ -155,4 +601,4 @@ public class GLRenderer implements GLSurfaceView.Renderer {
         GLES20.glCompileShader(shader);
         return shader;
     }
-}
\ No newline at end of file
+}
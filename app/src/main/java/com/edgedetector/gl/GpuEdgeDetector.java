@@ -0,0 +1,256 @@
+package com.edgedetector.gl;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Canny on the GPU as a chain of fragment-shader passes over the camera's
+// external texture: luma, Sobel, non-maximum suppression with the double
+// threshold, then a few hysteresis passes. Sobel and suppression mirror
+// cv::Canny exactly; hysteresis grows edges one pixel per pass instead of
+// walking them to the end, so long weak chains can come out shorter than on
+// the CPU. The shaders live in assets/shaders and are shared with the
+// headless harness in jni/bench/gpu_edge_check.cpp. They need highp floats in
+// fragment shaders: at mediump (fp16) texel offsets stop landing on whole
+// texels in wide frames and suppression goes wrong, so on GPUs without highp
+// the detector reports itself unsupported instead. Every method must be
+// called on the GL thread.
+public class GpuEdgeDetector {
+    private static final String TAG = "GpuEdgeDetector";
+    private static final String SHADER_DIR = "shaders/";
+
+    private static final float LOW_THRESHOLD = 100;
+    private static final float HIGH_THRESHOLD = 200;
+    public static final int DEFAULT_HYSTERESIS_PASSES = 8;
+
+    private static final float[] QUAD = {
+        // x, y, s, t
+        -1.0f, -1.0f, 0.0f, 0.0f,
+         1.0f, -1.0f, 1.0f, 0.0f,
+        -1.0f,  1.0f, 0.0f, 1.0f,
+         1.0f,  1.0f, 1.0f, 1.0f,
+    };
+
+    private final AssetManager assets;
+    private final int hysteresisPasses;
+    private FloatBuffer quad;
+
+    // A linked pass with its locations looked up once; -1 where unused
+    private static final class Pass {
+        final int program;
+        final int position;
+        final int texCoord;
+        final int input;
+        final int texel;
+        final int size;
+        final int lowThreshold;
+        final int highThreshold;
+        final int last;
+
+        Pass(int program, String inputSampler) {
+            this.program = program;
+            position = GLES20.glGetAttribLocation(program, "aPosition");
+            texCoord = GLES20.glGetAttribLocation(program, "aTexCoord");
+            input = GLES20.glGetUniformLocation(program, inputSampler);
+            texel = GLES20.glGetUniformLocation(program, "uTexel");
+            size = GLES20.glGetUniformLocation(program, "uSize");
+            lowThreshold = GLES20.glGetUniformLocation(program, "uLowThreshold");
+            highThreshold = GLES20.glGetUniformLocation(program, "uHighThreshold");
+            last = GLES20.glGetUniformLocation(program, "uFinal");
+        }
+    }
+
+    private Pass lumaPass;
+    private Pass sobelPass;
+    private Pass nmsPass;
+    private Pass hysteresisPass;
+
+    // luma, gradient and two ping-pong state textures, one framebuffer each
+    private final int[] textures = new int[4];
+    private final int[] framebuffers = new int[4];
+    private int width;
+    private int height;
+    private int outputIndex;
+    private volatile boolean supported;
+
+    public GpuEdgeDetector(AssetManager assets, int hysteresisPasses) {
+        this.assets = assets;
+        this.hysteresisPasses = Math.max(1, hysteresisPasses);
+    }
+
+    // Compiles the passes, unless the GPU lacks highp fragment floats. Call
+    // again after the GL context was recreated.
+    public void init() throws IOException {
+        int[] range = new int[2];
+        int[] precision = new int[1];
+        GLES20.glGetShaderPrecisionFormat(GLES20.GL_FRAGMENT_SHADER, GLES20.GL_HIGH_FLOAT, range, 0, precision, 0);
+        supported = precision[0] > 0;
+        if (!supported) {
+            Log.w(TAG, "No highp floats in fragment shaders, GPU edges unavailable");
+            return;
+        }
+        quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+        String vertex = loadShaderSource("edge_quad.vert");
+        lumaPass = new Pass(buildProgram(vertex, loadShaderSource("edge_luma.frag")), "sCamera");
+        sobelPass = new Pass(buildProgram(vertex, loadShaderSource("edge_sobel.frag")), "sLuma");
+        nmsPass = new Pass(buildProgram(vertex, loadShaderSource("edge_nms.frag")), "sGradient");
+        hysteresisPass = new Pass(buildProgram(vertex, loadShaderSource("edge_hysteresis.frag")), "sState");
+        width = 0;
+        height = 0;
+    }
+
+    // False until init() found the precision the passes need. Safe from any
+    // thread.
+    public boolean isSupported() {
+        return supported;
+    }
+
+    // Runs all passes on the current camera frame at `width` x `height` and
+    // returns the texture holding the mask (R = 1 for edges). The mask rows
+    // follow the camera buffer, like the CPU mask. Leaves the viewport and
+    // framebuffer binding changed; callers restore their own.
+    public int process(int cameraTextureId, int width, int height) {
+        ensureTargets(width, height);
+        float texelX = 1.0f / width;
+        float texelY = 1.0f / height;
+        GLES20.glViewport(0, 0, width, height);
+
+        beginPass(lumaPass, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+        GLES20.glUniform1i(lumaPass.input, 0);
+        drawPass(lumaPass);
+
+        beginPass(sobelPass, 1);
+        bindInput(sobelPass, 0);
+        GLES20.glUniform2f(sobelPass.texel, texelX, texelY);
+        drawPass(sobelPass);
+
+        beginPass(nmsPass, 2);
+        bindInput(nmsPass, 1);
+        GLES20.glUniform2f(nmsPass.texel, texelX, texelY);
+        GLES20.glUniform2f(nmsPass.size, width, height);
+        GLES20.glUniform1f(nmsPass.lowThreshold, LOW_THRESHOLD);
+        GLES20.glUniform1f(nmsPass.highThreshold, HIGH_THRESHOLD);
+        drawPass(nmsPass);
+
+        int source = 2;
+        for (int pass = 0; pass < hysteresisPasses; pass++) {
+            int target = source == 2 ? 3 : 2;
+            beginPass(hysteresisPass, target);
+            bindInput(hysteresisPass, source);
+            GLES20.glUniform2f(hysteresisPass.texel, texelX, texelY);
+            GLES20.glUniform1f(hysteresisPass.last, pass == hysteresisPasses - 1 ? 1.0f : 0.0f);
+            drawPass(hysteresisPass);
+            source = target;
+        }
+        outputIndex = source;
+        return textures[outputIndex];
+    }
+
+    // Reads the last mask back as RGBA (width * height * 4 bytes, first row
+    // first). Stalls until the GPU is done, so only do it when needed.
+    public void readMask(ByteBuffer rgba) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[outputIndex]);
+        rgba.clear();
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, rgba);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    private void ensureTargets(int newWidth, int newHeight) {
+        if (newWidth == width && newHeight == height) {
+            return;
+        }
+        if (width != 0) {
+            GLES20.glDeleteFramebuffers(framebuffers.length, framebuffers, 0);
+            GLES20.glDeleteTextures(textures.length, textures, 0);
+        }
+        GLES20.glGenTextures(textures.length, textures, 0);
+        GLES20.glGenFramebuffers(framebuffers.length, framebuffers, 0);
+        for (int i = 0; i < textures.length; i++) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[i]);
+            // Nearest sampling keeps every tap on an exact texel
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, newWidth, newHeight, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[i]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, textures[i], 0);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        width = newWidth;
+        height = newHeight;
+    }
+
+    private void beginPass(Pass pass, int target) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[target]);
+        GLES20.glUseProgram(pass.program);
+    }
+
+    private void bindInput(Pass pass, int source) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[source]);
+        GLES20.glUniform1i(pass.input, 0);
+    }
+
+    private void drawPass(Pass pass) {
+        quad.position(0);
+        GLES20.glVertexAttribPointer(pass.position, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glEnableVertexAttribArray(pass.position);
+        quad.position(2);
+        GLES20.glVertexAttribPointer(pass.texCoord, 2, GLES20.GL_FLOAT, false, 16, quad);
+        GLES20.glEnableVertexAttribArray(pass.texCoord);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(pass.position);
+        GLES20.glDisableVertexAttribArray(pass.texCoord);
+    }
+
+    private String loadShaderSource(String name) throws IOException {
+        try (InputStream in = assets.open(SHADER_DIR + name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int buildProgram(String vertexSource, String fragmentSource) {
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, compile(GLES20.GL_VERTEX_SHADER, vertexSource));
+        GLES20.glAttachShader(program, compile(GLES20.GL_FRAGMENT_SHADER, fragmentSource));
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Program link failed: " + GLES20.glGetProgramInfoLog(program));
+        }
+        return program;
+    }
+
+    private static int compile(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            Log.e(TAG, "Shader compile failed: " + GLES20.glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+}
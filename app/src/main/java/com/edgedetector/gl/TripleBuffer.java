@@ -0,0 +1,50 @@
+package com.edgedetector.gl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Lock-free single-producer/single-consumer handoff over three slots. The
+// producer always owns one slot to fill and the consumer one slot to read; the
+// third sits in the middle holding the newest published frame. publish() and
+// acquire() each swap with the middle slot in one atomic step, so neither side
+// ever waits for the other. A frame published before the consumer picked up
+// the previous one replaces it, and publish() reports that as a skip.
+public final class TripleBuffer<T> {
+    // Low bits hold the middle slot index, this bit marks it as unread
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final Object[] slots;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int writeIndex = 0;
+    private int readIndex = 2;
+
+    public TripleBuffer(T first, T second, T third) {
+        slots = new Object[] { first, second, third };
+    }
+
+    // Producer: the slot to fill next. Stays valid until publish().
+    @SuppressWarnings("unchecked")
+    public T writeSlot() {
+        return (T) slots[writeIndex];
+    }
+
+    // Producer: makes the filled slot the newest frame. Returns true when it
+    // replaced a frame the consumer never acquired.
+    public boolean publish() {
+        int previous = middle.getAndSet(writeIndex | FRESH);
+        writeIndex = previous & INDEX_MASK;
+        return (previous & FRESH) != 0;
+    }
+
+    // Consumer: the newest published slot, or null when nothing was published
+    // since the last call. The slot stays valid until the next acquire().
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((middle.get() & FRESH) == 0) {
+            return null;
+        }
+        int previous = middle.getAndSet(readIndex);
+        readIndex = previous & INDEX_MASK;
+        return (T) slots[readIndex];
+    }
+}
@@ -0,0 +1,178 @@
+package com.edgedetector.benchmarks;
+
+import com.edgedetector.EdgeDetectorWebSocketServer;
+import com.edgedetector.ServerLog;
+import com.edgedetector.metrics.MetricsRegistry;
+import com.edgedetector.protocol.FrameMessage;
+import com.edgedetector.protocol.StreamProfile;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// EdgeDetectorWebSocketServer.broadcastFrame() to real viewers over loopback:
+// the time the processing thread spends encoding messages once, framing and
+// compressing them and queueing them on every connection. Sending happens on
+// the server's own thread and is not measured; before each call the queues
+// are left to drain, so every call takes the send path rather than the
+// slow-viewer one. A keyframe goes out every `keyframeInterval` broadcasts.
+// The viewers run in the same JVM, so the GC profiler's allocation figures
+// include what they allocate receiving; compare them between runs.
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    @Param({ "1", "8", "32" })
+    public int viewers;
+
+    // zlib level for permessage-deflate; 0 sends uncompressed
+    @Param({ "0", "1" })
+    public int compression;
+
+    @Param({ "60" })
+    public int keyframeInterval;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final List<WebSocketClient> clients = new ArrayList<>();
+    private EdgeDetectorWebSocketServer server;
+    private Payloads payloads;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ServerLog.setMinPriority(ServerLog.WARN);
+        payloads = Payloads.load();
+        server = new EdgeDetectorWebSocketServer(new InetSocketAddress("127.0.0.1", 0), metrics);
+        server.setReuseAddr(true);
+        server.setSlowClientPolicy(EdgeDetectorWebSocketServer.SLOW_CLIENT_DROP);
+        server.setKeyframeInterval(keyframeInterval);
+        server.setCompression(compression, 256, false);
+        server.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getPort() == 0) {
+            if (System.nanoTime() > deadline) {
+                throw new IOException("Server did not start");
+            }
+            Thread.sleep(10);
+        }
+        URI uri = new URI("ws://127.0.0.1:" + server.getPort());
+        for (int i = 0; i < viewers; i++) {
+            WebSocketClient client = new DrainingViewer(uri);
+            if (!client.connectBlocking(5, TimeUnit.SECONDS)) {
+                throw new IOException("Viewer " + i + " could not connect");
+            }
+            clients.add(client);
+        }
+        while (server.getConnectionCount() < viewers) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (WebSocketClient client : clients) {
+            client.closeBlocking();
+        }
+        server.stop(1000);
+    }
+
+    @Setup(Level.Invocation)
+    public void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (server.sendQueueBytes() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(0, 100_000);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcastFrame(new RecordedFrame(seq++));
+    }
+
+    private final class RecordedFrame implements EdgeDetectorWebSocketServer.FrameSource {
+        private final long frameSeq;
+
+        RecordedFrame(long frameSeq) {
+            this.frameSeq = frameSeq;
+        }
+
+        @Override
+        public ByteBuffer keyframe(StreamProfile profile) {
+            byte[] payload = payloads.keyframes.get((int) (frameSeq % payloads.keyframes.size()));
+            return FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8, profile.codec,
+                    frameSeq, System.nanoTime(), Payloads.WIDTH / profile.scale, Payloads.HEIGHT / profile.scale,
+                    payload, 0, payload.length);
+        }
+
+        @Override
+        public ByteBuffer reducedKeyframe(StreamProfile profile) {
+            byte[] payload = payloads.keyframes.get((int) (frameSeq % payloads.keyframes.size()));
+            return FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8, profile.codec,
+                    frameSeq, System.nanoTime(), Payloads.WIDTH / profile.scale / 2,
+                    Payloads.HEIGHT / profile.scale / 2, payload, 0, payload.length / 4);
+        }
+
+        @Override
+        public ByteBuffer delta(StreamProfile profile, int stream, boolean restart) {
+            if (restart) {
+                return null;
+            }
+            byte[] payload = payloads.deltas.get((int) (frameSeq % payloads.deltas.size()));
+            return FrameMessage.encode(FrameMessage.TYPE_DELTA, FrameMessage.PIXEL_FORMAT_GRAY8,
+                    FrameMessage.CODEC_TILES_1BPP, frameSeq, System.nanoTime(), Payloads.WIDTH / profile.scale,
+                    Payloads.HEIGHT / profile.scale, payload, 0, payload.length);
+        }
+    }
+
+    // Reads and discards everything, offering permessage-deflate like a browser
+    private static final class DrainingViewer extends WebSocketClient {
+        DrainingViewer(URI uri) {
+            super(uri, new Draft_6455(new PerMessageDeflateExtension()));
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+        }
+
+        @Override
+        public void onMessage(ByteBuffer message) {
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.edgedetector.benchmarks;
+
+import com.edgedetector.protocol.FrameMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Wrapping an encoded mask in its 24-byte message header, once per frame and
+// profile: the copy of the payload into the message, from a byte[] as for
+// keyframes and from the native delta buffer as for deltas
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameMessageBenchmark {
+    private Payloads payloads;
+    private ByteBuffer deltaBuffer;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        payloads = Payloads.load();
+        int capacity = 0;
+        for (byte[] delta : payloads.deltas) {
+            capacity = Math.max(capacity, delta.length);
+        }
+        // Direct, like the buffer the pipeline writes deltas into
+        deltaBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    @Benchmark
+    public ByteBuffer keyframe() {
+        byte[] payload = payloads.keyframes.get(next++ % payloads.keyframes.size());
+        return FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_RLE_1BPP, next, next, Payloads.WIDTH, Payloads.HEIGHT, payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public ByteBuffer delta() {
+        byte[] payload = payloads.deltas.get(next++ % payloads.deltas.size());
+        deltaBuffer.clear();
+        deltaBuffer.put(payload);
+        deltaBuffer.flip();
+        return FrameMessage.encode(FrameMessage.TYPE_DELTA, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_TILES_1BPP, next, next, Payloads.WIDTH, Payloads.HEIGHT, deltaBuffer);
+    }
+}
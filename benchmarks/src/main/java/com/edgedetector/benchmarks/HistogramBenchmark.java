@@ -0,0 +1,43 @@
+package com.edgedetector.benchmarks;
+
+import com.edgedetector.metrics.Histogram;
+import com.edgedetector.metrics.MetricsRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+// Stage latency recording, done several times per frame from the camera,
+// processing and broadcast threads; `contended` has them hit one histogram
+// at once
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+    private final Histogram histogram = new MetricsRegistry().histogram("edge_stage_latency_seconds",
+            "stage=\"bench\"", "Benchmark histogram");
+    // Spread over the buckets so the bucket search is not always the same
+    private final long[] samples = { 180_000L, 1_500_000L, 6_000_000L, 30_000_000L, 700_000_000L };
+    private int next;
+
+    @Benchmark
+    public void observe() {
+        histogram.observeNanos(samples[next++ % samples.length]);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void contended() {
+        histogram.observeNanos(samples[(int) (Thread.currentThread().getId() % samples.length)]);
+    }
+}
@@ -0,0 +1,78 @@
+package com.edgedetector.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Frame payloads the benchmarks send. With -Dedge.frames=<dir> every file in
+// the directory is one payload (e.g. RLE masks from a recording), used in
+// name order; otherwise mask-like synthetic payloads of the sizes the native
+// benches measure at 640x480: ~8.5 KB RLE keyframes and ~4 KB tile deltas.
+final class Payloads {
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+    static final int TILE_SIZE = 32;
+
+    private static final int SYNTHETIC_FRAMES = 16;
+    private static final int KEYFRAME_BYTES = 8500;
+    private static final int DELTA_BYTES = 4000;
+
+    final List<byte[]> keyframes;
+    final List<byte[]> deltas;
+
+    private Payloads(List<byte[]> keyframes, List<byte[]> deltas) {
+        this.keyframes = keyframes;
+        this.deltas = deltas;
+    }
+
+    static Payloads load() throws IOException {
+        String dir = System.getProperty("edge.frames");
+        if (dir == null) {
+            return synthetic();
+        }
+        File[] files = new File(dir).listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            throw new IOException("No frame payloads in " + dir);
+        }
+        Arrays.sort(files);
+        List<byte[]> recorded = new ArrayList<>();
+        for (File file : files) {
+            recorded.add(Files.readAllBytes(file.toPath()));
+        }
+        // Recordings hold whole frames; deltas keep the synthetic tile layout
+        return new Payloads(recorded, synthetic().deltas);
+    }
+
+    private static Payloads synthetic() {
+        Random random = new Random(42);
+        List<byte[]> keyframes = new ArrayList<>();
+        List<byte[]> deltas = new ArrayList<>();
+        for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+            keyframes.add(maskBytes(random, KEYFRAME_BYTES));
+            byte[] delta = maskBytes(random, DELTA_BYTES);
+            // Tile size, then a tile count the server reads to skip empty deltas
+            int tiles = DELTA_BYTES / (4 + TILE_SIZE * TILE_SIZE / 8);
+            delta[0] = 0;
+            delta[1] = (byte) TILE_SIZE;
+            delta[2] = (byte) (tiles >> 8);
+            delta[3] = (byte) tiles;
+            deltas.add(delta);
+        }
+        return new Payloads(keyframes, deltas);
+    }
+
+    // Mostly zero with scattered set bits, so deflate sees mask-like data
+    private static byte[] maskBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(4) == 0) {
+                bytes[i] = (byte) (1 << random.nextInt(8));
+            }
+        }
+        return bytes;
+    }
+}
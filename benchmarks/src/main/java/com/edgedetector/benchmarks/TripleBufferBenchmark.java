@@ -0,0 +1,50 @@
+package com.edgedetector.benchmarks;
+
+import com.edgedetector.gl.TripleBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// The GLRenderer frame handoff: the processing thread fills a mask slot and
+// publishes it while the GL thread acquires the newest one. Both sides run
+// flat out, which is the worst case for the shared middle slot; the camera
+// publishes at 30 fps at most.
+@State(Scope.Group)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripleBufferBenchmark {
+    private final TripleBuffer<ByteBuffer> frames = new TripleBuffer<>(
+            ByteBuffer.allocateDirect(Payloads.WIDTH * Payloads.HEIGHT),
+            ByteBuffer.allocateDirect(Payloads.WIDTH * Payloads.HEIGHT),
+            ByteBuffer.allocateDirect(Payloads.WIDTH * Payloads.HEIGHT));
+    private long seq;
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean publish() {
+        frames.writeSlot().putLong(0, ++seq);
+        return frames.publish();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public long acquire() {
+        ByteBuffer frame = frames.acquire();
+        return frame != null ? frame.getLong(0) : -1;
+    }
+}
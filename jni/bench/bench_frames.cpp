@@ -0,0 +1,58 @@
+#include "bench_frames.h"
+
+#include <opencv2/imgcodecs.hpp>
+#include <opencv2/imgproc.hpp>
+
+#include <algorithm>
+#include <cstdio>
+#include <cstdlib>
+
+void syntheticLuma(cv::Mat& luma, int variant, int noise) {
+	srand(42 + variant);
+	for (int row = 0; row < luma.rows; row++) {
+		uint8_t* dst = luma.ptr<uint8_t>(row);
+		for (int col = 0; col < luma.cols; col++) {
+			int x = col + variant * 3;
+			int value = (x * 255) / luma.cols;
+			if (((row / 48) + (x / 64)) % 3 == 0) {
+				value = 255 - value;
+			}
+			value += rand() % (2 * noise) - noise;
+			dst[col] = (uint8_t) std::min(255, std::max(0, value));
+		}
+	}
+}
+
+std::vector<uint8_t> syntheticFrame(int width, int height, int variant) {
+	std::vector<uint8_t> nv21((size_t) width * height * 3 / 2);
+	cv::Mat luma(height, width, CV_8UC1, nv21.data());
+	syntheticLuma(luma, variant, 8);
+	for (size_t i = (size_t) width * height; i < nv21.size(); i++) {
+		nv21[i] = (uint8_t) (96 + (i % 64));
+	}
+	return nv21;
+}
+
+bool loadFrame(const std::string& path, int width, int height, std::vector<uint8_t>& nv21) {
+	nv21.assign((size_t) width * height * 3 / 2, 128);
+	FILE* file = fopen(path.c_str(), "rb");
+	if (file == nullptr) {
+		return false;
+	}
+	fseek(file, 0, SEEK_END);
+	long size = ftell(file);
+	fseek(file, 0, SEEK_SET);
+	if (size == (long) nv21.size()) {
+		size_t read = fread(nv21.data(), 1, nv21.size(), file);
+		fclose(file);
+		return read == nv21.size();
+	}
+	fclose(file);
+	cv::Mat gray = cv::imread(path, cv::IMREAD_GRAYSCALE);
+	if (gray.empty()) {
+		return false;
+	}
+	cv::Mat luma(height, width, CV_8UC1, nv21.data());
+	cv::resize(gray, luma, luma.size(), 0, 0, cv::INTER_AREA);
+	return true;
+}
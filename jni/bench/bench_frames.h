@@ -0,0 +1,26 @@
+#ifndef BENCH_FRAMES_H
+#define BENCH_FRAMES_H
+
+#include <opencv2/core.hpp>
+#include <cstdint>
+#include <string>
+#include <vector>
+
+// Test frames shared by the host benches and checks.
+
+// Fills an 8-bit gray `luma` with a horizontal ramp, inverted in every third
+// 64x48 block, plus `noise` levels of uniform noise either way. Each step of
+// `variant` shifts the scene 3 pixels, like a slow pan, and reseeds the
+// noise, so consecutive variants differ the way consecutive camera frames do.
+void syntheticLuma(cv::Mat& luma, int variant, int noise);
+
+// The scene above at noise 8 as an NV21 frame, with a fixed pattern in the
+// chroma plane.
+std::vector<uint8_t> syntheticFrame(int width, int height, int variant = 0);
+
+// Reads a raw NV21 dump of exactly width x height, or any image OpenCV can
+// decode, resized to width x height as the luma of a frame with neutral
+// chroma. False when `path` is neither.
+bool loadFrame(const std::string& path, int width, int height, std::vector<uint8_t>& nv21);
+
+#endif
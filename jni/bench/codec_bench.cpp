@@ -0,0 +1,155 @@
+// Host benchmark for the mask codecs sent to web viewers: PNG, JPEG and the
+// 1bpp run-length codec (mask_codec.h), on the edge masks of recorded
+// frames. Reports encode time and compressed size per codec. JPEG is lossy,
+// so it is listed with the pixels that differ after thresholding the decoded
+// mask; the RLE output is decoded and must match the mask exactly.
+//
+// Build on a Linux box with OpenCV installed:
+//   g++ -std=c++14 -O2 -pthread -I jni -o codec_bench jni/bench/codec_bench.cpp jni/bench/bench_frames.cpp jni/edge_pipeline.cpp jni/mask_codec.cpp jni/motion_gate.cpp jni/parallel_canny.cpp $(pkg-config --cflags --libs opencv4)
+//
+// Usage: codec_bench [width height [iterations [frame ...]]]
+// Frames are raw NV21 dumps of width x height, or images OpenCV can read
+// (only their gray levels are used, resized to width x height). Without
+// frames a synthetic scene is generated.
+
+#include "bench_frames.h"
+#include "edge_pipeline.h"
+#include "mask_codec.h"
+
+#include <opencv2/imgcodecs.hpp>
+#include <opencv2/imgproc.hpp>
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <functional>
+#include <string>
+#include <vector>
+
+struct CodecStats {
+	const char* name;
+	std::vector<double> micros;
+	size_t bytes;
+	size_t frames;
+	size_t differing;
+
+	explicit CodecStats(const char* name) : name(name), bytes(0), frames(0), differing(0) {}
+};
+
+static double timeMicros(const std::function<void()>& work) {
+	auto start = std::chrono::steady_clock::now();
+	work();
+	auto end = std::chrono::steady_clock::now();
+	return std::chrono::duration<double, std::micro>(end - start).count();
+}
+
+static void report(CodecStats& stats, size_t rawBytes) {
+	std::sort(stats.micros.begin(), stats.micros.end());
+	double total = 0;
+	for (double sample : stats.micros) {
+		total += sample;
+	}
+	double meanBytes = (double) stats.bytes / stats.frames;
+	printf("%-6s mean %9.1f us  p50 %9.1f us  p95 %9.1f us  %9.0f bytes (%5.2f%% of 8bpp)", stats.name,
+			total / stats.micros.size(), stats.micros[stats.micros.size() / 2],
+			stats.micros[stats.micros.size() * 95 / 100], meanBytes, 100.0 * meanBytes / rawBytes);
+	if (stats.differing > 0) {
+		printf("  %zu pixels differ", stats.differing);
+	}
+	printf("\n");
+}
+
+int main(int argc, char** argv) {
+	int width = argc > 2 ? atoi(argv[1]) : 640;
+	int height = argc > 2 ? atoi(argv[2]) : 480;
+	int iterations = argc > 3 ? atoi(argv[3]) : 100;
+	std::vector<std::vector<uint8_t>> frames;
+	for (int i = 4; i < argc; i++) {
+		std::vector<uint8_t> nv21;
+		if (!loadFrame(argv[i], width, height, nv21)) {
+			fprintf(stderr, "could not read %s as a %dx%d NV21 frame or image\n", argv[i], width, height);
+			return 1;
+		}
+		frames.push_back(nv21);
+	}
+	if (frames.empty()) {
+		for (int variant = 0; variant < 8; variant++) {
+			frames.push_back(syntheticFrame(width, height, variant));
+		}
+	}
+
+	EdgePipeline pipeline(width, height);
+	pipeline.setLumaOnly(true);
+	size_t pixels = (size_t) width * height;
+	std::vector<uint8_t> mask(pixels);
+	std::vector<uint8_t> out(pixels + 1024);
+	std::vector<uint8_t> packed((pixels + 7) / 8);
+	std::vector<uint8_t> decoded(pixels);
+	CodecStats png("png");
+	CodecStats jpeg("jpeg");
+	CodecStats pack("pack");
+	CodecStats rle("rle");
+	bool exact = true;
+
+	for (const std::vector<uint8_t>& nv21 : frames) {
+		YuvPlanes planes;
+		planes.y = nv21.data();
+		planes.v = nv21.data() + pixels;
+		planes.u = planes.v + 1;
+		planes.yRowStride = width;
+		planes.uvRowStride = width;
+		planes.uvPixelStride = 2;
+		if (pipeline.process(planes, mask.data(), mask.size(), 0) <= 0) {
+			fprintf(stderr, "pipeline failed\n");
+			return 1;
+		}
+		cv::Mat maskMat(height, width, CV_8UC1, mask.data());
+		std::vector<uchar> jpegBytes;
+		int pngLength = 0;
+		int length = 0;
+		for (int i = 0; i < iterations; i++) {
+			png.micros.push_back(timeMicros([&] {
+				pngLength = pipeline.encode(out.data(), out.size(), 0, 1, MASK_CODEC_PNG);
+			}));
+			jpeg.micros.push_back(timeMicros([&] {
+				cv::imencode(".jpg", maskMat, jpegBytes, { cv::IMWRITE_JPEG_QUALITY, 90 });
+			}));
+			pack.micros.push_back(timeMicros([&] {
+				packMask(mask.data(), pixels, packed.data());
+			}));
+			rle.micros.push_back(timeMicros([&] {
+				length = pipeline.encode(out.data(), out.size(), 0, 1, MASK_CODEC_RLE_1BPP);
+			}));
+		}
+		png.bytes += pngLength;
+		png.frames++;
+		jpeg.bytes += jpegBytes.size();
+		jpeg.frames++;
+		cv::Mat jpegMask = cv::imdecode(jpegBytes, cv::IMREAD_GRAYSCALE);
+		cv::threshold(jpegMask, jpegMask, 127, 255, cv::THRESH_BINARY);
+		jpeg.differing += (size_t) cv::countNonZero(jpegMask != maskMat);
+		pack.bytes += packed.size();
+		pack.frames++;
+		rle.bytes += length;
+		rle.frames++;
+
+		if (length < 0 || !rleDecode(out.data(), length, packed.data(), packed.size())) {
+			exact = false;
+			continue;
+		}
+		unpackMask(packed.data(), pixels, decoded.data());
+		if (memcmp(decoded.data(), mask.data(), pixels) != 0) {
+			exact = false;
+		}
+	}
+
+	printf("%dx%d, %zu frames, %d iterations each\n", width, height, frames.size(), iterations);
+	report(png, pixels);
+	report(jpeg, pixels);
+	report(pack, pixels);
+	report(rle, pixels);
+	printf("rle round trip %s\n", exact ? "exact" : "DIFFERS from the mask");
+	return exact ? 0 : 1;
+}
@@ -0,0 +1,161 @@
+// Host benchmark for permessage-deflate on the messages sent to web viewers:
+// RLE and PNG keyframes, tile deltas between consecutive frames, and a JSON
+// status message. Each kind is compressed as a message sequence the way
+// EdgeDetectorWebSocketServer does it (raw DEFLATE, sync flush per message),
+// at several zlib levels, with and without context takeover. Reports the
+// bytes that reach the wire against the compression time per message, to
+// pick the level passed to EdgeDetectorWebSocketServer.setCompression().
+//
+// Build on a Linux box with OpenCV and zlib installed:
+//   g++ -std=c++14 -O2 -pthread -I jni -o deflate_bench jni/bench/deflate_bench.cpp jni/bench/bench_frames.cpp jni/edge_pipeline.cpp jni/mask_codec.cpp jni/motion_gate.cpp jni/parallel_canny.cpp $(pkg-config --cflags --libs opencv4) -lz
+//
+// Usage: deflate_bench [width height [iterations [frame ...]]]
+// Frames are raw NV21 dumps of width x height, or images OpenCV can read,
+// in capture order so deltas see realistic motion. Without frames a
+// synthetic scene drifting a few pixels per frame is generated.
+
+#include "bench_frames.h"
+#include "edge_pipeline.h"
+#include "mask_codec.h"
+
+#include <zlib.h>
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <string>
+#include <vector>
+
+typedef std::vector<uint8_t> Message;
+
+static const int DELTA_TILE_SIZE = 32;
+
+// Compresses one message as permessage-deflate does and returns the payload
+// length on the wire: sync flush, minus the trailing 00 00 FF FF. Without
+// context takeover the stream is reset first. Messages the server would
+// send uncompressed because compression does not pay are counted as is.
+static size_t deflateMessage(z_stream& stream, const Message& message, bool contextTakeover,
+		std::vector<uint8_t>& out) {
+	if (!contextTakeover) {
+		deflateReset(&stream);
+	}
+	out.resize(deflateBound(&stream, message.size()) + 16);
+	stream.next_in = const_cast<Bytef*>(message.data());
+	stream.avail_in = (uInt) message.size();
+	stream.next_out = out.data();
+	stream.avail_out = (uInt) out.size();
+	deflate(&stream, Z_SYNC_FLUSH);
+	size_t length = out.size() - stream.avail_out - 4;
+	if (!contextTakeover) {
+		length = std::min(length, message.size());
+	}
+	return length;
+}
+
+static void run(const char* kind, const std::vector<Message>& messages, int iterations) {
+	size_t rawBytes = 0;
+	for (const Message& message : messages) {
+		rawBytes += message.size();
+	}
+	printf("%s: %zu messages, mean %.0f bytes\n", kind, messages.size(), (double) rawBytes / messages.size());
+	std::vector<uint8_t> out;
+	const int levels[] = { 1, 3, 6, 9 };
+	for (int takeover = 0; takeover < 2; takeover++) {
+		for (int level : levels) {
+			size_t wireBytes = 0;
+			std::vector<double> micros;
+			for (int i = 0; i < iterations; i++) {
+				z_stream stream = {};
+				deflateInit2(&stream, level, Z_DEFLATED, -15, 8, Z_DEFAULT_STRATEGY);
+				size_t bytes = 0;
+				for (const Message& message : messages) {
+					auto start = std::chrono::steady_clock::now();
+					bytes += deflateMessage(stream, message, takeover != 0, out);
+					auto end = std::chrono::steady_clock::now();
+					micros.push_back(std::chrono::duration<double, std::micro>(end - start).count());
+				}
+				deflateEnd(&stream);
+				wireBytes = bytes;
+			}
+			std::sort(micros.begin(), micros.end());
+			double total = 0;
+			for (double sample : micros) {
+				total += sample;
+			}
+			printf("  level %d %-10s mean %8.1f us  p95 %8.1f us  %8.0f bytes (%5.1f%%)\n", level,
+					takeover ? "context" : "no-context", total / micros.size(), micros[micros.size() * 95 / 100],
+					(double) wireBytes / messages.size(), 100.0 * wireBytes / rawBytes);
+		}
+	}
+}
+
+int main(int argc, char** argv) {
+	int width = argc > 2 ? atoi(argv[1]) : 640;
+	int height = argc > 2 ? atoi(argv[2]) : 480;
+	int iterations = argc > 3 ? atoi(argv[3]) : 20;
+	std::vector<std::vector<uint8_t>> frames;
+	for (int i = 4; i < argc; i++) {
+		std::vector<uint8_t> nv21;
+		if (!loadFrame(argv[i], width, height, nv21)) {
+			fprintf(stderr, "could not read %s as a %dx%d NV21 frame or image\n", argv[i], width, height);
+			return 1;
+		}
+		frames.push_back(nv21);
+	}
+	if (frames.empty()) {
+		for (int variant = 0; variant < 30; variant++) {
+			frames.push_back(syntheticFrame(width, height, variant));
+		}
+	}
+
+	EdgePipeline pipeline(width, height);
+	pipeline.setLumaOnly(true);
+	size_t pixels = (size_t) width * height;
+	std::vector<uint8_t> mask(pixels);
+	std::vector<uint8_t> out(pixels + 1024);
+	std::vector<Message> rle;
+	std::vector<Message> png;
+	std::vector<Message> deltas;
+	std::vector<Message> status;
+
+	int64_t seq = 0;
+	for (const std::vector<uint8_t>& nv21 : frames) {
+		YuvPlanes planes;
+		planes.y = nv21.data();
+		planes.v = nv21.data() + pixels;
+		planes.u = planes.v + 1;
+		planes.yRowStride = width;
+		planes.uvRowStride = width;
+		planes.uvPixelStride = 2;
+		if (pipeline.process(planes, mask.data(), mask.size(), seq) <= 0) {
+			fprintf(stderr, "pipeline failed\n");
+			return 1;
+		}
+		int length = pipeline.encode(out.data(), out.size(), seq, 1, MASK_CODEC_RLE_1BPP);
+		rle.emplace_back(out.begin(), out.begin() + length);
+		length = pipeline.encode(out.data(), out.size(), seq, 1, MASK_CODEC_PNG);
+		png.emplace_back(out.begin(), out.begin() + length);
+		// The first delta of a stream covers the whole frame, like a keyframe
+		length = pipeline.encodeDelta(out.data(), out.size(), DELTA_TILE_SIZE, seq, 0, 1, seq == 0);
+		if (seq > 0 && length > 0) {
+			deltas.emplace_back(out.begin(), out.begin() + length);
+		}
+		char json[256];
+		int jsonLength = snprintf(json, sizeof(json),
+				"{\"type\":\"stats\",\"data\":{\"fps\":%.1f,\"frameCount\":%lld,\"processingTimeMs\":%.2f,"
+				"\"resolution\":\"%dx%d\",\"viewers\":%d}}",
+				29.5 + (seq % 5) / 10.0, (long long) seq * 30, 4.0 + (seq % 7) / 3.0, width, height, 1 + (int) (seq % 3));
+		status.emplace_back(json, json + jsonLength);
+		seq++;
+	}
+
+	printf("%dx%d, %zu frames, %d iterations each\n", width, height, frames.size(), iterations);
+	run("rle keyframes", rle, iterations);
+	run("png keyframes", png, iterations);
+	if (!deltas.empty()) {
+		run("tile deltas", deltas, iterations);
+	}
+	run("json status", status, iterations);
+	return 0;
+}
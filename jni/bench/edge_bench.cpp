@@ -0,0 +1,137 @@
+// Host benchmark comparing the pipeline modes on identical NV21 input: color
+// (YUV->BGR + 3-channel Canny), luma-only, and luma-only tiled Canny at
+// several worker counts. Tiled output is checked against luma-only, which it
+// must match bit for bit. Luma-only runs on regions of interest show how the
+// cost follows their area; a single region covering the frame must match
+// luma-only as well.
+//
+// Build on a Linux box with OpenCV installed:
+//   g++ -std=c++14 -O2 -pthread -I jni -o edge_bench jni/bench/edge_bench.cpp jni/bench/bench_frames.cpp jni/edge_pipeline.cpp jni/mask_codec.cpp jni/motion_gate.cpp jni/parallel_canny.cpp $(pkg-config --cflags --libs opencv4)
+//
+// Usage: edge_bench [width height [frame] [iterations]]
+// The frame is a raw NV21 dump of width x height, or an image OpenCV can
+// read. Without one a synthetic scene is generated.
+
+#include "bench_frames.h"
+#include "edge_pipeline.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+
+static size_t countDiffering(const std::vector<uint8_t>& a, const std::vector<uint8_t>& b) {
+	size_t differing = 0;
+	for (size_t i = 0; i < a.size(); i++) {
+		if (a[i] != b[i]) {
+			differing++;
+		}
+	}
+	return differing;
+}
+
+static void run(const char* name, EdgePipeline& pipeline, const YuvPlanes& planes,
+		std::vector<uint8_t>& mask, int iterations) {
+	std::vector<double> samples;
+	samples.reserve(iterations);
+	// Warm-up so allocations and caches settle before timing
+	for (int i = 0; i < 5; i++) {
+		pipeline.process(planes, mask.data(), mask.size(), 0);
+	}
+	for (int i = 0; i < iterations; i++) {
+		auto start = std::chrono::steady_clock::now();
+		pipeline.process(planes, mask.data(), mask.size(), 0);
+		auto end = std::chrono::steady_clock::now();
+		samples.push_back(std::chrono::duration<double, std::milli>(end - start).count());
+	}
+	std::sort(samples.begin(), samples.end());
+	double total = 0;
+	for (double sample : samples) {
+		total += sample;
+	}
+	printf("%-8s mean %7.3f ms  p50 %7.3f ms  p95 %7.3f ms\n", name,
+			total / samples.size(), samples[samples.size() / 2], samples[samples.size() * 95 / 100]);
+}
+
+int main(int argc, char** argv) {
+	int width = argc > 2 ? atoi(argv[1]) : 640;
+	int height = argc > 2 ? atoi(argv[2]) : 480;
+	int iterations = argc > 4 ? atoi(argv[4]) : 200;
+	std::vector<uint8_t> nv21 = syntheticFrame(width, height);
+	if (argc > 3 && !loadFrame(argv[3], width, height, nv21)) {
+		fprintf(stderr, "could not read %s as a %dx%d NV21 frame or image\n", argv[3], width, height);
+		return 1;
+	}
+
+	YuvPlanes planes;
+	planes.y = nv21.data();
+	planes.v = nv21.data() + (size_t) width * height;
+	planes.u = planes.v + 1;
+	planes.yRowStride = width;
+	planes.uvRowStride = width;
+	planes.uvPixelStride = 2;
+
+	EdgePipeline color(width, height);
+	EdgePipeline luma(width, height);
+	luma.setLumaOnly(true);
+	std::vector<uint8_t> colorMask((size_t) width * height);
+	std::vector<uint8_t> lumaMask((size_t) width * height);
+
+	printf("%dx%d, %d iterations\n", width, height, iterations);
+	run("color", color, planes, colorMask, iterations);
+	run("luma", luma, planes, lumaMask, iterations);
+
+	size_t differing = countDiffering(colorMask, lumaMask);
+	printf("color vs luma edge pixels differing: %zu (%.3f%%)\n", differing, 100.0 * differing / colorMask.size());
+
+	const int workerCounts[] = { 1, 2, 4, 8 };
+	bool identical = true;
+	for (int workers : workerCounts) {
+		EdgePipeline tiled(width, height);
+		tiled.setLumaOnly(true);
+		tiled.setTiledWorkers(workers);
+		std::vector<uint8_t> tiledMask((size_t) width * height);
+		char name[16];
+		snprintf(name, sizeof(name), "tiled-%d", workers);
+		run(name, tiled, planes, tiledMask, iterations);
+		size_t mismatched = countDiffering(lumaMask, tiledMask);
+		if (mismatched != 0) {
+			printf("  %zu pixels differ from luma\n", mismatched);
+			identical = false;
+		}
+	}
+	printf("tiled output %s\n", identical ? "identical to luma" : "DIFFERS from luma");
+
+	// Even offsets and sizes, as setRegions() requires
+	int halfWidth = width / 4 * 2;
+	int halfHeight = height / 4 * 2;
+	int band = height / 16 * 2;
+	std::vector<EdgeRegion> wholeFrame = { { cv::Rect(0, 0, width, height), cv::Point(0, 0) } };
+	cv::Rect center((width - halfWidth) / 4 * 2, (height - halfHeight) / 4 * 2, halfWidth, halfHeight);
+	std::vector<EdgeRegion> quarter = { { center, cv::Point(0, 0) } };
+	std::vector<EdgeRegion> bands = { { cv::Rect(0, band, width, band), cv::Point(0, 0) },
+			{ cv::Rect(0, height - 2 * band, width, band), cv::Point(0, (band + 15) / 16 * 16) } };
+	struct RegionRun {
+		const char* name;
+		std::vector<EdgeRegion>* regions;
+	};
+	RegionRun regionRuns[] = { { "roi-full", &wholeFrame }, { "roi-1/4", &quarter }, { "roi-2x1/8", &bands } };
+	for (RegionRun& regionRun : regionRuns) {
+		EdgePipeline cropped(width, height);
+		cropped.setLumaOnly(true);
+		if (!cropped.setRegions(*regionRun.regions)) {
+			printf("%-8s invalid layout\n", regionRun.name);
+			identical = false;
+			continue;
+		}
+		std::vector<uint8_t> regionMask((size_t) width * height);
+		run(regionRun.name, cropped, planes, regionMask, iterations);
+		if (regionRun.regions == &wholeFrame) {
+			size_t mismatched = countDiffering(lumaMask, regionMask);
+			printf("  whole-frame region %s luma\n", mismatched == 0 ? "identical to" : "DIFFERS from");
+			identical = identical && mismatched == 0;
+		}
+	}
+	return identical ? 0 : 1;
+}
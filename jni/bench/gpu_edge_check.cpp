@@ -0,0 +1,302 @@
+// Headless check of the GPU edge shaders against cv::Canny. Runs the Sobel,
+// suppression and hysteresis passes from app/src/main/assets/shaders in an
+// offscreen EGL context on a grayscale frame (the camera-to-luma pass needs an
+// external texture, so luma is uploaded directly), reads the mask back and
+// counts the pixels that differ from cv::Canny(gray, 100, 200) with the L1
+// gradient the app uses. Exits with 1 when the share of differing pixels is
+// above the tolerance.
+//
+// Build on a Linux box with OpenCV and Mesa installed:
+//   g++ -std=c++14 -O2 -o gpu_edge_check jni/bench/gpu_edge_check.cpp jni/bench/bench_frames.cpp $(pkg-config --cflags --libs opencv4 egl glesv2)
+//
+// Run from the repository root; without a GPU use Mesa's software renderer:
+//   EGL_PLATFORM=surfaceless LIBGL_ALWAYS_SOFTWARE=1 ./gpu_edge_check
+//
+// Usage: gpu_edge_check [image|-|WxH] [hysteresis-passes] [tolerance-percent] [shader-dir]
+// "-" or no image generates a 640x480 synthetic scene, WxH one of that size.
+// Hysteresis grows edges one pixel per pass, so only enough passes reproduce
+// cv::Canny exactly; the app's default of 8 leaves a small difference on long
+// weak chains.
+
+#include "bench_frames.h"
+
+#include <EGL/egl.h>
+#include <GLES2/gl2.h>
+#include <opencv2/core.hpp>
+#include <opencv2/imgcodecs.hpp>
+#include <opencv2/imgproc.hpp>
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <fstream>
+#include <sstream>
+#include <string>
+#include <vector>
+
+static const float LOW_THRESHOLD = 100;
+static const float HIGH_THRESHOLD = 200;
+
+// The shared scene with heavier noise, a circle and a blur: soft noise gives
+// plenty of weak chains for hysteresis to follow. A dark one-pixel frame
+// drawn after the blur puts edges on the image border, where suppression has
+// to treat the pixels outside as zero the way cv::Canny does
+static cv::Mat syntheticScene(int width, int height) {
+	cv::Mat gray(height, width, CV_8UC1);
+	syntheticLuma(gray, 0, 32);
+	cv::circle(gray, cv::Point(width / 2, height / 2), height / 3, cv::Scalar(200), 3);
+	cv::GaussianBlur(gray, gray, cv::Size(5, 5), 1.2);
+	cv::rectangle(gray, cv::Rect(0, 0, width, height), cv::Scalar(0), 1);
+	return gray;
+}
+
+static bool readFile(const std::string& path, std::string& contents) {
+	std::ifstream in(path);
+	if (!in) {
+		return false;
+	}
+	std::stringstream buffer;
+	buffer << in.rdbuf();
+	contents = buffer.str();
+	return true;
+}
+
+static GLuint compile(GLenum type, const std::string& source, const std::string& name) {
+	GLuint shader = glCreateShader(type);
+	const char* text = source.c_str();
+	glShaderSource(shader, 1, &text, nullptr);
+	glCompileShader(shader);
+	GLint status = 0;
+	glGetShaderiv(shader, GL_COMPILE_STATUS, &status);
+	if (!status) {
+		char log[2048];
+		glGetShaderInfoLog(shader, sizeof(log), nullptr, log);
+		fprintf(stderr, "%s: compile failed: %s\n", name.c_str(), log);
+		return 0;
+	}
+	return shader;
+}
+
+struct Pass {
+	GLuint program = 0;
+	GLint position = -1;
+	GLint texCoord = -1;
+	GLint input = -1;
+	GLint texel = -1;
+	GLint size = -1;
+	GLint lowThreshold = -1;
+	GLint highThreshold = -1;
+	GLint last = -1;
+};
+
+static bool buildPass(const std::string& dir, const std::string& fragmentName, const char* inputSampler, Pass& pass) {
+	std::string vertexSource, fragmentSource;
+	if (!readFile(dir + "/edge_quad.vert", vertexSource) || !readFile(dir + "/" + fragmentName, fragmentSource)) {
+		fprintf(stderr, "Cannot read shaders from %s\n", dir.c_str());
+		return false;
+	}
+	GLuint vertex = compile(GL_VERTEX_SHADER, vertexSource, "edge_quad.vert");
+	GLuint fragment = compile(GL_FRAGMENT_SHADER, fragmentSource, fragmentName);
+	if (!vertex || !fragment) {
+		return false;
+	}
+	pass.program = glCreateProgram();
+	glAttachShader(pass.program, vertex);
+	glAttachShader(pass.program, fragment);
+	glLinkProgram(pass.program);
+	GLint status = 0;
+	glGetProgramiv(pass.program, GL_LINK_STATUS, &status);
+	if (!status) {
+		fprintf(stderr, "%s: link failed\n", fragmentName.c_str());
+		return false;
+	}
+	pass.position = glGetAttribLocation(pass.program, "aPosition");
+	pass.texCoord = glGetAttribLocation(pass.program, "aTexCoord");
+	pass.input = glGetUniformLocation(pass.program, inputSampler);
+	pass.texel = glGetUniformLocation(pass.program, "uTexel");
+	pass.size = glGetUniformLocation(pass.program, "uSize");
+	pass.lowThreshold = glGetUniformLocation(pass.program, "uLowThreshold");
+	pass.highThreshold = glGetUniformLocation(pass.program, "uHighThreshold");
+	pass.last = glGetUniformLocation(pass.program, "uFinal");
+	return true;
+}
+
+static const float QUAD[] = {
+	// x, y, s, t
+	-1.0f, -1.0f, 0.0f, 0.0f,
+	 1.0f, -1.0f, 1.0f, 0.0f,
+	-1.0f,  1.0f, 0.0f, 1.0f,
+	 1.0f,  1.0f, 1.0f, 1.0f,
+};
+
+static void draw(const Pass& pass, GLuint framebuffer, GLuint input) {
+	glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+	glUseProgram(pass.program);
+	glActiveTexture(GL_TEXTURE0);
+	glBindTexture(GL_TEXTURE_2D, input);
+	glUniform1i(pass.input, 0);
+	glVertexAttribPointer(pass.position, 2, GL_FLOAT, GL_FALSE, 16, QUAD);
+	glEnableVertexAttribArray(pass.position);
+	glVertexAttribPointer(pass.texCoord, 2, GL_FLOAT, GL_FALSE, 16, QUAD + 2);
+	glEnableVertexAttribArray(pass.texCoord);
+	glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+}
+
+static GLuint createTexture(int width, int height, GLenum format, const void* data) {
+	GLuint texture;
+	glGenTextures(1, &texture);
+	glBindTexture(GL_TEXTURE_2D, texture);
+	glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+	glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+	glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+	glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+	glTexImage2D(GL_TEXTURE_2D, 0, format, width, height, 0, format, GL_UNSIGNED_BYTE, data);
+	return texture;
+}
+
+static bool createContext() {
+	EGLDisplay display = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+	if (display == EGL_NO_DISPLAY || !eglInitialize(display, nullptr, nullptr)) {
+		fprintf(stderr, "No EGL display\n");
+		return false;
+	}
+	const EGLint configAttributes[] = {
+		EGL_SURFACE_TYPE, EGL_PBUFFER_BIT,
+		EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+		EGL_RED_SIZE, 8, EGL_GREEN_SIZE, 8, EGL_BLUE_SIZE, 8, EGL_ALPHA_SIZE, 8,
+		EGL_NONE
+	};
+	EGLConfig config;
+	EGLint configCount = 0;
+	if (!eglChooseConfig(display, configAttributes, &config, 1, &configCount) || configCount == 0) {
+		fprintf(stderr, "No ES2 pbuffer config\n");
+		return false;
+	}
+	// All passes render into framebuffer objects; the pbuffer only makes the
+	// context current
+	const EGLint surfaceAttributes[] = { EGL_WIDTH, 1, EGL_HEIGHT, 1, EGL_NONE };
+	EGLSurface surface = eglCreatePbufferSurface(display, config, surfaceAttributes);
+	const EGLint contextAttributes[] = { EGL_CONTEXT_CLIENT_VERSION, 2, EGL_NONE };
+	eglBindAPI(EGL_OPENGL_ES_API);
+	EGLContext context = eglCreateContext(display, config, EGL_NO_CONTEXT, contextAttributes);
+	if (surface == EGL_NO_SURFACE || context == EGL_NO_CONTEXT
+			|| !eglMakeCurrent(display, surface, surface, context)) {
+		fprintf(stderr, "Cannot create ES2 context\n");
+		return false;
+	}
+	printf("Renderer: %s\n", (const char*) glGetString(GL_RENDERER));
+	return true;
+}
+
+int main(int argc, char** argv) {
+	std::string imagePath = argc > 1 ? argv[1] : "-";
+	int hysteresisPasses = argc > 2 ? std::max(1, atoi(argv[2])) : 8;
+	double tolerancePercent = argc > 3 ? atof(argv[3]) : 0.5;
+	std::string shaderDir = argc > 4 ? argv[4] : "app/src/main/assets/shaders";
+
+	int sceneWidth = 640;
+	int sceneHeight = 480;
+	int parsed = 0;
+	bool synthetic = imagePath == "-"
+			|| (sscanf(imagePath.c_str(), "%dx%d%n", &sceneWidth, &sceneHeight, &parsed) == 2
+				&& parsed == (int) imagePath.size() && sceneWidth >= 16 && sceneHeight >= 16);
+	cv::Mat gray = synthetic ? syntheticScene(sceneWidth, sceneHeight) : cv::imread(imagePath, cv::IMREAD_GRAYSCALE);
+	if (gray.empty()) {
+		fprintf(stderr, "Cannot read %s\n", imagePath.c_str());
+		return 2;
+	}
+	int width = gray.cols;
+	int height = gray.rows;
+
+	if (!createContext()) {
+		return 2;
+	}
+	Pass sobel, nms, hysteresis;
+	if (!buildPass(shaderDir, "edge_sobel.frag", "sLuma", sobel)
+			|| !buildPass(shaderDir, "edge_nms.frag", "sGradient", nms)
+			|| !buildPass(shaderDir, "edge_hysteresis.frag", "sState", hysteresis)) {
+		return 2;
+	}
+
+	glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+	glPixelStorei(GL_PACK_ALIGNMENT, 1);
+	cv::Mat luma = gray.isContinuous() ? gray : gray.clone();
+	GLuint lumaTexture = createTexture(width, height, GL_LUMINANCE, luma.data);
+	GLuint textures[3];
+	GLuint framebuffers[3];
+	glGenFramebuffers(3, framebuffers);
+	for (int i = 0; i < 3; i++) {
+		textures[i] = createTexture(width, height, GL_RGBA, nullptr);
+		glBindFramebuffer(GL_FRAMEBUFFER, framebuffers[i]);
+		glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, textures[i], 0);
+		if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE) {
+			fprintf(stderr, "Incomplete framebuffer\n");
+			return 2;
+		}
+	}
+	glViewport(0, 0, width, height);
+
+	auto start = std::chrono::steady_clock::now();
+	glUseProgram(sobel.program);
+	glUniform2f(sobel.texel, 1.0f / width, 1.0f / height);
+	draw(sobel, framebuffers[0], lumaTexture);
+
+	glUseProgram(nms.program);
+	glUniform2f(nms.texel, 1.0f / width, 1.0f / height);
+	glUniform2f(nms.size, (float) width, (float) height);
+	glUniform1f(nms.lowThreshold, LOW_THRESHOLD);
+	glUniform1f(nms.highThreshold, HIGH_THRESHOLD);
+	draw(nms, framebuffers[1], textures[0]);
+
+	int source = 1;
+	glUseProgram(hysteresis.program);
+	glUniform2f(hysteresis.texel, 1.0f / width, 1.0f / height);
+	for (int pass = 0; pass < hysteresisPasses; pass++) {
+		int target = source == 1 ? 2 : 1;
+		glUseProgram(hysteresis.program);
+		glUniform1f(hysteresis.last, pass == hysteresisPasses - 1 ? 1.0f : 0.0f);
+		draw(hysteresis, framebuffers[target], textures[source]);
+		source = target;
+	}
+
+	std::vector<uint8_t> rgba((size_t) width * height * 4);
+	glBindFramebuffer(GL_FRAMEBUFFER, framebuffers[source]);
+	glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, rgba.data());
+	double gpuMillis = std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+	if (glGetError() != GL_NO_ERROR) {
+		fprintf(stderr, "GL error during the passes\n");
+		return 2;
+	}
+
+	cv::Mat expected;
+	start = std::chrono::steady_clock::now();
+	cv::Canny(gray, expected, LOW_THRESHOLD, HIGH_THRESHOLD);
+	double cpuMillis = std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+
+	long missing = 0;
+	long extra = 0;
+	long edges = 0;
+	for (int row = 0; row < height; row++) {
+		const uint8_t* want = expected.ptr<uint8_t>(row);
+		const uint8_t* got = &rgba[(size_t) row * width * 4];
+		for (int col = 0; col < width; col++) {
+			bool gpuEdge = got[col * 4] >= 128;
+			bool cpuEdge = want[col] != 0;
+			edges += cpuEdge;
+			missing += cpuEdge && !gpuEdge;
+			extra += gpuEdge && !cpuEdge;
+		}
+	}
+	long pixels = (long) width * height;
+	double percent = (missing + extra) * 100.0 / pixels;
+	printf("%dx%d, %d hysteresis passes: %ld CPU edge pixels, %ld missing on GPU, %ld extra (%.3f%% of pixels)\n",
+			width, height, hysteresisPasses, edges, missing, extra, percent);
+	printf("GPU passes + readback %.2f ms, cv::Canny %.2f ms\n", gpuMillis, cpuMillis);
+	if (percent > tolerancePercent) {
+		printf("FAIL: above the %.3f%% tolerance\n", tolerancePercent);
+		return 1;
+	}
+	printf("OK\n");
+	return 0;
+}
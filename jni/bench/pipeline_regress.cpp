@@ -0,0 +1,511 @@
+// Host regression harness for the native pipeline. Replays a corpus of
+// recorded NV21 frames through EdgePipeline at several resolutions and in
+// every mode the app offers (color, luma-only with cv::Canny, luma-only tiled
+// Canny at several worker counts), and writes one JSON object per line:
+// timings per stage (the pipeline's trace sections, plus whole-frame
+// processing and the RLE, PNG and delta encodes) and FNV-1a checksums of the
+// edge masks and encoded outputs. Runs from two commits are compared with
+// --compare, which fails on changed output or a slowdown beyond the limit.
+// Within a run, tiled output must match cv::Canny at the same size.
+//
+// Build on a Linux box with OpenCV installed, with CMake (jni/CMakeLists.txt):
+//   cmake -S jni -B build/native && cmake --build build/native --target pipeline_regress
+// or directly:
+//   g++ -std=c++14 -O2 -pthread -I jni -o pipeline_regress jni/bench/pipeline_regress.cpp jni/bench/bench_frames.cpp jni/edge_pipeline.cpp jni/mask_codec.cpp jni/motion_gate.cpp jni/parallel_canny.cpp $(pkg-config --cflags --libs opencv4)
+//
+// Usage: pipeline_regress [options] [frame ...]
+//   --source-size WxH   size of the raw NV21 frames given (default 640x480)
+//   --sizes WxH,...     resolutions to run at (default 640x480,1280x720)
+//   --threads N,...     tiled Canny worker counts (default 1,2,4)
+//   --iterations N      timed passes over the corpus per mode (default 20)
+//   --out FILE          write the records to FILE instead of stdout
+// Frames are raw NV21 dumps of the source size, images OpenCV can read (gray
+// levels only), or recordings made by the app (capture.YuvRecorder), which
+// hold a whole run and set the source size; all in capture order. Every
+// frame is scaled to each resolution. Without frames a synthetic scene
+// drifting a few pixels per frame is generated.
+//
+//        pipeline_regress --compare baseline.jsonl current.jsonl [--max-slowdown PERCENT] [--min-us US]
+// Fails when a checksum differs (PNG only warns: it depends on the libpng
+// build), a config, output or stage of the baseline is missing from the
+// current run, or a stage's p50 grew by more than PERCENT (default 15). Stages
+// whose baseline p50 is under US microseconds (default 20) are too noisy to
+// judge and only reported.
+
+#include "bench_frames.h"
+#include "edge_pipeline.h"
+#include "mask_codec.h"
+#include "trace.h"
+
+#include <opencv2/imgproc.hpp>
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <fstream>
+#include <map>
+#include <string>
+#include <utility>
+#include <vector>
+
+static const int DELTA_TILE_SIZE = 32;
+static const int SYNTHETIC_FRAMES = 8;
+
+typedef std::vector<uint8_t> Frame;
+typedef std::map<std::string, std::vector<double>> StageSamples;
+
+// Trace sections land here while a frame is being processed; encodes are
+// timed by the harness, so their own "encode" sections are not collected
+static StageSamples* collecting = nullptr;
+
+static void collectStage(const char* stage, int64_t, int64_t nanos) {
+	if (collecting != nullptr) {
+		(*collecting)[stage].push_back(nanos / 1000.0);
+	}
+}
+
+struct Size {
+	int width;
+	int height;
+};
+
+struct Checksum {
+	uint64_t hash = 14695981039346656037ULL;
+
+	void add(const uint8_t* data, size_t length) {
+		for (size_t i = 0; i < length; i++) {
+			hash = (hash ^ data[i]) * 1099511628211ULL;
+		}
+	}
+
+	// Also folds in the length, so a failed (-1) or empty output counts
+	void addOutput(const uint8_t* data, int length) {
+		uint8_t size[4] = { (uint8_t) (length >> 24), (uint8_t) (length >> 16), (uint8_t) (length >> 8),
+				(uint8_t) length };
+		add(size, sizeof(size));
+		if (length > 0) {
+			add(data, (size_t) length);
+		}
+	}
+};
+
+// Appends the frames of a recording from the app: a 32-byte header
+// ("EDGEYUV1", u32 width, height and frame count, big-endian), then per frame
+// an 8-byte timestamp and the NV21 data. Returns false when `path` is not a
+// recording; `error` is set when it is one but cannot be read.
+static bool loadRecording(const std::string& path, Size& source, bool fixedSource, std::vector<Frame>& corpus,
+		bool& error) {
+	error = false;
+	FILE* file = fopen(path.c_str(), "rb");
+	if (file == nullptr) {
+		return false;
+	}
+	uint8_t header[32];
+	if (fread(header, 1, sizeof(header), file) != sizeof(header) || memcmp(header, "EDGEYUV1", 8) != 0) {
+		fclose(file);
+		return false;
+	}
+	auto u32 = [&header](int offset) {
+		return (uint32_t) header[offset] << 24 | (uint32_t) header[offset + 1] << 16
+				| (uint32_t) header[offset + 2] << 8 | header[offset + 3];
+	};
+	Size size = { (int) u32(8), (int) u32(12) };
+	uint32_t count = u32(16);
+	if (fixedSource && (size.width != source.width || size.height != source.height)) {
+		fprintf(stderr, "%s is %dx%d, the other frames %dx%d\n", path.c_str(), size.width, size.height,
+				source.width, source.height);
+		error = true;
+	}
+	source = size;
+	for (uint32_t i = 0; i < count && !error; i++) {
+		uint8_t timestamp[8];
+		Frame nv21((size_t) size.width * size.height * 3 / 2);
+		if (fread(timestamp, 1, sizeof(timestamp), file) != sizeof(timestamp)
+				|| fread(nv21.data(), 1, nv21.size(), file) != nv21.size()) {
+			// Cut short; keep the whole frames
+			break;
+		}
+		corpus.push_back(nv21);
+	}
+	fclose(file);
+	return true;
+}
+
+// Scales the Y plane and the interleaved VU plane separately, so the result
+// is again NV21
+static Frame scaleFrame(const Frame& nv21, Size from, Size to) {
+	if (from.width == to.width && from.height == to.height) {
+		return nv21;
+	}
+	Frame scaled((size_t) to.width * to.height * 3 / 2);
+	cv::Mat srcY(from.height, from.width, CV_8UC1, const_cast<uint8_t*>(nv21.data()));
+	cv::Mat srcVu(from.height / 2, from.width / 2, CV_8UC2,
+			const_cast<uint8_t*>(nv21.data()) + (size_t) from.width * from.height);
+	cv::Mat dstY(to.height, to.width, CV_8UC1, scaled.data());
+	cv::Mat dstVu(to.height / 2, to.width / 2, CV_8UC2, scaled.data() + (size_t) to.width * to.height);
+	int interpolation = to.width < from.width ? cv::INTER_AREA : cv::INTER_LINEAR;
+	cv::resize(srcY, dstY, dstY.size(), 0, 0, interpolation);
+	cv::resize(srcVu, dstVu, dstVu.size(), 0, 0, interpolation);
+	return scaled;
+}
+
+static bool parseSize(const char* text, Size& size) {
+	return sscanf(text, "%dx%d", &size.width, &size.height) == 2 && size.width > 0 && size.height > 0
+			&& size.width % 2 == 0 && size.height % 2 == 0;
+}
+
+static std::vector<std::string> splitList(const char* text) {
+	std::vector<std::string> items;
+	std::string current;
+	for (const char* c = text; ; c++) {
+		if (*c == ',' || *c == '\0') {
+			if (!current.empty()) {
+				items.push_back(current);
+			}
+			current.clear();
+			if (*c == '\0') {
+				break;
+			}
+		} else {
+			current += *c;
+		}
+	}
+	return items;
+}
+
+static double microsSince(std::chrono::steady_clock::time_point start) {
+	return std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+}
+
+struct Mode {
+	std::string name;
+	bool lumaOnly;
+	int workers;
+};
+
+struct ModeResult {
+	StageSamples stages;
+	Checksum mask;
+	Checksum rle;
+	Checksum png;
+	Checksum delta;
+};
+
+static bool runMode(const Mode& mode, Size size, const std::vector<Frame>& frames, int iterations,
+		ModeResult& result) {
+	EdgePipeline pipeline(size.width, size.height);
+	pipeline.setLumaOnly(mode.lumaOnly);
+	pipeline.setTiledWorkers(mode.workers);
+	size_t pixels = (size_t) size.width * size.height;
+	std::vector<uint8_t> mask(pixels);
+	std::vector<uint8_t> out(pixels + 1024);
+	int64_t seq = 0;
+
+	// Pass 0 warms up and produces the checksums; the timed passes follow
+	for (int pass = 0; pass <= iterations; pass++) {
+		StageSamples* stages = pass > 0 ? &result.stages : nullptr;
+		for (const Frame& nv21 : frames) {
+			YuvPlanes planes;
+			planes.y = nv21.data();
+			planes.v = nv21.data() + pixels;
+			planes.u = planes.v + 1;
+			planes.yRowStride = size.width;
+			planes.uvRowStride = size.width;
+			planes.uvPixelStride = 2;
+
+			collecting = stages;
+			auto start = std::chrono::steady_clock::now();
+			int length = pipeline.process(planes, mask.data(), mask.size(), seq);
+			double processMicros = microsSince(start);
+			collecting = nullptr;
+			if (length <= 0) {
+				fprintf(stderr, "%s: pipeline failed\n", mode.name.c_str());
+				return false;
+			}
+
+			start = std::chrono::steady_clock::now();
+			int rleLength = pipeline.encode(out.data(), out.size(), seq, 1, MASK_CODEC_RLE_1BPP);
+			double rleMicros = microsSince(start);
+			if (pass == 0) {
+				result.rle.addOutput(out.data(), rleLength);
+			}
+			start = std::chrono::steady_clock::now();
+			int pngLength = pipeline.encode(out.data(), out.size(), seq, 1, MASK_CODEC_PNG);
+			double pngMicros = microsSince(start);
+			if (pass == 0) {
+				result.png.addOutput(out.data(), pngLength);
+			}
+			start = std::chrono::steady_clock::now();
+			int deltaLength = pipeline.encodeDelta(out.data(), out.size(), DELTA_TILE_SIZE, seq);
+			double deltaMicros = microsSince(start);
+			if (pass == 0) {
+				result.mask.add(mask.data(), pixels);
+				result.delta.addOutput(out.data(), deltaLength);
+			} else {
+				(*stages)["process"].push_back(processMicros);
+				(*stages)["encodeRle"].push_back(rleMicros);
+				(*stages)["encodePng"].push_back(pngMicros);
+				(*stages)["deltaEncode"].push_back(deltaMicros);
+			}
+			seq++;
+		}
+	}
+	return true;
+}
+
+static void writeTiming(FILE* out, const std::string& config, const std::string& stage,
+		std::vector<double>& samples) {
+	std::sort(samples.begin(), samples.end());
+	double total = 0;
+	for (double sample : samples) {
+		total += sample;
+	}
+	fprintf(out, "{\"config\":\"%s\",\"kind\":\"timing\",\"stage\":\"%s\",\"mean_us\":%.2f,\"p50_us\":%.2f,"
+			"\"p95_us\":%.2f,\"samples\":%zu}\n", config.c_str(), stage.c_str(), total / samples.size(),
+			samples[samples.size() / 2], samples[samples.size() * 95 / 100], samples.size());
+}
+
+static void writeChecksum(FILE* out, const std::string& config, const char* output, const Checksum& checksum) {
+	fprintf(out, "{\"config\":\"%s\",\"kind\":\"checksum\",\"output\":\"%s\",\"fnv1a64\":\"%016llx\"}\n",
+			config.c_str(), output, (unsigned long long) checksum.hash);
+}
+
+// Reads a string or number field from one of the records written above
+static std::string field(const std::string& line, const char* name) {
+	std::string key = std::string("\"") + name + "\":";
+	size_t at = line.find(key);
+	if (at == std::string::npos) {
+		return std::string();
+	}
+	at += key.size();
+	if (line[at] == '"') {
+		size_t end = line.find('"', at + 1);
+		return end == std::string::npos ? std::string() : line.substr(at + 1, end - at - 1);
+	}
+	size_t end = line.find_first_of(",}", at);
+	return line.substr(at, end - at);
+}
+
+struct Records {
+	std::string opencv;
+	// (config, stage) -> p50 in microseconds
+	std::map<std::pair<std::string, std::string>, double> p50;
+	// (config, output) -> checksum
+	std::map<std::pair<std::string, std::string>, std::string> checksums;
+};
+
+static bool readRecords(const char* path, Records& records) {
+	std::ifstream in(path);
+	if (!in) {
+		fprintf(stderr, "could not read %s\n", path);
+		return false;
+	}
+	std::string line;
+	while (std::getline(in, line)) {
+		std::string kind = field(line, "kind");
+		if (kind == "run") {
+			records.opencv = field(line, "opencv");
+		} else if (kind == "timing") {
+			records.p50[std::make_pair(field(line, "config"), field(line, "stage"))] =
+					atof(field(line, "p50_us").c_str());
+		} else if (kind == "checksum") {
+			records.checksums[std::make_pair(field(line, "config"), field(line, "output"))] =
+					field(line, "fnv1a64");
+		}
+	}
+	return true;
+}
+
+static int compare(const char* baselinePath, const char* currentPath, double maxSlowdown, double minMicros) {
+	Records baseline;
+	Records current;
+	if (!readRecords(baselinePath, baseline) || !readRecords(currentPath, current)) {
+		return 2;
+	}
+	if (baseline.opencv != current.opencv) {
+		printf("warning: OpenCV %s vs %s, timings and PNG output may differ\n", baseline.opencv.c_str(),
+				current.opencv.c_str());
+	}
+	int failures = 0;
+	for (const auto& entry : baseline.checksums) {
+		const std::string& config = entry.first.first;
+		const std::string& output = entry.first.second;
+		auto found = current.checksums.find(entry.first);
+		if (found == current.checksums.end()) {
+			// A config or output that stopped being produced is a regression too
+			printf("MISSING   %-24s %-6s\n", config.c_str(), output.c_str());
+			failures++;
+		} else if (found->second != entry.second) {
+			bool fatal = output != "png";
+			printf("%s %-24s %-6s %s -> %s\n", fatal ? "CHANGED  " : "warning: ", config.c_str(), output.c_str(),
+					entry.second.c_str(), found->second.c_str());
+			failures += fatal;
+		}
+	}
+	printf("%-24s %-12s %10s %10s %8s\n", "config", "stage", "base p50", "p50", "change");
+	for (const auto& entry : baseline.p50) {
+		auto found = current.p50.find(entry.first);
+		if (found == current.p50.end()) {
+			printf("%-24s %-12s %10.1f %10s %8s  MISSING\n", entry.first.first.c_str(),
+					entry.first.second.c_str(), entry.second, "-", "-");
+			failures++;
+			continue;
+		}
+		if (entry.second <= 0) {
+			continue;
+		}
+		double change = 100.0 * (found->second / entry.second - 1);
+		bool judged = entry.second >= minMicros;
+		bool slower = judged && change > maxSlowdown;
+		printf("%-24s %-12s %10.1f %10.1f %+7.1f%%%s\n", entry.first.first.c_str(), entry.first.second.c_str(),
+				entry.second, found->second, change, slower ? "  SLOWER" : judged ? "" : "  (noise)");
+		failures += slower;
+	}
+	printf("%s\n", failures == 0 ? "no regressions" : "REGRESSED");
+	return failures == 0 ? 0 : 1;
+}
+
+static int usage() {
+	fprintf(stderr, "usage: pipeline_regress [--source-size WxH] [--sizes WxH,...] [--threads N,...] "
+			"[--iterations N] [--out FILE] [frame ...]\n"
+			"       pipeline_regress --compare baseline.jsonl current.jsonl [--max-slowdown PERCENT] "
+			"[--min-us US]\n");
+	return 2;
+}
+
+int main(int argc, char** argv) {
+	Size source = { 640, 480 };
+	std::vector<Size> sizes = { { 640, 480 }, { 1280, 720 } };
+	std::vector<int> threads = { 1, 2, 4 };
+	int iterations = 20;
+	const char* outPath = nullptr;
+	const char* comparePaths[2] = { nullptr, nullptr };
+	double maxSlowdown = 15;
+	double minMicros = 20;
+	std::vector<std::string> paths;
+
+	for (int i = 1; i < argc; i++) {
+		std::string arg = argv[i];
+		bool hasValue = i + 1 < argc;
+		if (arg == "--source-size" && hasValue) {
+			if (!parseSize(argv[++i], source)) {
+				return usage();
+			}
+		} else if (arg == "--sizes" && hasValue) {
+			sizes.clear();
+			for (const std::string& item : splitList(argv[++i])) {
+				Size size;
+				if (!parseSize(item.c_str(), size)) {
+					return usage();
+				}
+				sizes.push_back(size);
+			}
+		} else if (arg == "--threads" && hasValue) {
+			threads.clear();
+			for (const std::string& item : splitList(argv[++i])) {
+				threads.push_back(atoi(item.c_str()));
+			}
+		} else if (arg == "--iterations" && hasValue) {
+			iterations = std::max(1, atoi(argv[++i]));
+		} else if (arg == "--out" && hasValue) {
+			outPath = argv[++i];
+		} else if (arg == "--compare" && i + 2 < argc) {
+			comparePaths[0] = argv[++i];
+			comparePaths[1] = argv[++i];
+		} else if (arg == "--max-slowdown" && hasValue) {
+			maxSlowdown = atof(argv[++i]);
+		} else if (arg == "--min-us" && hasValue) {
+			minMicros = atof(argv[++i]);
+		} else if (arg.compare(0, 2, "--") == 0) {
+			return usage();
+		} else {
+			paths.push_back(arg);
+		}
+	}
+	if (comparePaths[0] != nullptr) {
+		return compare(comparePaths[0], comparePaths[1], maxSlowdown, minMicros);
+	}
+	if (sizes.empty()) {
+		return usage();
+	}
+
+	std::vector<Frame> corpus;
+	for (const std::string& path : paths) {
+		bool error;
+		if (loadRecording(path, source, !corpus.empty(), corpus, error)) {
+			if (error) {
+				return 1;
+			}
+			continue;
+		}
+		Frame nv21;
+		if (!loadFrame(path, source.width, source.height, nv21)) {
+			fprintf(stderr, "could not read %s as a %dx%d NV21 frame or image\n", path.c_str(), source.width,
+					source.height);
+			return 1;
+		}
+		corpus.push_back(nv21);
+	}
+	if (corpus.empty()) {
+		for (int variant = 0; variant < SYNTHETIC_FRAMES; variant++) {
+			corpus.push_back(syntheticFrame(source.width, source.height, variant));
+		}
+	}
+
+	FILE* out = stdout;
+	if (outPath != nullptr && (out = fopen(outPath, "w")) == nullptr) {
+		fprintf(stderr, "could not write %s\n", outPath);
+		return 1;
+	}
+	fprintf(out, "{\"kind\":\"run\",\"opencv\":\"%s\",\"frames\":%zu,\"iterations\":%d,\"source\":\"%dx%d\"}\n",
+			CV_VERSION, corpus.size(), iterations, source.width, source.height);
+
+	std::vector<Mode> modes = { { "color", false, 0 }, { "luma", true, 0 } };
+	for (int workers : threads) {
+		if (workers > 0) {
+			modes.push_back({ "luma-tiled" + std::to_string(workers), true, workers });
+		}
+	}
+
+	setTraceHook(collectStage);
+	bool identical = true;
+	for (Size size : sizes) {
+		std::vector<Frame> frames;
+		for (const Frame& nv21 : corpus) {
+			frames.push_back(scaleFrame(nv21, source, size));
+		}
+		std::string prefix = std::to_string(size.width) + "x" + std::to_string(size.height) + "/";
+		uint64_t lumaMask = 0;
+		for (const Mode& mode : modes) {
+			ModeResult result;
+			if (!runMode(mode, size, frames, iterations, result)) {
+				return 1;
+			}
+			std::string config = prefix + mode.name;
+			for (auto& stage : result.stages) {
+				writeTiming(out, config, stage.first, stage.second);
+			}
+			writeChecksum(out, config, "mask", result.mask);
+			writeChecksum(out, config, "rle", result.rle);
+			writeChecksum(out, config, "png", result.png);
+			writeChecksum(out, config, "delta", result.delta);
+			fflush(out);
+			if (mode.workers == 0 && mode.lumaOnly) {
+				lumaMask = result.mask.hash;
+			} else if (mode.workers > 0 && result.mask.hash != lumaMask) {
+				fprintf(stderr, "%s: tiled mask DIFFERS from cv::Canny\n", config.c_str());
+				identical = false;
+			}
+			// Progress on stderr, so the records can go to stdout; samples are sorted by now
+			const std::vector<double>& process = result.stages["process"];
+			fprintf(stderr, "%s: process p50 %.1f us\n", config.c_str(), process[process.size() / 2]);
+		}
+	}
+	setTraceHook(nullptr);
+	if (out != stdout) {
+		fclose(out);
+	}
+	return identical ? 0 : 1;
+}
@@ -1,21 +1,171 @@
 #include <jni.h>
-#include <opencv2/opencv.hpp>
-#include <vector>
-
-extern "C" JNIEXPORT jbyteArray JNICALL
-Java_com_edgedetector_CameraActivity_processFrame(JNIEnv* env, jobject, jbyteArray input, jint width, jint height) {
-	jbyte* inputBytes = env->GetByteArrayElements(input, nullptr);
-	cv::Mat yuv(height + height / 2, width, CV_8UC1, (unsigned char*)inputBytes);
-	cv::Mat bgr;
-	cv::cvtColor(yuv, bgr, cv::COLOR_YUV2BGR_NV21);
-	cv::Mat edges;
-	cv::Canny(bgr, edges, 100, 200);
-	cv::Mat out;
-	cv::cvtColor(edges, out, cv::COLOR_GRAY2BGR);
-	std::vector<uchar> buf;
-	cv::imencode(".png", out, buf);
-	jbyteArray result = env->NewByteArray(buf.size());
-	env->SetByteArrayRegion(result, 0, buf.size(), reinterpret_cast<jbyte*>(buf.data()));
-	env->ReleaseByteArrayElements(input, inputBytes, JNI_ABORT);
-	return result;
-}
\ No newline at end of file
+#include <new>
+#include "edge_pipeline.h"
+
+static bool planeFits(JNIEnv* env, jobject buffer, jlong rowStride, jlong pixelStride, jlong cols, jlong rows) {
+	jlong capacity = env->GetDirectBufferCapacity(buffer);
+	return capacity >= 0 && capacity >= rowStride * (rows - 1) + pixelStride * (cols - 1) + 1;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_edgedetector_CameraActivity_createPipeline(JNIEnv*, jobject, jint width, jint height) {
+	if (width <= 0 || height <= 0) {
+		return 0;
+	}
+	EdgePipeline* pipeline = new (std::nothrow) EdgePipeline(width, height);
+	return reinterpret_cast<jlong>(pipeline);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_edgedetector_CameraActivity_releasePipeline(JNIEnv*, jobject, jlong handle) {
+	delete reinterpret_cast<EdgePipeline*>(handle);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_edgedetector_CameraActivity_setLumaOnly(JNIEnv*, jobject, jlong handle, jboolean lumaOnly) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline != nullptr) {
+		pipeline->setLumaOnly(lumaOnly == JNI_TRUE);
+	}
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_edgedetector_CameraActivity_setTiledWorkers(JNIEnv*, jobject, jlong handle, jint workers) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline != nullptr) {
+		pipeline->setTiledWorkers(workers);
+	}
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_edgedetector_CameraActivity_configureMotionGate(JNIEnv*, jobject, jlong handle,
+		jboolean enabled, jint threshold, jint refreshInterval) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline != nullptr) {
+		pipeline->setMotionGate(enabled == JNI_TRUE, threshold, refreshInterval);
+	}
+}
+
+// `layout` holds six ints per region: source x, y, width, height, then the
+// canvas x and y of its edges (see EdgePipeline::setRegions); null or empty
+// processes the whole frame
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_edgedetector_CameraActivity_setRegions(JNIEnv* env, jobject, jlong handle, jintArray layout) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline == nullptr) {
+		return JNI_FALSE;
+	}
+	std::vector<EdgeRegion> regions;
+	jsize length = layout != nullptr ? env->GetArrayLength(layout) : 0;
+	if (length % 6 != 0) {
+		return JNI_FALSE;
+	}
+	if (length > 0) {
+		std::vector<jint> values(length);
+		env->GetIntArrayRegion(layout, 0, length, values.data());
+		for (jsize i = 0; i < length; i += 6) {
+			EdgeRegion region;
+			region.source = cv::Rect(values[i], values[i + 1], values[i + 2], values[i + 3]);
+			region.canvas = cv::Point(values[i + 4], values[i + 5]);
+			regions.push_back(region);
+		}
+	}
+	return pipeline->setRegions(regions) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_edgedetector_CameraActivity_processFramePlanes(JNIEnv* env, jobject, jlong handle,
+		jobject yPlane, jobject uPlane, jobject vPlane,
+		jint yRowStride, jint uvRowStride, jint uvPixelStride,
+		jint width, jint height, jobject output, jlong seq) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline == nullptr || pipeline->width() != width || pipeline->height() != height) {
+		return -1;
+	}
+	YuvPlanes planes;
+	planes.y = static_cast<const uint8_t*>(env->GetDirectBufferAddress(yPlane));
+	planes.u = static_cast<const uint8_t*>(env->GetDirectBufferAddress(uPlane));
+	planes.v = static_cast<const uint8_t*>(env->GetDirectBufferAddress(vPlane));
+	planes.yRowStride = yRowStride;
+	planes.uvRowStride = uvRowStride;
+	planes.uvPixelStride = uvPixelStride;
+	uint8_t* out = static_cast<uint8_t*>(env->GetDirectBufferAddress(output));
+	if (planes.y == nullptr || planes.u == nullptr || planes.v == nullptr || out == nullptr) {
+		return -1;
+	}
+	if (!planeFits(env, yPlane, yRowStride, 1, width, height)
+			|| !planeFits(env, uPlane, uvRowStride, uvPixelStride, width / 2, height / 2)
+			|| !planeFits(env, vPlane, uvRowStride, uvPixelStride, width / 2, height / 2)) {
+		return -1;
+	}
+	return pipeline->process(planes, out, (size_t) env->GetDirectBufferCapacity(output), seq);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_edgedetector_CameraActivity_encodeFrame(JNIEnv* env, jobject, jlong handle, jobject output, jlong seq,
+		jint downscale, jint codec) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	uint8_t* out = static_cast<uint8_t*>(env->GetDirectBufferAddress(output));
+	if (pipeline == nullptr || out == nullptr) {
+		return -1;
+	}
+	return pipeline->encode(out, (size_t) env->GetDirectBufferCapacity(output), seq, downscale,
+			static_cast<MaskCodec>(codec));
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_edgedetector_CameraActivity_encodeDelta(JNIEnv* env, jobject, jlong handle, jobject output,
+		jint tileSize, jlong seq, jint stream, jint downscale, jboolean restart) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	uint8_t* out = static_cast<uint8_t*>(env->GetDirectBufferAddress(output));
+	if (pipeline == nullptr || out == nullptr) {
+		return -1;
+	}
+	return pipeline->encodeDelta(out, (size_t) env->GetDirectBufferCapacity(output), tileSize, seq, stream,
+			downscale, restart == JNI_TRUE);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_edgedetector_CameraActivity_loadGpuMask(JNIEnv* env, jobject, jlong handle,
+		jobject rgba, jint width, jint height) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline == nullptr || pipeline->width() != width || pipeline->height() != height) {
+		return -1;
+	}
+	const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(rgba));
+	if (data == nullptr) {
+		return -1;
+	}
+	return pipeline->loadMask(data, (size_t) env->GetDirectBufferCapacity(rgba));
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_edgedetector_CameraActivity_compareGpuMask(JNIEnv* env, jobject, jlong handle,
+		jobject rgba, jint width, jint height) {
+	EdgePipeline* pipeline = reinterpret_cast<EdgePipeline*>(handle);
+	if (pipeline == nullptr || pipeline->width() != width || pipeline->height() != height) {
+		return -1;
+	}
+	const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(rgba));
+	if (data == nullptr) {
+		return -1;
+	}
+	return pipeline->compareMask(data, (size_t) env->GetDirectBufferCapacity(rgba));
+}
+
+// Used off the processing thread by the flight recorder; touches no pipeline
+extern "C" JNIEXPORT jint JNICALL
+Java_com_edgedetector_FlightRecorder_encodeMask(JNIEnv* env, jclass, jobject mask, jint pixels,
+		jobject packed, jobject output) {
+	const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(mask));
+	uint8_t* bits = static_cast<uint8_t*>(env->GetDirectBufferAddress(packed));
+	uint8_t* out = static_cast<uint8_t*>(env->GetDirectBufferAddress(output));
+	size_t packedLength = ((size_t) pixels + 7) / 8;
+	if (data == nullptr || bits == nullptr || out == nullptr || pixels <= 0
+			|| env->GetDirectBufferCapacity(mask) < pixels
+			|| env->GetDirectBufferCapacity(packed) < (jlong) packedLength) {
+		return -1;
+	}
+	packMask(data, (size_t) pixels, bits);
+	return rleEncode(bits, packedLength, out, (size_t) env->GetDirectBufferCapacity(output));
+}
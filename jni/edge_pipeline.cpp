@@ -0,0 +1,431 @@
+#include "edge_pipeline.h"
+#include "trace.h"
+
+#include <opencv2/imgcodecs.hpp>
+#include <opencv2/imgproc.hpp>
+#include <algorithm>
+#include <cstring>
+
+static const double CANNY_LOW_THRESHOLD = 100;
+static const double CANNY_HIGH_THRESHOLD = 200;
+static const int GATE_TILE_SIZE = 64;
+// Extra rows/columns around a dirty tile so its edges see their neighbourhood
+static const int GATE_TILE_HALO = 8;
+
+EdgePipeline::EdgePipeline(int width, int height)
+		: width_(width), height_(height), lumaOnly_(false), refreshInterval_(30),
+		framesSinceRefresh_(0), partialSinceRefresh_(false), lastChangedTiles_(0), hasEdges_(false), reducedScale_(0) {
+	chromaScratch_.create(height / 2, width / 2, CV_8UC2);
+	bgr_.create(height, width, CV_8UC3);
+	edges_.create(height, width, CV_8UC1);
+	// Edge maps compress well; this is the incompressible upper bound for a
+	// single-channel PNG, so the vector never has to grow once warmed up.
+	encoded_.reserve((size_t) width * height + height + 1024);
+	layout_.push_back({ cv::Rect(0, 0, width, height), cv::Point(0, 0) });
+}
+
+void EdgePipeline::setLumaOnly(bool lumaOnly) {
+	if (lumaOnly != lumaOnly_) {
+		// Force a full pass, or a gated still scene keeps the other mode's mask
+		hasEdges_ = false;
+	}
+	lumaOnly_ = lumaOnly;
+	for (std::unique_ptr<EdgePipeline>& detector : regionDetectors_) {
+		detector->setLumaOnly(lumaOnly);
+	}
+}
+
+void EdgePipeline::setMotionGate(bool enabled, int threshold, int refreshInterval) {
+	for (std::unique_ptr<EdgePipeline>& detector : regionDetectors_) {
+		detector->setMotionGate(enabled, threshold, refreshInterval);
+	}
+	if (!enabled) {
+		gate_.reset();
+		return;
+	}
+	if (!gate_) {
+		gate_.reset(new MotionGate(width_, height_, GATE_TILE_SIZE));
+		tileScratch_.create(GATE_TILE_SIZE + 2 * GATE_TILE_HALO, GATE_TILE_SIZE + 2 * GATE_TILE_HALO, CV_8UC1);
+		// Force a full pass so the gate and the edge mask start in sync
+		hasEdges_ = false;
+	}
+	gate_->setThreshold(threshold);
+	refreshInterval_ = std::max(1, refreshInterval);
+}
+
+void EdgePipeline::setTiledWorkers(int workers) {
+	if (workers <= 0) {
+		tiled_.reset();
+	} else if (!tiled_ || tiled_->workers() != workers) {
+		tiled_.reset(new ParallelCanny(width_, height_, workers));
+	}
+}
+
+bool EdgePipeline::setRegions(const std::vector<EdgeRegion>& regions) {
+	cv::Rect frame(0, 0, width_, height_);
+	cv::Size canvas(0, 0);
+	for (size_t i = 0; i < regions.size(); i++) {
+		const cv::Rect& source = regions[i].source;
+		cv::Rect target(regions[i].canvas, source.size());
+		if (source.width <= 0 || source.height <= 0 || (source & frame) != source
+				|| ((source.x | source.y | source.width | source.height) & 1) != 0
+				|| target.x < 0 || target.y < 0) {
+			return false;
+		}
+		for (size_t j = 0; j < i; j++) {
+			if ((target & cv::Rect(regions[j].canvas, regions[j].source.size())).area() > 0) {
+				return false;
+			}
+		}
+		canvas.width = std::max(canvas.width, target.x + target.width);
+		canvas.height = std::max(canvas.height, target.y + target.height);
+	}
+	regionDetectors_.clear();
+	layout_ = regions;
+	if (regions.empty()) {
+		layout_.push_back({ frame, cv::Point(0, 0) });
+		canvas = frame.size();
+	}
+	for (const EdgeRegion& region : regions) {
+		// Each region gets the settings of the whole-frame pipeline, except
+		// tiling: a pool per region would multiply the threads for bands of
+		// a fraction of the frame
+		std::unique_ptr<EdgePipeline> detector(new EdgePipeline(region.source.width, region.source.height));
+		detector->setLumaOnly(lumaOnly_);
+		if (gate_) {
+			detector->setMotionGate(true, gate_->threshold(), refreshInterval_);
+		}
+		regionDetectors_.push_back(std::move(detector));
+	}
+	edges_.create(canvas, CV_8UC1);
+	edges_.setTo(0);
+	// Nothing to encode until the next process(), which also recomputes the
+	// whole frame: its gate's reference is as old as the previous layout
+	hasEdges_ = false;
+	reducedScale_ = 0;
+	return true;
+}
+
+// Builds a view of the chroma planes as a single interleaved 2-channel Mat.
+// Camera2 usually hands out NV21/NV12 memory behind the U and V plane buffers,
+// in which case the planes are wrapped in place. Fully planar layouts (pixel
+// stride 1) are gathered into the preallocated scratch Mat as VU pairs.
+int EdgePipeline::wrapChroma(const YuvPlanes& planes, cv::Mat& chroma) {
+	int chromaWidth = width_ / 2;
+	int chromaHeight = height_ / 2;
+	uint8_t* u = const_cast<uint8_t*>(planes.u);
+	uint8_t* v = const_cast<uint8_t*>(planes.v);
+	if (planes.uvPixelStride == 2 && v + 1 == u) {
+		chroma = cv::Mat(chromaHeight, chromaWidth, CV_8UC2, v, planes.uvRowStride);
+		return cv::COLOR_YUV2BGR_NV21;
+	}
+	if (planes.uvPixelStride == 2 && u + 1 == v) {
+		chroma = cv::Mat(chromaHeight, chromaWidth, CV_8UC2, u, planes.uvRowStride);
+		return cv::COLOR_YUV2BGR_NV12;
+	}
+	for (int row = 0; row < chromaHeight; row++) {
+		const uint8_t* uRow = u + row * planes.uvRowStride;
+		const uint8_t* vRow = v + row * planes.uvRowStride;
+		uint8_t* dst = chromaScratch_.ptr<uint8_t>(row);
+		for (int col = 0; col < chromaWidth; col++) {
+			dst[2 * col] = vRow[col * planes.uvPixelStride];
+			dst[2 * col + 1] = uRow[col * planes.uvPixelStride];
+		}
+	}
+	chroma = chromaScratch_;
+	return cv::COLOR_YUV2BGR_NV21;
+}
+
+int EdgePipeline::process(const YuvPlanes& planes, uint8_t* out, size_t capacity, int64_t seq) {
+	size_t maskSize = (size_t) width_ * height_;
+	if (maskSize > capacity) {
+		return -1;
+	}
+	bool changed = regionDetectors_.empty() ? detect(planes, seq) : detectRegions(planes, seq);
+	if (!changed) {
+		return 0;
+	}
+	hasEdges_ = true;
+	reducedScale_ = 0;
+
+	TraceSection trace("maskCopy", seq);
+	if (regionDetectors_.empty()) {
+		memcpy(out, edges_.data, maskSize);
+	} else {
+		cv::Mat frame(height_, width_, CV_8UC1, out);
+		frame.setTo(0);
+		for (const EdgeRegion& region : layout_) {
+			cv::Mat target = frame(region.source);
+			edges_(cv::Rect(region.canvas, region.source.size())).copyTo(target);
+		}
+	}
+	return (int) maskSize;
+}
+
+// Updates edges_ for the whole frame; false when motion gating found it
+// unchanged
+bool EdgePipeline::detect(const YuvPlanes& planes, int64_t seq) {
+	cv::Mat luma(height_, width_, CV_8UC1, const_cast<uint8_t*>(planes.y), planes.yRowStride);
+
+	bool full = true;
+	if (gate_) {
+		int dirty;
+		{
+			TraceSection trace("motionGate", seq);
+			dirty = gate_->analyze(luma);
+		}
+		framesSinceRefresh_++;
+		bool refresh = !hasEdges_ || (partialSinceRefresh_ && framesSinceRefresh_ >= refreshInterval_);
+		if (!refresh && dirty == 0) {
+			lastChangedTiles_ = 0;
+			return false;
+		}
+		// Past half the frame, tiles plus halos cost more than one full pass
+		full = refresh || !lumaOnly_ || dirty * 2 > gate_->tileCount();
+		if (full) {
+			gate_->commitAll();
+			framesSinceRefresh_ = 0;
+			partialSinceRefresh_ = false;
+		} else {
+			TraceSection trace("canny", seq);
+			detectDirtyTiles(luma);
+			gate_->commitDirty();
+			partialSinceRefresh_ = true;
+			lastChangedTiles_ = dirty;
+		}
+	}
+	if (full) {
+		detectFull(planes, luma, seq);
+		lastChangedTiles_ = gate_ ? gate_->tileCount() : 1;
+	}
+	hasEdges_ = true;
+	return true;
+}
+
+// Runs each region's pipeline on its crop of the planes, which only moves
+// the plane pointers: strides stay those of the frame. Regions whose gate
+// found nothing new keep their part of the canvas.
+bool EdgePipeline::detectRegions(const YuvPlanes& planes, int64_t seq) {
+	bool changed = false;
+	lastChangedTiles_ = 0;
+	for (size_t i = 0; i < layout_.size(); i++) {
+		const cv::Rect& source = layout_[i].source;
+		YuvPlanes crop = planes;
+		crop.y += (size_t) source.y * planes.yRowStride + source.x;
+		size_t chromaOffset = (size_t) (source.y / 2) * planes.uvRowStride
+				+ (size_t) (source.x / 2) * planes.uvPixelStride;
+		crop.u += chromaOffset;
+		crop.v += chromaOffset;
+		EdgePipeline& detector = *regionDetectors_[i];
+		if (!detector.detect(crop, seq)) {
+			continue;
+		}
+		changed = true;
+		lastChangedTiles_ += detector.lastChangedTiles_;
+		cv::Mat target = edges_(cv::Rect(layout_[i].canvas, source.size()));
+		detector.edges_.copyTo(target);
+	}
+	return changed;
+}
+
+void EdgePipeline::detectFull(const YuvPlanes& planes, const cv::Mat& luma, int64_t seq) {
+	// Destination Mats already have the right size and type, so OpenCV
+	// writes into the existing storage instead of reallocating.
+	if (lumaOnly_) {
+		TraceSection trace("canny", seq);
+		if (tiled_) {
+			tiled_->run(luma, edges_, CANNY_LOW_THRESHOLD, CANNY_HIGH_THRESHOLD);
+		} else {
+			cv::Canny(luma, edges_, CANNY_LOW_THRESHOLD, CANNY_HIGH_THRESHOLD);
+		}
+		return;
+	}
+	cv::Mat chroma;
+	int code;
+	{
+		TraceSection trace("planeCopy", seq);
+		code = wrapChroma(planes, chroma);
+	}
+	{
+		TraceSection trace("yuvConvert", seq);
+		cv::cvtColorTwoPlane(luma, chroma, bgr_, code);
+	}
+	TraceSection trace("canny", seq);
+	cv::Canny(bgr_, edges_, CANNY_LOW_THRESHOLD, CANNY_HIGH_THRESHOLD);
+}
+
+void EdgePipeline::detectDirtyTiles(const cv::Mat& luma) {
+	cv::Rect frame(0, 0, width_, height_);
+	for (int index = 0; index < gate_->tileCount(); index++) {
+		if (!gate_->isDirty(index)) {
+			continue;
+		}
+		cv::Rect tile = gate_->tileRect(index);
+		cv::Rect expanded = cv::Rect(tile.x - GATE_TILE_HALO, tile.y - GATE_TILE_HALO,
+				tile.width + 2 * GATE_TILE_HALO, tile.height + 2 * GATE_TILE_HALO) & frame;
+		// A view into the preallocated scratch already has the right size and
+		// type, so Canny writes into it instead of allocating
+		cv::Mat scratch = tileScratch_(cv::Rect(0, 0, expanded.width, expanded.height));
+		cv::Canny(luma(expanded), scratch, CANNY_LOW_THRESHOLD, CANNY_HIGH_THRESHOLD);
+		cv::Rect interior(tile.x - expanded.x, tile.y - expanded.y, tile.width, tile.height);
+		scratch(interior).copyTo(edges_(tile));
+	}
+}
+
+int EdgePipeline::encode(uint8_t* out, size_t capacity, int64_t seq, int downscale, MaskCodec codec) {
+	if (!hasEdges_) {
+		return -1;
+	}
+	TraceSection trace("encode", seq);
+	const cv::Mat* mask = &scaledMask(downscale);
+	if (codec == MASK_CODEC_RLE_1BPP) {
+		// Both Mats are allocated whole, so their rows are contiguous
+		size_t pixels = mask->total();
+		packed_.resize((pixels + 7) / 8);
+		packMask(mask->ptr<uint8_t>(), pixels, packed_.data());
+		return rleEncode(packed_.data(), packed_.size(), out, capacity);
+	}
+	if (codec != MASK_CODEC_PNG) {
+		return -1;
+	}
+	cv::imencode(".png", *mask, encoded_);
+	if (encoded_.size() > capacity) {
+		return -1;
+	}
+	memcpy(out, encoded_.data(), encoded_.size());
+	return (int) encoded_.size();
+}
+
+// The mask shrunk by `downscale`, computed once per mask for the last
+// factor asked for, so a keyframe and a delta of one stream share it
+const cv::Mat& EdgePipeline::scaledMask(int downscale) {
+	if (downscale <= 1) {
+		return edges_;
+	}
+	if (reducedScale_ != downscale) {
+		// Area averaging followed by "anything set" is a max over each block
+		cv::Size size((edges_.cols + downscale - 1) / downscale, (edges_.rows + downscale - 1) / downscale);
+		cv::resize(edges_, reduced_, size, 0, 0, cv::INTER_AREA);
+		cv::threshold(reduced_, reduced_, 0, 255, cv::THRESH_BINARY);
+		reducedScale_ = downscale;
+	}
+	return reduced_;
+}
+
+int EdgePipeline::loadMask(const uint8_t* rgba, size_t capacity) {
+	size_t pixels = (size_t) width_ * height_;
+	if (pixels * 4 > capacity) {
+		return -1;
+	}
+	for (const EdgeRegion& region : layout_) {
+		const cv::Rect& source = region.source;
+		for (int y = 0; y < source.height; y++) {
+			const uint8_t* src = rgba + ((size_t) (source.y + y) * width_ + source.x) * 4;
+			uint8_t* dst = edges_.ptr<uint8_t>(region.canvas.y + y) + region.canvas.x;
+			for (int x = 0; x < source.width; x++) {
+				dst[x] = src[x * 4] >= 128 ? 255 : 0;
+			}
+		}
+	}
+	hasEdges_ = true;
+	reducedScale_ = 0;
+	// The gate's reference no longer matches the mask; make the next gated
+	// process() recompute the full frame, or every region
+	partialSinceRefresh_ = true;
+	framesSinceRefresh_ = refreshInterval_;
+	for (std::unique_ptr<EdgePipeline>& detector : regionDetectors_) {
+		detector->partialSinceRefresh_ = true;
+		detector->framesSinceRefresh_ = detector->refreshInterval_;
+	}
+	return (int) pixels;
+}
+
+int EdgePipeline::compareMask(const uint8_t* rgba, size_t capacity) const {
+	if (!hasEdges_ || (size_t) width_ * height_ * 4 > capacity) {
+		return -1;
+	}
+	int mismatched = 0;
+	for (const EdgeRegion& region : layout_) {
+		const cv::Rect& source = region.source;
+		for (int y = 0; y < source.height; y++) {
+			const uint8_t* src = rgba + ((size_t) (source.y + y) * width_ + source.x) * 4;
+			const uint8_t* mask = edges_.ptr<uint8_t>(region.canvas.y + y) + region.canvas.x;
+			for (int x = 0; x < source.width; x++) {
+				mismatched += (src[x * 4] >= 128) != (mask[x] != 0);
+			}
+		}
+	}
+	return mismatched;
+}
+
+int EdgePipeline::encodeDelta(uint8_t* out, size_t capacity, int tileSize, int64_t seq, int stream,
+		int downscale, bool restart) {
+	if (!hasEdges_ || tileSize <= 0 || tileSize > 0xFFFF || stream < 0) {
+		return -1;
+	}
+	TraceSection trace("deltaEncode", seq);
+	if ((size_t) stream >= deltaStreams_.size()) {
+		deltaStreams_.resize(stream + 1);
+	}
+	const cv::Mat& mask = scaledMask(downscale);
+	cv::Mat& reference = deltaStreams_[stream].reference;
+	if (restart || !deltaStreams_[stream].hasReference || reference.size() != mask.size()) {
+		mask.copyTo(reference);
+		deltaStreams_[stream].hasReference = true;
+		return -1;
+	}
+	int width = mask.cols;
+	int height = mask.rows;
+	int tilesX = (width + tileSize - 1) / tileSize;
+	int tilesY = (height + tileSize - 1) / tileSize;
+	size_t length = 4;
+	int count = 0;
+	bool fits = capacity >= length;
+	for (int ty = 0; ty < tilesY; ty++) {
+		for (int tx = 0; tx < tilesX; tx++) {
+			cv::Rect tile(tx * tileSize, ty * tileSize,
+					std::min(tileSize, width - tx * tileSize), std::min(tileSize, height - ty * tileSize));
+			bool changed = false;
+			for (int y = tile.y; y < tile.y + tile.height && !changed; y++) {
+				changed = memcmp(mask.ptr<uint8_t>(y) + tile.x, reference.ptr<uint8_t>(y) + tile.x,
+						tile.width) != 0;
+			}
+			if (!changed) {
+				continue;
+			}
+			mask(tile).copyTo(reference(tile));
+			size_t bytes = ((size_t) tile.width * tile.height + 7) / 8;
+			if (!fits || length + 4 + bytes > capacity) {
+				// Keep updating the reference so it matches the keyframe that follows
+				fits = false;
+				continue;
+			}
+			uint8_t* dst = out + length;
+			dst[0] = (uint8_t) (tx >> 8);
+			dst[1] = (uint8_t) tx;
+			dst[2] = (uint8_t) (ty >> 8);
+			dst[3] = (uint8_t) ty;
+			uint8_t* bits = dst + 4;
+			memset(bits, 0, bytes);
+			size_t bit = 0;
+			for (int y = tile.y; y < tile.y + tile.height; y++) {
+				const uint8_t* row = mask.ptr<uint8_t>(y) + tile.x;
+				for (int x = 0; x < tile.width; x++, bit++) {
+					if (row[x]) {
+						bits[bit >> 3] |= (uint8_t) (0x80 >> (bit & 7));
+					}
+				}
+			}
+			length += 4 + bytes;
+			count++;
+		}
+	}
+	if (!fits || count > 0xFFFF) {
+		return -1;
+	}
+	out[0] = (uint8_t) (tileSize >> 8);
+	out[1] = (uint8_t) tileSize;
+	out[2] = (uint8_t) (count >> 8);
+	out[3] = (uint8_t) count;
+	return (int) length;
+}
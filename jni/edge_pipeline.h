@@ -0,0 +1,167 @@
+#ifndef EDGE_PIPELINE_H
+#define EDGE_PIPELINE_H
+
+#include <opencv2/core.hpp>
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+#include <vector>
+
+#include "mask_codec.h"
+#include "motion_gate.h"
+#include "parallel_canny.h"
+
+// One YUV_420_888 frame as delivered by Camera2: three planes plus strides.
+// The Y plane always has a pixel stride of 1; U and V share their strides.
+struct YuvPlanes {
+	const uint8_t* y;
+	const uint8_t* u;
+	const uint8_t* v;
+	int yRowStride;
+	int uvRowStride;
+	int uvPixelStride;
+};
+
+// A part of the frame processed on its own (see EdgePipeline::setRegions):
+// `source` in frame pixels, and where its edges go in the pipeline's mask
+struct EdgeRegion {
+	cv::Rect source;
+	cv::Point canvas;
+};
+
+// Per-session processing state. All working Mats and the encode buffer are
+// sized for the configured resolution up front and reused on every frame.
+class EdgePipeline {
+public:
+	EdgePipeline(int width, int height);
+
+	int width() const { return width_; }
+	int height() const { return height_; }
+
+	// Luma-only mode feeds the Y plane straight into Canny and never touches
+	// chroma, skipping the YUV->BGR conversion and two thirds of the gradient
+	// work. Off by default to match the original color pipeline.
+	void setLumaOnly(bool lumaOnly);
+	bool lumaOnly() const { return lumaOnly_; }
+
+	// Tiled mode runs Canny in horizontal bands on `workers` threads (see
+	// ParallelCanny); the result is bit-identical to cv::Canny. 0 switches
+	// back to cv::Canny. Only used in luma-only mode, since the banded
+	// detector works on a single channel. Region pipelines (see setRegions)
+	// never tile.
+	void setTiledWorkers(int workers);
+	int tiledWorkers() const { return tiled_ ? tiled_->workers() : 0; }
+
+	// Motion gating compares each frame against the last processed one on a
+	// downsampled Y plane (see MotionGate). Unchanged frames reuse the previous
+	// edge mask; in luma-only mode a partially changed frame only recomputes
+	// its dirty tiles. Tiles are recomputed with a halo, but hysteresis can
+	// still differ slightly at tile seams, so after partial updates a full
+	// recompute is forced every `refreshInterval` frames.
+	void setMotionGate(bool enabled, int threshold, int refreshInterval);
+
+	// Region-of-interest mode: only the `regions` of each frame are cropped
+	// out, converted and run through Canny, each as a frame of its own size
+	// with its own motion gate, so the cost follows their area. The
+	// pipeline's mask, which encode(), encodeDelta() and the GPU mask calls
+	// work on, becomes a canvas of maskWidth() x maskHeight() holding each
+	// region's edges at its `canvas` origin and zeros elsewhere. Sources
+	// must lie inside the frame at even offsets and sizes, so the 4:2:0
+	// chroma crops with them, and canvas rectangles must not overlap.
+	// Overlapping sources are processed once per region. An empty list goes
+	// back to the whole frame. Returns false, changing nothing, when the
+	// layout is invalid.
+	bool setRegions(const std::vector<EdgeRegion>& regions);
+	int maskWidth() const { return edges_.cols; }
+	int maskHeight() const { return edges_.rows; }
+
+	// Runs conversion and Canny on one frame and copies the single-channel
+	// edge mask (width * height bytes, no padding) into `out`. With regions
+	// set, `out` still gets a frame-sized mask, with each region's edges in
+	// place and zeros around them. Returns the number of bytes written, 0
+	// when motion gating found the frame unchanged (`out` is left
+	// untouched), or -1 when the mask does not fit. `seq` only labels the
+	// trace sections.
+	int process(const YuvPlanes& planes, uint8_t* out, size_t capacity, int64_t seq);
+
+	// Tiles recomputed by the last process() call; equals the tile count for
+	// a full recompute and is 0 for an unchanged frame.
+	int lastChangedTiles() const { return lastChangedTiles_; }
+
+	// Encodes the mask produced by the last process() call into `out` with
+	// `codec` (PNG or the 1bpp run-length codec, see mask_codec.h). Only the
+	// network path needs this. `downscale` > 1 shrinks the mask by that
+	// factor first (rounding up), keeping a pixel set when any pixel of its
+	// block is, so thin edges survive. Returns the number of bytes written,
+	// or -1 when nothing has been processed yet, the codec is unknown or the
+	// result does not fit.
+	int encode(uint8_t* out, size_t capacity, int64_t seq, int downscale = 1,
+			MaskCodec codec = MASK_CODEC_PNG);
+
+	// Delta of the mask, shrunk by `downscale` as in encode(), against the
+	// mask at the previous encodeDelta() call for the same `stream`, which
+	// then becomes that stream's reference. Each viewer stream keeps its own
+	// reference, since streams are sent at different rates and scales.
+	// Only tiles of `tileSize` pixels with any change are written, as a
+	// 1-bit-per-pixel bitmap (big-endian fields):
+	//   u16 tileSize, u16 tileCount, then per tile
+	//   u16 column, u16 row, ceil(w * h / 8) bytes of the tile's w x h
+	//   pixels (clipped at the frame edge), row-major, MSB first.
+	// Returns the number of bytes written, or -1 when there is no reference
+	// yet (or `restart` drops it) or the delta does not fit; the reference is
+	// updated either way, so a -1 means viewers need a keyframe.
+	int encodeDelta(uint8_t* out, size_t capacity, int tileSize, int64_t seq, int stream = 0,
+			int downscale = 1, bool restart = false);
+
+	// Replaces the edge mask with one computed elsewhere (the GPU backend):
+	// `rgba` holds width * height pixels of 4 bytes, edges where the first
+	// byte is set; with regions set only theirs are taken. encode() then
+	// works on it as usual. Returns the mask size, or -1 when `capacity` is
+	// too small.
+	int loadMask(const uint8_t* rgba, size_t capacity);
+
+	// Number of pixels where an RGBA mask in the same layout disagrees with
+	// the mask of the last process() call, within the regions when they are
+	// set, or -1 when there is none yet or `capacity` is too small.
+	int compareMask(const uint8_t* rgba, size_t capacity) const;
+
+private:
+	int wrapChroma(const YuvPlanes& planes, cv::Mat& chroma);
+	bool detect(const YuvPlanes& planes, int64_t seq);
+	bool detectRegions(const YuvPlanes& planes, int64_t seq);
+	void detectFull(const YuvPlanes& planes, const cv::Mat& luma, int64_t seq);
+	void detectDirtyTiles(const cv::Mat& luma);
+	const cv::Mat& scaledMask(int downscale);
+
+	struct DeltaStream {
+		cv::Mat reference;
+		bool hasReference = false;
+	};
+
+	int width_;
+	int height_;
+	bool lumaOnly_;
+	cv::Mat chromaScratch_;
+	cv::Mat bgr_;
+	cv::Mat edges_;
+	std::unique_ptr<ParallelCanny> tiled_;
+	std::unique_ptr<MotionGate> gate_;
+	cv::Mat tileScratch_;
+	int refreshInterval_;
+	int framesSinceRefresh_;
+	bool partialSinceRefresh_;
+	int lastChangedTiles_;
+	bool hasEdges_;
+	cv::Mat reduced_;
+	// Factor reduced_ was computed for from the current mask, 0 when stale
+	int reducedScale_;
+	std::vector<DeltaStream> deltaStreams_;
+	// Where the mask's pixels come from: the whole frame at the origin, or
+	// the regions, each detected by a pipeline of its own size
+	std::vector<EdgeRegion> layout_;
+	std::vector<std::unique_ptr<EdgePipeline>> regionDetectors_;
+	std::vector<uchar> encoded_;
+	std::vector<uint8_t> packed_;
+};
+
+#endif
\ No newline at end of file
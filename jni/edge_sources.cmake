@@ -0,0 +1,8 @@
+# Platform-independent pipeline sources, shared by the app's native library
+# (app/src/main/cpp/CMakeLists.txt) and the host build (jni/CMakeLists.txt).
+# edge_detector.cpp, the JNI glue, is not part of it.
+set(EDGE_CORE_SOURCES
+    ${CMAKE_CURRENT_LIST_DIR}/edge_pipeline.cpp
+    ${CMAKE_CURRENT_LIST_DIR}/mask_codec.cpp
+    ${CMAKE_CURRENT_LIST_DIR}/motion_gate.cpp
+    ${CMAKE_CURRENT_LIST_DIR}/parallel_canny.cpp)
@@ -0,0 +1,190 @@
+#include "mask_codec.h"
+
+#include <algorithm>
+#include <cstring>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define MASK_CODEC_NEON 1
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#define MASK_CODEC_SSE2 1
+#endif
+
+namespace {
+
+// Zero runs shorter than this stay inside the literal: breaking the literal
+// for them would cost as many bytes as it saves
+const size_t MIN_ZERO_RUN = 3;
+
+#ifdef MASK_CODEC_SSE2
+// movemask puts the first pixel in the low bit; the format wants it high
+struct BitReverse {
+	uint8_t table[256];
+
+	BitReverse() {
+		for (int i = 0; i < 256; i++) {
+			int reversed = 0;
+			for (int bit = 0; bit < 8; bit++) {
+				if (i & (1 << bit)) {
+					reversed |= 0x80 >> bit;
+				}
+			}
+			table[i] = (uint8_t) reversed;
+		}
+	}
+};
+
+const BitReverse bitReverse;
+#endif
+
+size_t zeroRun(const uint8_t* data, size_t length) {
+	size_t run = 0;
+	while (run + 8 <= length) {
+		uint64_t word;
+		memcpy(&word, data + run, 8);
+		if (word != 0) {
+			break;
+		}
+		run += 8;
+	}
+	while (run < length && data[run] == 0) {
+		run++;
+	}
+	return run;
+}
+
+size_t putVarint(uint8_t* out, size_t value) {
+	size_t written = 0;
+	while (value >= 0x80) {
+		out[written++] = (uint8_t) (value | 0x80);
+		value >>= 7;
+	}
+	out[written++] = (uint8_t) value;
+	return written;
+}
+
+size_t varintSize(size_t value) {
+	size_t size = 1;
+	while (value >= 0x80) {
+		value >>= 7;
+		size++;
+	}
+	return size;
+}
+
+bool getVarint(const uint8_t* in, size_t length, size_t& pos, size_t& value) {
+	value = 0;
+	for (int shift = 0; shift < 35; shift += 7) {
+		if (pos >= length) {
+			return false;
+		}
+		uint8_t byte = in[pos++];
+		value |= (size_t) (byte & 0x7F) << shift;
+		if ((byte & 0x80) == 0) {
+			return true;
+		}
+	}
+	return false;
+}
+
+}
+
+size_t packMask(const uint8_t* mask, size_t pixels, uint8_t* bits) {
+	size_t i = 0;
+	uint8_t* out = bits;
+#if defined(MASK_CODEC_NEON)
+	// Weight each lane by its bit, then sum each half horizontally
+	static const uint8_t weights[16] = { 128, 64, 32, 16, 8, 4, 2, 1, 128, 64, 32, 16, 8, 4, 2, 1 };
+	uint8x16_t weight = vld1q_u8(weights);
+	for (; i + 16 <= pixels; i += 16) {
+		uint8x16_t v = vld1q_u8(mask + i);
+		uint8x16_t set = vandq_u8(vtstq_u8(v, v), weight);
+		uint8x8_t sum = vpadd_u8(vget_low_u8(set), vget_high_u8(set));
+		sum = vpadd_u8(sum, sum);
+		sum = vpadd_u8(sum, sum);
+		*out++ = vget_lane_u8(sum, 0);
+		*out++ = vget_lane_u8(sum, 1);
+	}
+#elif defined(MASK_CODEC_SSE2)
+	const __m128i zero = _mm_setzero_si128();
+	for (; i + 16 <= pixels; i += 16) {
+		__m128i v = _mm_loadu_si128(reinterpret_cast<const __m128i*>(mask + i));
+		int set = ~_mm_movemask_epi8(_mm_cmpeq_epi8(v, zero));
+		*out++ = bitReverse.table[set & 0xFF];
+		*out++ = bitReverse.table[(set >> 8) & 0xFF];
+	}
+#endif
+	for (; i + 8 <= pixels; i += 8) {
+		uint8_t byte = 0;
+		for (int bit = 0; bit < 8; bit++) {
+			byte = (uint8_t) ((byte << 1) | (mask[i + bit] != 0));
+		}
+		*out++ = byte;
+	}
+	if (i < pixels) {
+		uint8_t byte = 0;
+		for (int bit = 0; bit < 8; bit++) {
+			byte = (uint8_t) ((byte << 1) | (i + bit < pixels && mask[i + bit] != 0));
+		}
+		*out++ = byte;
+	}
+	return (size_t) (out - bits);
+}
+
+void unpackMask(const uint8_t* bits, size_t pixels, uint8_t* mask) {
+	for (size_t i = 0; i < pixels; i++) {
+		mask[i] = (bits[i >> 3] & (0x80 >> (i & 7))) ? 255 : 0;
+	}
+}
+
+int rleEncode(const uint8_t* packed, size_t length, uint8_t* out, size_t capacity) {
+	size_t pos = 0;
+	size_t written = 0;
+	while (pos < length) {
+		size_t zeros = zeroRun(packed + pos, length - pos);
+		pos += zeros;
+		size_t start = pos;
+		while (pos < length) {
+			const uint8_t* zero = static_cast<const uint8_t*>(memchr(packed + pos, 0, length - pos));
+			if (zero == nullptr) {
+				pos = length;
+				break;
+			}
+			pos = (size_t) (zero - packed);
+			if (zeroRun(packed + pos, std::min(MIN_ZERO_RUN, length - pos)) == MIN_ZERO_RUN) {
+				break;
+			}
+			pos++;
+		}
+		size_t literal = pos - start;
+		if (written + varintSize(zeros) + varintSize(literal) + literal > capacity) {
+			return -1;
+		}
+		written += putVarint(out + written, zeros);
+		written += putVarint(out + written, literal);
+		memcpy(out + written, packed + start, literal);
+		written += literal;
+	}
+	return (int) written;
+}
+
+bool rleDecode(const uint8_t* in, size_t length, uint8_t* packed, size_t packedLength) {
+	size_t pos = 0;
+	size_t filled = 0;
+	while (filled < packedLength) {
+		size_t zeros;
+		size_t literal;
+		if (!getVarint(in, length, pos, zeros) || !getVarint(in, length, pos, literal) ||
+				zeros > packedLength - filled || literal > packedLength - filled - zeros ||
+				literal > length - pos) {
+			return false;
+		}
+		memset(packed + filled, 0, zeros);
+		filled += zeros;
+		memcpy(packed + filled, in + pos, literal);
+		filled += literal;
+		pos += literal;
+	}
+	return pos == length;
+}
@@ -0,0 +1,37 @@
+#ifndef MASK_CODEC_H
+#define MASK_CODEC_H
+
+#include <cstddef>
+#include <cstdint>
+
+// Codecs the pipeline can encode a whole edge mask with. The values are the
+// CODEC_* ids of com.edgedetector.protocol.FrameMessage.
+enum MaskCodec {
+	MASK_CODEC_PNG = 1,
+	MASK_CODEC_RLE_1BPP = 3,
+};
+
+// Purpose-built codec for binary masks. The mask is packed at one bit per
+// pixel (row-major, MSB first, the last byte zero-padded), then the packed
+// bytes are run-length coded as a sequence of
+//   varint zeroBytes, varint literalBytes, literalBytes bytes
+// until the ceil(pixels / 8) packed bytes are covered. Varints are unsigned
+// LEB128. Edge masks are mostly empty, so the zero runs carry nearly all of
+// the frame and the literals hold the edges themselves.
+
+// Packs `pixels` mask bytes (nonzero = set) into ceil(pixels / 8) bytes.
+// Uses NEON or SSE2 where available. Returns the packed length.
+size_t packMask(const uint8_t* mask, size_t pixels, uint8_t* bits);
+
+// The inverse: 0 or 255 per pixel.
+void unpackMask(const uint8_t* bits, size_t pixels, uint8_t* mask);
+
+// Run-length codes `length` packed bytes into `out`. Returns the number of
+// bytes written, or -1 when they do not fit in `capacity`.
+int rleEncode(const uint8_t* packed, size_t length, uint8_t* out, size_t capacity);
+
+// Decodes into exactly `packedLength` bytes. Returns false when `in` is
+// truncated or does not add up to that length.
+bool rleDecode(const uint8_t* in, size_t length, uint8_t* packed, size_t packedLength);
+
+#endif
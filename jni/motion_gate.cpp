@@ -0,0 +1,116 @@
+#include "motion_gate.h"
+
+#include <algorithm>
+#include <cstdlib>
+#include <cstring>
+
+MotionGate::MotionGate(int width, int height, int tileSize)
+		: width_(width), height_(height), tileSize_(tileSize),
+		tilesX_((width + tileSize - 1) / tileSize), tilesY_((height + tileSize - 1) / tileSize),
+		smallWidth_((width + DOWNSAMPLE - 1) / DOWNSAMPLE), smallHeight_((height + DOWNSAMPLE - 1) / DOWNSAMPLE),
+		threshold_(6), primed_(false) {
+	current_.resize((size_t) smallWidth_ * smallHeight_);
+	reference_.resize(current_.size());
+	dirty_.resize((size_t) tilesX_ * tilesY_, 1);
+}
+
+cv::Rect MotionGate::tileRect(int index) const {
+	int x = (index % tilesX_) * tileSize_;
+	int y = (index / tilesX_) * tileSize_;
+	return cv::Rect(x, y, std::min(tileSize_, width_ - x), std::min(tileSize_, height_ - y));
+}
+
+// Mean of a block of up to 4x4 pixels at the frame's right or bottom edge
+static uint8_t edgeBlockMean(const cv::Mat& luma, int x, int y, int width, int height) {
+	int sum = 0;
+	for (int i = 0; i < height; i++) {
+		const uint8_t* row = luma.ptr<uint8_t>(y + i);
+		for (int j = 0; j < width; j++) {
+			sum += row[x + j];
+		}
+	}
+	int count = width * height;
+	return (uint8_t) ((sum + count / 2) / count);
+}
+
+int MotionGate::analyze(const cv::Mat& luma) {
+	// 4x4 box average. A frame that is not a multiple of 4 ends in a column
+	// and row of partial blocks, averaged over the pixels they have, so every
+	// tile covers at least one downsampled pixel.
+	int fullWidth = width_ / DOWNSAMPLE;
+	for (int sy = 0; sy < smallHeight_; sy++) {
+		int y = sy * DOWNSAMPLE;
+		int rowCount = std::min(DOWNSAMPLE, height_ - y);
+		uint8_t* dst = &current_[(size_t) sy * smallWidth_];
+		if (rowCount == DOWNSAMPLE) {
+			const uint8_t* rows[DOWNSAMPLE];
+			for (int i = 0; i < DOWNSAMPLE; i++) {
+				rows[i] = luma.ptr<uint8_t>(y + i);
+			}
+			for (int sx = 0; sx < fullWidth; sx++) {
+				int x = sx * DOWNSAMPLE;
+				int sum = 0;
+				for (int i = 0; i < DOWNSAMPLE; i++) {
+					sum += rows[i][x] + rows[i][x + 1] + rows[i][x + 2] + rows[i][x + 3];
+				}
+				dst[sx] = (uint8_t) ((sum + 8) >> 4);
+			}
+		} else {
+			for (int sx = 0; sx < fullWidth; sx++) {
+				dst[sx] = edgeBlockMean(luma, sx * DOWNSAMPLE, y, DOWNSAMPLE, rowCount);
+			}
+		}
+		if (fullWidth < smallWidth_) {
+			int x = fullWidth * DOWNSAMPLE;
+			dst[fullWidth] = edgeBlockMean(luma, x, y, width_ - x, rowCount);
+		}
+	}
+
+	if (!primed_) {
+		std::fill(dirty_.begin(), dirty_.end(), 1);
+		return tileCount();
+	}
+
+	int dirtyCount = 0;
+	int smallTile = tileSize_ / DOWNSAMPLE;
+	for (int index = 0; index < tileCount(); index++) {
+		int sx0 = (index % tilesX_) * smallTile;
+		int sy0 = (index / tilesX_) * smallTile;
+		int sx1 = std::min(sx0 + smallTile, smallWidth_);
+		int sy1 = std::min(sy0 + smallTile, smallHeight_);
+		int sad = 0;
+		for (int sy = sy0; sy < sy1; sy++) {
+			const uint8_t* cur = &current_[(size_t) sy * smallWidth_];
+			const uint8_t* ref = &reference_[(size_t) sy * smallWidth_];
+			for (int sx = sx0; sx < sx1; sx++) {
+				sad += std::abs(cur[sx] - ref[sx]);
+			}
+		}
+		int pixels = (sx1 - sx0) * (sy1 - sy0);
+		dirty_[index] = sad > threshold_ * pixels ? 1 : 0;
+		dirtyCount += dirty_[index];
+	}
+	return dirtyCount;
+}
+
+void MotionGate::commitDirty() {
+	int smallTile = tileSize_ / DOWNSAMPLE;
+	for (int index = 0; index < tileCount(); index++) {
+		if (!dirty_[index]) {
+			continue;
+		}
+		int sx0 = (index % tilesX_) * smallTile;
+		int sy0 = (index / tilesX_) * smallTile;
+		int sx1 = std::min(sx0 + smallTile, smallWidth_);
+		int sy1 = std::min(sy0 + smallTile, smallHeight_);
+		for (int sy = sy0; sy < sy1; sy++) {
+			size_t offset = (size_t) sy * smallWidth_ + sx0;
+			memcpy(&reference_[offset], &current_[offset], sx1 - sx0);
+		}
+	}
+}
+
+void MotionGate::commitAll() {
+	reference_ = current_;
+	primed_ = true;
+}
\ No newline at end of file
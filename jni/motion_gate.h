@@ -0,0 +1,52 @@
+#ifndef MOTION_GATE_H
+#define MOTION_GATE_H
+
+#include <opencv2/core.hpp>
+#include <cstdint>
+#include <vector>
+
+// Cheap change detector for the Y plane. Each frame is box-downsampled 4x4
+// and compared per tile against a reference using the sum of absolute
+// differences. The reference for a tile only advances when that tile is
+// recomputed, so slow drift (lighting, auto-exposure) still accumulates into
+// a change instead of slipping under the threshold frame by frame.
+class MotionGate {
+public:
+	static const int DOWNSAMPLE = 4;
+
+	MotionGate(int width, int height, int tileSize);
+
+	// Mean absolute difference per downsampled pixel (0-255) above which a
+	// tile counts as changed.
+	void setThreshold(int threshold) { threshold_ = threshold; }
+	int threshold() const { return threshold_; }
+
+	// Downsamples `luma` and marks changed tiles. Returns the number of dirty
+	// tiles; before the first commit every tile is dirty.
+	int analyze(const cv::Mat& luma);
+
+	int tileCount() const { return tilesX_ * tilesY_; }
+	bool isDirty(int index) const { return dirty_[index] != 0; }
+	// Tile bounds in full-resolution pixels
+	cv::Rect tileRect(int index) const;
+
+	// Advances the reference for the dirty tiles, or for the whole frame.
+	void commitDirty();
+	void commitAll();
+
+private:
+	int width_;
+	int height_;
+	int tileSize_;
+	int tilesX_;
+	int tilesY_;
+	int smallWidth_;
+	int smallHeight_;
+	int threshold_;
+	bool primed_;
+	std::vector<uint8_t> current_;
+	std::vector<uint8_t> reference_;
+	std::vector<uint8_t> dirty_;
+};
+
+#endif
\ No newline at end of file
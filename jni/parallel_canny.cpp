@@ -0,0 +1,251 @@
+#include "parallel_canny.h"
+
+#include <opencv2/imgproc.hpp>
+
+#include <algorithm>
+#include <cstdlib>
+#include <cstring>
+
+WorkerPool::WorkerPool(int threads)
+		: task_(nullptr), context_(nullptr), count_(0), next_(0), active_(0),
+		generation_(0), stop_(false) {
+	for (int i = 1; i < threads; i++) {
+		threads_.emplace_back(&WorkerPool::loop, this);
+	}
+}
+
+WorkerPool::~WorkerPool() {
+	{
+		std::lock_guard<std::mutex> lock(mutex_);
+		stop_ = true;
+	}
+	start_.notify_all();
+	for (std::thread& thread : threads_) {
+		thread.join();
+	}
+}
+
+void WorkerPool::run(int count, void (*task)(void*, int), void* context) {
+	if (threads_.empty() || count <= 1) {
+		for (int i = 0; i < count; i++) {
+			task(context, i);
+		}
+		return;
+	}
+	{
+		std::lock_guard<std::mutex> lock(mutex_);
+		task_ = task;
+		context_ = context;
+		count_ = count;
+		next_.store(0);
+		active_ = (int) threads_.size();
+		generation_++;
+	}
+	start_.notify_all();
+	drain();
+	std::unique_lock<std::mutex> lock(mutex_);
+	done_.wait(lock, [this] { return active_ == 0; });
+}
+
+void WorkerPool::loop() {
+	uint64_t seen = 0;
+	std::unique_lock<std::mutex> lock(mutex_);
+	for (;;) {
+		start_.wait(lock, [this, seen] { return stop_ || generation_ != seen; });
+		if (stop_) {
+			return;
+		}
+		seen = generation_;
+		lock.unlock();
+		drain();
+		lock.lock();
+		if (--active_ == 0) {
+			done_.notify_one();
+		}
+	}
+}
+
+void WorkerPool::drain() {
+	for (;;) {
+		int index = next_.fetch_add(1);
+		if (index >= count_) {
+			return;
+		}
+		task_(context_, index);
+	}
+}
+
+// tan(22.5 degrees) in Q15, as used by cv::Canny
+static const int CANNY_SHIFT = 15;
+static const int TG22 = (int) (0.4142135623730950488016887242097 * (1 << CANNY_SHIFT) + 0.5);
+// Suppression skips pixels this many at a time while none is over the low
+// threshold
+static const int SKIP_BLOCK = 16;
+
+ParallelCanny::ParallelCanny(int width, int height, int workers)
+		: width_(width), height_(height), mapStep_(width + 2),
+		map_((size_t) (width + 2) * (height + 2), 1),
+		pool_(std::max(1, std::min(workers, height))),
+		src_(nullptr), low_(0), high_(0) {
+	int bandCount = pool_.size();
+	bands_.resize(bandCount);
+	for (int i = 0; i < bandCount; i++) {
+		Band& band = bands_[i];
+		band.rowStart = height * i / bandCount;
+		band.rowEnd = height * (i + 1) / bandCount;
+		// One halo row above and below the band, and one more input row each
+		// side for the Sobel kernel
+		int rows = band.rowEnd - band.rowStart + 4;
+		band.dx.create(rows, width, CV_16SC1);
+		band.dy.create(rows, width, CV_16SC1);
+		band.magnitude.resize((size_t) (rows - 2) * (width + 2));
+		band.stack.reserve((size_t) (band.rowEnd - band.rowStart) * width / 8);
+	}
+}
+
+void ParallelCanny::run(const cv::Mat& src, cv::Mat& dst, double lowThreshold, double highThreshold) {
+	CV_Assert(src.type() == CV_8UC1 && src.cols == width_ && src.rows == height_);
+	CV_Assert(dst.type() == CV_8UC1 && dst.cols == width_ && dst.rows == height_);
+	if (lowThreshold > highThreshold) {
+		std::swap(lowThreshold, highThreshold);
+	}
+	src_ = &src;
+	low_ = cvFloor(lowThreshold);
+	high_ = cvFloor(highThreshold);
+	pool_.run((int) bands_.size(), &ParallelCanny::runBand, this);
+	hysteresis(dst);
+}
+
+void ParallelCanny::runBand(void* self, int index) {
+	ParallelCanny* canny = static_cast<ParallelCanny*>(self);
+	canny->gradientAndSuppress(canny->bands_[index]);
+}
+
+void ParallelCanny::gradientAndSuppress(Band& band) {
+	const cv::Mat& src = *src_;
+	const int width = width_;
+	const int magStep = width + 2;
+	const int rowStart = band.rowStart;
+	const int rowEnd = band.rowEnd;
+	const int rows = rowEnd - rowStart;
+
+	// 3x3 Sobel with replicated borders through cv::Sobel, so the SIMD
+	// kernels cv::Canny uses do the work. The band reads two input rows past
+	// each side; with BORDER_ISOLATED only the real image edges replicate,
+	// and the outermost output rows, which replicated a band edge, are not
+	// used. Row k of the magnitude is image row rowStart - 1 + k, and row
+	// `first` of the gradients.
+	int inputStart = std::max(rowStart - 2, 0);
+	int inputEnd = std::min(rowEnd + 2, height_);
+	cv::Mat input = src.rowRange(inputStart, inputEnd);
+	cv::Mat dxRows = band.dx.rowRange(0, inputEnd - inputStart);
+	cv::Mat dyRows = band.dy.rowRange(0, inputEnd - inputStart);
+	cv::Sobel(input, dxRows, CV_16S, 1, 0, 3, 1, 0, cv::BORDER_REPLICATE | cv::BORDER_ISOLATED);
+	cv::Sobel(input, dyRows, CV_16S, 0, 1, 3, 1, 0, cv::BORDER_REPLICATE | cv::BORDER_ISOLATED);
+	const int first = rowStart - 1 - inputStart;
+
+	// L1 magnitude. Rows outside the image get zero magnitude, like cv::Canny.
+	for (int k = 0; k < rows + 2; k++) {
+		int row = rowStart - 1 + k;
+		int16_t* mag = &band.magnitude[(size_t) k * magStep + 1];
+		mag[-1] = 0;
+		mag[width] = 0;
+		if (row < 0 || row >= height_) {
+			memset(mag, 0, sizeof(int16_t) * width);
+			continue;
+		}
+		const int16_t* dx = band.dx.ptr<int16_t>(first + k);
+		const int16_t* dy = band.dy.ptr<int16_t>(first + k);
+		for (int col = 0; col < width; col++) {
+			mag[col] = (int16_t) (std::abs(dx[col]) + std::abs(dy[col]));
+		}
+	}
+
+	// Non-maximum suppression into the shared map. Bands write disjoint map
+	// rows: 0 = weak candidate, 1 = not an edge, 2 = strong edge. Most
+	// pixels are under the low threshold, so rows start as "not an edge" and
+	// only blocks with a candidate are looked at pixel by pixel.
+	const int low = low_;
+	const int high = high_;
+	band.stack.clear();
+	for (int row = rowStart; row < rowEnd; row++) {
+		int k = row - rowStart + 1;
+		const int16_t* magPrev = &band.magnitude[(size_t) (k - 1) * magStep + 1];
+		const int16_t* mag = &band.magnitude[(size_t) k * magStep + 1];
+		const int16_t* magNext = &band.magnitude[(size_t) (k + 1) * magStep + 1];
+		const int16_t* dx = band.dx.ptr<int16_t>(first + k);
+		const int16_t* dy = band.dy.ptr<int16_t>(first + k);
+		uint8_t* map = &map_[(size_t) (row + 1) * mapStep_ + 1];
+		memset(map, 1, width);
+		for (int block = 0; block < width; block += SKIP_BLOCK) {
+			int end = std::min(block + SKIP_BLOCK, width);
+			int peak = 0;
+			for (int col = block; col < end; col++) {
+				peak = std::max(peak, (int) mag[col]);
+			}
+			if (peak <= low) {
+				continue;
+			}
+			for (int col = block; col < end; col++) {
+				int m = mag[col];
+				if (m <= low) {
+					continue;
+				}
+				int xs = dx[col];
+				int ys = dy[col];
+				int x = std::abs(xs);
+				int y = std::abs(ys) << CANNY_SHIFT;
+				int tg22x = x * TG22;
+				bool maximum;
+				if (y < tg22x) {
+					maximum = m > mag[col - 1] && m >= mag[col + 1];
+				} else {
+					int tg67x = tg22x + (x << (CANNY_SHIFT + 1));
+					if (y > tg67x) {
+						maximum = m > magPrev[col] && m >= magNext[col];
+					} else {
+						int s = (xs ^ ys) < 0 ? -1 : 1;
+						maximum = m > magPrev[col - s] && m > magNext[col + s];
+					}
+				}
+				if (!maximum) {
+					continue;
+				}
+				if (m > high) {
+					map[col] = 2;
+					band.stack.push_back(map + col);
+				} else {
+					map[col] = 0;
+				}
+			}
+		}
+	}
+}
+
+void ParallelCanny::hysteresis(cv::Mat& dst) {
+	// Grow strong edges into connected weak candidates. Reachability does not
+	// depend on the order seeds are visited, so band boundaries do not matter.
+	const int step = mapStep_;
+	for (Band& band : bands_) {
+		std::vector<uint8_t*>& stack = band.stack;
+		while (!stack.empty()) {
+			uint8_t* m = stack.back();
+			stack.pop_back();
+			uint8_t* neighbours[8] = {
+				m - step - 1, m - step, m - step + 1,
+				m - 1, m + 1,
+				m + step - 1, m + step, m + step + 1
+			};
+			for (uint8_t* neighbour : neighbours) {
+				if (*neighbour == 0) {
+					*neighbour = 2;
+					stack.push_back(neighbour);
+				}
+			}
+		}
+	}
+
+	// Strong edges (2) become 255, everything else 0
+	cv::Mat map(height_, width_, CV_8UC1, &map_[(size_t) step + 1], step);
+	cv::compare(map, 2, dst, cv::CMP_EQ);
+}
\ No newline at end of file
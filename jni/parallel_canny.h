@@ -0,0 +1,82 @@
+#ifndef PARALLEL_CANNY_H
+#define PARALLEL_CANNY_H
+
+#include <opencv2/core.hpp>
+#include <atomic>
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+// Fixed set of persistent threads. run() spreads `count` tasks over the pool
+// and the calling thread and returns once all of them have finished. Tasks
+// are plain function pointers so dispatching never allocates.
+class WorkerPool {
+public:
+	explicit WorkerPool(int threads);
+	~WorkerPool();
+
+	int size() const { return (int) threads_.size() + 1; }
+	void run(int count, void (*task)(void*, int), void* context);
+
+private:
+	void loop();
+	void drain();
+
+	std::vector<std::thread> threads_;
+	std::mutex mutex_;
+	std::condition_variable start_;
+	std::condition_variable done_;
+	void (*task_)(void*, int);
+	void* context_;
+	int count_;
+	std::atomic<int> next_;
+	int active_;
+	uint64_t generation_;
+	bool stop_;
+};
+
+// Canny edge detector (3x3 Sobel, L1 gradient) for single-channel 8-bit input
+// that splits the frame into horizontal bands. Each band takes its gradients
+// from cv::Sobel and recomputes one halo row above and below, so gradient and
+// non-maximum suppression run without any cross-band dependency; only
+// hysteresis, which follows edges across band boundaries, runs on the calling
+// thread. The arithmetic mirrors cv::Canny, so the output is bit-identical to
+// it for any number of workers.
+class ParallelCanny {
+public:
+	ParallelCanny(int width, int height, int workers);
+
+	int workers() const { return (int) bands_.size(); }
+
+	// `src` may be a strided view (e.g. a camera Y plane); `dst` must be a
+	// preallocated width x height CV_8UC1 Mat and receives 0/255.
+	void run(const cv::Mat& src, cv::Mat& dst, double lowThreshold, double highThreshold);
+
+private:
+	struct Band {
+		int rowStart;
+		int rowEnd;
+		cv::Mat dx;
+		cv::Mat dy;
+		std::vector<int16_t> magnitude;
+		std::vector<uint8_t*> stack;
+	};
+
+	static void runBand(void* self, int index);
+	void gradientAndSuppress(Band& band);
+	void hysteresis(cv::Mat& dst);
+
+	int width_;
+	int height_;
+	int mapStep_;
+	std::vector<uint8_t> map_;
+	std::vector<Band> bands_;
+	WorkerPool pool_;
+	const cv::Mat* src_;
+	int low_;
+	int high_;
+};
+
+#endif
\ No newline at end of file
@@ -0,0 +1,78 @@
+#ifndef TRACE_H
+#define TRACE_H
+
+#include <cstdint>
+
+// Scoped systrace/Perfetto section. The name carries the frame sequence number
+// so one frame can be followed from the Java stages into native code and on to
+// the GL thread. Formatting only happens while tracing is active. Off Android
+// (host benchmarks) a section only reads the clock when a hook is installed
+// with setTraceHook(), and reports its duration to it when it ends.
+#ifdef __ANDROID__
+#include <android/trace.h>
+#include <cstdio>
+
+class TraceSection {
+public:
+	TraceSection(const char* stage, int64_t seq) : active_(ATrace_isEnabled()) {
+		if (active_) {
+			char name[64];
+			snprintf(name, sizeof(name), "%s #%lld", stage, (long long) seq);
+			ATrace_beginSection(name);
+		}
+	}
+
+	~TraceSection() {
+		if (active_) {
+			ATrace_endSection();
+		}
+	}
+
+	TraceSection(const TraceSection&) = delete;
+	TraceSection& operator=(const TraceSection&) = delete;
+
+private:
+	bool active_;
+};
+#else
+#include <chrono>
+
+typedef void (*TraceHook)(const char* stage, int64_t seq, int64_t nanos);
+
+inline TraceHook& traceHook() {
+	static TraceHook hook = nullptr;
+	return hook;
+}
+
+// Not synchronized: install before the pipeline runs
+inline void setTraceHook(TraceHook hook) {
+	traceHook() = hook;
+}
+
+class TraceSection {
+public:
+	TraceSection(const char* stage, int64_t seq) : hook_(traceHook()), stage_(stage), seq_(seq) {
+		if (hook_ != nullptr) {
+			start_ = std::chrono::steady_clock::now();
+		}
+	}
+
+	~TraceSection() {
+		if (hook_ != nullptr) {
+			auto elapsed = std::chrono::steady_clock::now() - start_;
+			hook_(stage_, seq_, std::chrono::duration_cast<std::chrono::nanoseconds>(elapsed).count());
+		}
+	}
+
+	TraceSection(const TraceSection&) = delete;
+	TraceSection& operator=(const TraceSection&) = delete;
+
+private:
+	TraceHook hook_;
+	const char* stage_;
+	int64_t seq_;
+	std::chrono::steady_clock::time_point start_;
+};
+#endif
+
+#endif
@@ -0,0 +1,137 @@
+package com.edgedetector.loadtest;
+
+import com.edgedetector.metrics.Histogram;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One headless viewer. It offers permessage-deflate like a browser, reads
+// frame messages and records how long each took from broadcast to arrival
+// (the load test stamps System.nanoTime() into the header's timestamp, and
+// both ends share the JVM's clock). A viewer with a receive rate reads no
+// faster than that many message bytes per second (counted after inflating),
+// so TCP backs up to the server the way it does for a viewer on a slow link.
+final class SimulatedViewer extends WebSocketClient {
+    private final long bytesPerSecond;
+    private final Histogram latency;
+
+    final AtomicLong frames = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    // Frames the server skipped for this viewer, from gaps in the sequence
+    final AtomicLong missed = new AtomicLong();
+    volatile boolean closed;
+    // Sequence number of the last frame that arrived, -1 before the first
+    volatile long lastSeq = -1;
+
+    private long readStart;
+    private long readBytes;
+
+    // `bytesPerSecond` 0 reads as fast as the messages arrive
+    SimulatedViewer(URI server, long bytesPerSecond, Histogram latency, int receiveBuffer) {
+        super(server, new Draft_6455(new PerMessageDeflateExtension()));
+        this.bytesPerSecond = bytesPerSecond;
+        this.latency = latency;
+        setSocketFactory(new ReceiveBufferSocketFactory(receiveBuffer));
+    }
+
+    // Hands out unconnected sockets with the receive buffer sized before
+    // connecting, so the window scale matches; WebSocketClient asks for
+    // nothing else
+    private static final class ReceiveBufferSocketFactory extends SocketFactory {
+        private final int receiveBuffer;
+
+        ReceiveBufferSocketFactory(int receiveBuffer) {
+            this.receiveBuffer = receiveBuffer;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(receiveBuffer);
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) {
+            throw new UnsupportedOperationException("Connected sockets are sized too late");
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            throw new UnsupportedOperationException("Connected sockets are sized too late");
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            throw new UnsupportedOperationException("Connected sockets are sized too late");
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            throw new UnsupportedOperationException("Connected sockets are sized too late");
+        }
+    }
+
+    boolean isSlow() {
+        return bytesPerSecond > 0;
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshake) {
+        readStart = System.nanoTime();
+    }
+
+    @Override
+    public void onMessage(String message) {
+        // Control messages (status, profile) carry nothing to measure
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+        long now = System.nanoTime();
+        int base = message.position();
+        long seq = message.getInt(base + 4) & 0xFFFFFFFFL;
+        latency.observeNanos(now - message.getLong(base + 8));
+        long previous = lastSeq;
+        if (previous >= 0 && seq > previous + 1) {
+            missed.addAndGet(seq - previous - 1);
+        }
+        lastSeq = seq;
+        frames.incrementAndGet();
+        bytes.addAndGet(message.remaining());
+        if (bytesPerSecond > 0) {
+            throttle(message.remaining(), now);
+        }
+    }
+
+    // Holds the reading thread until `length` more bytes fit the receive rate
+    private void throttle(long length, long now) {
+        readBytes += length;
+        long due = readStart + readBytes * 1_000_000_000L / bytesPerSecond;
+        if (due > now) {
+            try {
+                Thread.sleep((due - now) / 1_000_000L, (int) ((due - now) % 1_000_000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+        closed = true;
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        // onClose follows for errors that end the connection
+    }
+}
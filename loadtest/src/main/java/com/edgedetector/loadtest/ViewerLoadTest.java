@@ -0,0 +1,434 @@
+package com.edgedetector.loadtest;
+
+import com.edgedetector.EdgeDetectorWebSocketServer;
+import com.edgedetector.ServerLog;
+import com.edgedetector.metrics.Histogram;
+import com.edgedetector.metrics.MetricsRegistry;
+import com.edgedetector.protocol.FrameMessage;
+import com.edgedetector.protocol.StreamProfile;
+import org.java_websocket.server.DefaultWebSocketServerFactory;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Load generator for EdgeDetectorWebSocketServer on a plain JVM. Hosts the
+// server on loopback, broadcasts synthetic frames at the camera's rate and
+// connects headless viewers in steps, some of them reading slowly, to find
+// how many viewers one server sustains before delivery and latency collapse.
+//
+//   ./gradlew :loadtest:run --args="--viewers 64 --step 8 --slow 4 --slow-rate 32"
+//
+// Every interval it prints the viewers connected, delivered fps, bytes and
+// broadcast-to-arrival latency for fast and slow viewers, frames the server
+// dropped, downgraded or disconnected over, and the memory held in send
+// queues and the heap. Viewers and server share the JVM, so the numbers
+// include the viewers' own cost; run it on a machine with cores to spare.
+// Frame sizes default to what deflate_bench and codec_bench measure for a
+// 640x480 RLE keyframe and a changed-tile delta. With --static-after the
+// scene stops changing after that many seconds: deltas carry no tiles and,
+// like the app's motion gate, a frame is only broadcast when the server
+// says some viewer needs one.
+public final class ViewerLoadTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int DELTA_TILE_SIZE = 32;
+    private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+    // The server's latency bounds, then on to 30 s: a slow viewer's frames
+    // wait behind seconds of queued bytes
+    private static final long[] VIEWER_LATENCY_BOUNDS_NANOS = {
+        250_000L, 500_000L, 1_000_000L, 2_000_000L, 4_000_000L, 8_000_000L, 16_000_000L,
+        33_000_000L, 66_000_000L, 133_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L,
+        2_000_000_000L, 4_000_000_000L, 8_000_000_000L, 16_000_000_000L, 30_000_000_000L
+    };
+
+    private int viewers = 16;
+    private int step = 4;
+    private int slow = 2;
+    private long slowRate = 64 * 1024;
+    private int fps = 30;
+    private int seconds = 60;
+    private int interval = 5;
+    private int port = 8765;
+    private int keyframeBytes = 9400;
+    private int deltaBytes = 4000;
+    private int keyframeInterval = 60;
+    private int policy = EdgeDetectorWebSocketServer.SLOW_CLIENT_DOWNGRADE;
+    private int queueLimit = 256 * 1024;
+    private int compression = 1;
+    // Loopback buffers grow to megabytes, enough to hide a slow reader from
+    // the server for seconds; a Wi-Fi link to a phone backs up much sooner
+    private int socketBuffer = 64 * 1024;
+    private int staticAfter = -1;
+
+    private final MetricsRegistry serverMetrics = new MetricsRegistry();
+    private final MetricsRegistry viewerMetrics = new MetricsRegistry();
+    private final Histogram fastLatency = viewerMetrics.histogram("viewer_latency_seconds", "speed=\"fast\"",
+            "Broadcast to arrival", VIEWER_LATENCY_BOUNDS_NANOS);
+    private final Histogram slowLatency = viewerMetrics.histogram("viewer_latency_seconds", "speed=\"slow\"",
+            "Broadcast to arrival", VIEWER_LATENCY_BOUNDS_NANOS);
+    private final List<SimulatedViewer> connected = new ArrayList<>();
+    private byte[] keyframePayload;
+    private byte[] deltaPayload;
+    private long seq;
+
+    public static void main(String[] args) throws Exception {
+        ViewerLoadTest test = new ViewerLoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Options: --viewers N --step N --slow N --slow-rate BYTES_PER_S --fps N"
+                    + " --seconds N --interval N --port N --keyframe-bytes N --delta-bytes N"
+                    + " --keyframe-interval N --policy drop|downgrade|disconnect --queue-limit BYTES"
+                    + " --compression 0-9 --socket-buffer BYTES --static-after SECONDS");
+            System.exit(2);
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--viewers": viewers = Integer.parseInt(value); break;
+                case "--step": step = Integer.parseInt(value); break;
+                case "--slow": slow = Integer.parseInt(value); break;
+                case "--slow-rate": slowRate = Long.parseLong(value); break;
+                case "--fps": fps = Integer.parseInt(value); break;
+                case "--seconds": seconds = Integer.parseInt(value); break;
+                case "--interval": interval = Integer.parseInt(value); break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--keyframe-bytes": keyframeBytes = Integer.parseInt(value); break;
+                case "--delta-bytes": deltaBytes = Integer.parseInt(value); break;
+                case "--keyframe-interval": keyframeInterval = Integer.parseInt(value); break;
+                case "--policy": policy = policyId(value); break;
+                case "--queue-limit": queueLimit = Integer.parseInt(value); break;
+                case "--compression": compression = Integer.parseInt(value); break;
+                case "--socket-buffer": socketBuffer = Integer.parseInt(value); break;
+                case "--static-after": staticAfter = Integer.parseInt(value); break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (viewers < 1 || step < 1 || fps < 1 || interval < 1 || slow < 0 || slow > viewers || slowRate < 1) {
+            throw new IllegalArgumentException("Counts, rates and intervals must be positive");
+        }
+        if (keyframeBytes < 4 || deltaBytes < 4) {
+            throw new IllegalArgumentException("Frames must be at least 4 bytes");
+        }
+    }
+
+    private static int policyId(String name) {
+        switch (name) {
+            case "drop":
+                return EdgeDetectorWebSocketServer.SLOW_CLIENT_DROP;
+            case "downgrade":
+                return EdgeDetectorWebSocketServer.SLOW_CLIENT_DOWNGRADE;
+            case "disconnect":
+                return EdgeDetectorWebSocketServer.SLOW_CLIENT_DISCONNECT;
+            default:
+                throw new IllegalArgumentException("Unknown policy: " + name);
+        }
+    }
+
+    private void run() throws Exception {
+        // Per-connection debug lines would drown the report
+        ServerLog.setMinPriority(ServerLog.WARN);
+        Random random = new Random(42);
+        keyframePayload = syntheticPayload(random, keyframeBytes);
+        deltaPayload = syntheticPayload(random, deltaBytes);
+        // Tile size and a non-zero tile count, so the server never takes a
+        // delta for an unchanged frame
+        ByteBuffer.wrap(deltaPayload).putShort((short) DELTA_TILE_SIZE)
+                .putShort((short) Math.max(1, deltaBytes / (4 + DELTA_TILE_SIZE * DELTA_TILE_SIZE / 8)));
+
+        EdgeDetectorWebSocketServer server = new EdgeDetectorWebSocketServer(
+                new InetSocketAddress("127.0.0.1", port), serverMetrics);
+        server.setReuseAddr(true);
+        server.setWebSocketFactory(new DefaultWebSocketServerFactory() {
+            @Override
+            public SocketChannel wrapChannel(SocketChannel channel, SelectionKey key) {
+                try {
+                    channel.socket().setSendBufferSize(socketBuffer);
+                } catch (SocketException e) {
+                    ServerLog.w("ViewerLoadTest", "Could not size the send buffer: " + e.getMessage());
+                }
+                return channel;
+            }
+        });
+        server.setSlowClientPolicy(policy);
+        server.setSendQueueLimit(queueLimit);
+        server.setKeyframeInterval(keyframeInterval);
+        server.setCompression(compression, 256, false);
+        server.start();
+
+        // One thread stands in for the camera, like the app's processing thread
+        ScheduledExecutorService camera = Executors.newSingleThreadScheduledExecutor();
+        long staticFrom = staticAfter < 0 ? Long.MAX_VALUE
+                : System.nanoTime() + TimeUnit.SECONDS.toNanos(staticAfter);
+        camera.scheduleAtFixedRate(() -> {
+            try {
+                long now = System.nanoTime();
+                boolean still = now - staticFrom >= 0;
+                if (server.hasViewers() && (!still || server.needsBroadcast())) {
+                    server.broadcastFrame(new SyntheticFrame(seq++, now, still));
+                }
+            } catch (RuntimeException e) {
+                ServerLog.e("ViewerLoadTest", "Broadcast failed", e);
+            }
+        }, 0, 1_000_000L / fps, TimeUnit.MICROSECONDS);
+
+        System.out.printf("%d viewers in steps of %d (%d reading at %d B/s), %d fps, %d B keyframes, %d B deltas%n",
+                viewers, step, slow, slowRate, fps, keyframeBytes, deltaBytes);
+        URI uri = new URI("ws://127.0.0.1:" + port);
+        Report report = new Report();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < step && connected.size() < viewers; i++) {
+                // Slow viewers join first, so every step measures fast viewers beside them
+                boolean slowViewer = connected.size() < slow;
+                SimulatedViewer viewer = new SimulatedViewer(uri, slowViewer ? slowRate : 0,
+                        slowViewer ? slowLatency : fastLatency, socketBuffer);
+                if (!viewer.connectBlocking(5, TimeUnit.SECONDS)) {
+                    System.out.println("Viewer " + connected.size() + " could not connect");
+                }
+                connected.add(viewer);
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(interval));
+            report.print();
+        }
+
+        camera.shutdownNow();
+        camera.awaitTermination(1, TimeUnit.SECONDS);
+        // Frames still on their way get a moment to arrive; whatever has not
+        // by then counts as lost at the end
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        report.countTails(seq - 1);
+        for (SimulatedViewer viewer : connected) {
+            viewer.closeBlocking();
+        }
+        server.stop(1000);
+        report.printTotals();
+    }
+
+    // Mask-like bytes: mostly zero with short runs of set bits, so deflate
+    // finds roughly what it finds in real RLE and tile payloads
+    private static byte[] syntheticPayload(Random random, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(4) == 0) {
+                payload[i] = (byte) (1 << random.nextInt(8));
+            }
+        }
+        return payload;
+    }
+
+    private final class SyntheticFrame implements EdgeDetectorWebSocketServer.FrameSource {
+        private final long frameSeq;
+        private final long timestamp;
+        private final boolean still;
+
+        SyntheticFrame(long frameSeq, long timestamp, boolean still) {
+            this.frameSeq = frameSeq;
+            this.timestamp = timestamp;
+            this.still = still;
+        }
+
+        @Override
+        public ByteBuffer keyframe(StreamProfile profile) {
+            return frame(profile.scale, profile.codec, keyframePayload.length);
+        }
+
+        @Override
+        public ByteBuffer reducedKeyframe(StreamProfile profile) {
+            int scale = profile.scale * 2;
+            return frame(scale, profile.codec, Math.max(1, keyframePayload.length / 4));
+        }
+
+        private ByteBuffer frame(int scale, int codec, int length) {
+            return FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8, codec, frameSeq,
+                    timestamp, WIDTH / scale, HEIGHT / scale, keyframePayload, 0, length);
+        }
+
+        @Override
+        public ByteBuffer delta(StreamProfile profile, int stream, boolean restart) {
+            if (restart) {
+                // A new stream starts from a keyframe
+                return null;
+            }
+            // Tile size and no tiles
+            byte[] payload = still ? new byte[] { 0, DELTA_TILE_SIZE, 0, 0 } : deltaPayload;
+            return FrameMessage.encode(FrameMessage.TYPE_DELTA, FrameMessage.PIXEL_FORMAT_GRAY8,
+                    FrameMessage.CODEC_TILES_1BPP, frameSeq, timestamp, WIDTH / profile.scale,
+                    HEIGHT / profile.scale, payload, 0, payload.length);
+        }
+    }
+
+    // Interval and whole-run figures; the server's side is read back from its
+    // metrics registry the way a Prometheus scrape would see it
+    private final class Report {
+        private final Histogram.Window fastWindow = fastLatency.newWindow();
+        private final Histogram.Window slowWindow = slowLatency.newWindow();
+        private final Histogram.Window fastTotal = fastLatency.newWindow();
+        private final Histogram.Window slowTotal = slowLatency.newWindow();
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final Map<SimulatedViewer, Long> lastFrames = new HashMap<>();
+        private final Map<SimulatedViewer, Long> lastBytes = new HashMap<>();
+        private final long start = System.nanoTime();
+        private long last = start;
+        private Map<String, Double> lastServer = new HashMap<>();
+        private long peakQueued;
+        private long peakHeap;
+        private long tails;
+
+        void print() {
+            long now = System.nanoTime();
+            double elapsed = (now - last) / 1e9;
+            last = now;
+            fastWindow.advance();
+            slowWindow.advance();
+            Map<String, Double> server = scrape();
+            long queued = server.getOrDefault("edge_websocket_send_queue_bytes", 0.0).longValue();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            peakQueued = Math.max(peakQueued, queued);
+            peakHeap = Math.max(peakHeap, heap);
+
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%4ds %3d viewers", (now - start) / 1_000_000_000L, open()));
+            appendSpeed(line, "fast", false, elapsed, fastWindow);
+            if (slow > 0) {
+                appendSpeed(line, "slow", true, elapsed, slowWindow);
+            }
+            line.append(String.format("  dropped %d reduced %d cut %d",
+                    increase(server, "edge_websocket_frames_dropped_total"),
+                    increase(server, "edge_websocket_frames_reduced_total"),
+                    increase(server, "edge_websocket_slow_disconnects_total")));
+            line.append(String.format("  queued %d KB heap %d MB", queued / 1024, heap >> 20));
+            lastServer = server;
+            System.out.println(line);
+        }
+
+        private void appendSpeed(StringBuilder line, String name, boolean slowViewers, double elapsed,
+                Histogram.Window window) {
+            long frames = 0;
+            long bytes = 0;
+            int count = 0;
+            double minFps = Double.MAX_VALUE;
+            for (SimulatedViewer viewer : connected) {
+                if (viewer.isSlow() != slowViewers || viewer.closed) {
+                    continue;
+                }
+                long total = viewer.frames.get();
+                long delivered = total - lastFrames.getOrDefault(viewer, 0L);
+                lastFrames.put(viewer, total);
+                frames += delivered;
+                long received = viewer.bytes.get();
+                bytes += received - lastBytes.getOrDefault(viewer, 0L);
+                lastBytes.put(viewer, received);
+                minFps = Math.min(minFps, delivered / elapsed);
+                count++;
+            }
+            if (count == 0) {
+                return;
+            }
+            line.append(String.format("  %s %5.1f fps (min %5.1f) %d KB", name, frames / elapsed / count, minFps,
+                    bytes / 1024));
+            appendQuantiles(line, window);
+        }
+
+        // Frames up to `lastBroadcast` that never reached a viewer still
+        // connected. Gaps only show once a later frame arrives, so a slow
+        // viewer's backlog at the end of the run is counted here instead.
+        void countTails(long lastBroadcast) {
+            for (SimulatedViewer viewer : connected) {
+                long lastSeq = viewer.lastSeq;
+                if (!viewer.closed && lastSeq >= 0) {
+                    tails += Math.max(0, lastBroadcast - lastSeq);
+                }
+            }
+        }
+
+        void printTotals() {
+            fastTotal.advance();
+            slowTotal.advance();
+            long frames = 0;
+            long missed = 0;
+            for (SimulatedViewer viewer : connected) {
+                frames += viewer.frames.get();
+                missed += viewer.missed.get();
+            }
+            Map<String, Double> server = scrape();
+            StringBuilder line = new StringBuilder("total");
+            line.append(String.format(" %d frames delivered, %d missed in gaps, %d lost at the end, %d dropped by"
+                    + " the server", frames, missed, tails,
+                    server.getOrDefault("edge_websocket_frames_dropped_total", 0.0).longValue()));
+            line.append("  fast");
+            appendQuantiles(line, fastTotal);
+            if (slow > 0) {
+                line.append("  slow");
+                appendQuantiles(line, slowTotal);
+            }
+            line.append(String.format("  reduced %d cut %d  peak queued %d KB heap %d MB",
+                    server.getOrDefault("edge_websocket_frames_reduced_total", 0.0).longValue(),
+                    server.getOrDefault("edge_websocket_slow_disconnects_total", 0.0).longValue(),
+                    peakQueued / 1024, peakHeap >> 20));
+            System.out.println(line);
+        }
+
+        private void appendQuantiles(StringBuilder line, Histogram.Window window) {
+            double ceiling = VIEWER_LATENCY_BOUNDS_NANOS[VIEWER_LATENCY_BOUNDS_NANOS.length - 1] / 1e6;
+            for (double q : QUANTILES) {
+                double millis = window.quantileMillis(q);
+                // The histogram stops at its last bound
+                line.append(String.format(millis >= ceiling ? " p%d >%.0f ms" : " p%d %.1f ms",
+                        Math.round(q * 100), millis));
+            }
+        }
+
+        private long increase(Map<String, Double> server, String name) {
+            return (long) (server.getOrDefault(name, 0.0) - lastServer.getOrDefault(name, 0.0));
+        }
+
+        private int open() {
+            int open = 0;
+            for (SimulatedViewer viewer : connected) {
+                if (!viewer.closed) {
+                    open++;
+                }
+            }
+            return open;
+        }
+
+        // Unlabelled samples of the server's registry, by name
+        private Map<String, Double> scrape() {
+            StringBuilder text = new StringBuilder();
+            serverMetrics.writeText(text);
+            Map<String, Double> samples = new HashMap<>();
+            for (String line : text.toString().split("\n")) {
+                int space = line.indexOf(' ');
+                if (line.startsWith("#") || space < 0 || line.indexOf('{') >= 0) {
+                    continue;
+                }
+                samples.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1).trim()));
+            }
+            return samples;
+        }
+    }
+}
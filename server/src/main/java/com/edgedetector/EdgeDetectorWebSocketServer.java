@@ -0,0 +1,846 @@
+package com.edgedetector;
+
+import com.edgedetector.metrics.Counter;
+import com.edgedetector.metrics.Histogram;
+import com.edgedetector.metrics.MetricsRegistry;
+import com.edgedetector.protocol.FrameMessage;
+import com.edgedetector.protocol.StreamProfile;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.ExtensionRequestData;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+// Streams frame messages to web viewers. Each viewer subscribes to a
+// StreamProfile (scale, frame rate, codec); viewers with the same profile
+// share one stream, and only profiles somebody uses are encoded. Viewers in
+// step with their stream get only the tiles that changed since the stream's
+// previous frame; a viewer that just joined, asked for one or missed a frame
+// gets a keyframe instead, and every viewer gets one periodically. Each
+// message is framed into WebSocket wire bytes once and the same bytes are
+// queued on every connection of the stream, instead of letting each
+// connection frame and copy it again. Every viewer's send
+// queue is bounded: once the bytes still waiting for a slow viewer pass the
+// limit, the slow-client policy decides whether that viewer skips frames,
+// gets a reduced frame, or is disconnected, so one stalled browser cannot
+// grow the heap without bound.
+//
+// permessage-deflate (RFC 7692) is offered when compression is configured.
+// Without context takeover every message is compressed on its own, so the
+// compressed bytes are shared like the plain ones; with it each viewer keeps
+// its own compressor, which compresses better and costs a pass per viewer.
+public class EdgeDetectorWebSocketServer extends WebSocketServer {
+    private static final String TAG = "WebSocketServer";
+    private static final int PORT = 8765;
+
+    public static final int SLOW_CLIENT_DROP = 0;
+    public static final int SLOW_CLIENT_DOWNGRADE = 1;
+    public static final int SLOW_CLIENT_DISCONNECT = 2;
+    private static final int DEFAULT_SEND_QUEUE_LIMIT = 256 * 1024;
+    private static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+    // Each stream keeps a delta reference in the pipeline, so their number is capped
+    private static final int MAX_STREAMS = 4;
+
+    public static final int COMPRESSION_OFF = 0;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    private static final byte[] DEFLATE_TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    // Encodes the frame being broadcast on demand, each form at most once per
+    // broadcast and profile. Every method returns a complete message (see
+    // FrameMessage).
+    public interface FrameSource {
+        // The whole frame at the profile's scale and codec (TYPE_FRAME)
+        ByteBuffer keyframe(StreamProfile profile);
+
+        // A smaller whole frame for viewers being downgraded, or null
+        ByteBuffer reducedKeyframe(StreamProfile profile);
+
+        // The changes since the previous delta of stream `stream`
+        // (TYPE_DELTA), or null when there is none and every viewer of the
+        // stream needs a keyframe. Called once each time the stream is sent,
+        // as it moves the stream's delta reference on; `restart` drops a
+        // reference left over from an earlier stream with the same id.
+        ByteBuffer delta(StreamProfile profile, int stream, boolean restart);
+    }
+
+    // Handles a control message type the server does not know itself, for
+    // commands that belong to the host (e.g. the app's flight recorder). Runs
+    // on the server's thread, so anything slow belongs on another one.
+    public interface ControlHandler {
+        void onControl(JSONObject message, ControlReply reply);
+    }
+
+    // Sends {"type": type, "data": data} to the viewer the message came from.
+    // Safe from any thread; does nothing once the viewer has gone.
+    public interface ControlReply {
+        void send(String type, JSONObject data);
+    }
+
+    // One message in wire form, built on first use. Server frames are not
+    // masked, so the plain frame and the frame compressed without context
+    // are each built once and shared by every viewer that gets them.
+    private final class WireMessage {
+        private final Supplier<ByteBuffer> source;
+        private boolean built;
+        private ByteBuffer message;
+        private ByteBuffer plain;
+        private ByteBuffer deflated;
+
+        WireMessage(Supplier<ByteBuffer> source) {
+            this.source = source;
+        }
+
+        ByteBuffer forViewer(Viewer viewer) {
+            if (!built) {
+                message = source.get();
+                built = true;
+            }
+            if (message == null) {
+                return null;
+            }
+            if (viewer.deflate && message.remaining() >= compressionThreshold) {
+                if (viewer.contextDeflater != null) {
+                    return deflateForViewer(viewer, message);
+                }
+                if (deflated == null) {
+                    ByteBuffer payload = deflate(sharedDeflater, message);
+                    sharedDeflater.reset();
+                    // Without context a message may go out uncompressed when that is smaller
+                    deflated = payload.remaining() < message.remaining()
+                            ? binaryFrame(payload, true) : plainFrame();
+                }
+                return deflated;
+            }
+            return plainFrame();
+        }
+
+        private ByteBuffer plainFrame() {
+            if (plain == null) {
+                plain = binaryFrame(message, false);
+            }
+            return plain;
+        }
+    }
+
+    // permessage-deflate as this server negotiates it. The library handles
+    // the handshake and inflates what viewers send; outgoing messages are
+    // compressed by the server itself (see WireMessage). The server's
+    // instance holds the settings and the library copies it per connection,
+    // where negotiation narrows them to what the viewer's offer allows.
+    private static final class DeflateExtension extends PerMessageDeflateExtension {
+        volatile int level = COMPRESSION_OFF;
+        volatile boolean contextTakeover;
+        // The accepted offer limited the server's window; answered with 15
+        boolean serverMaxWindowBits;
+
+        // Takes the first offer, in the viewer's order of preference, whose
+        // parameters can all be honoured, as RFC 7692 section 5 asks; with
+        // none, this viewer gets uncompressed messages
+        @Override
+        public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+            if (level == COMPRESSION_OFF) {
+                return false;
+            }
+            for (String offer : inputExtension.split(",")) {
+                ExtensionRequestData data = ExtensionRequestData.parseExtensionRequest(offer);
+                if ("permessage-deflate".equalsIgnoreCase(data.getExtensionName())
+                        && acceptOffer(data.getExtensionParameters())) {
+                    return super.acceptProvidedExtensionAsServer(offer);
+                }
+            }
+            return false;
+        }
+
+        private boolean acceptOffer(Map<String, String> parameters) {
+            boolean noContextTakeover = false;
+            boolean windowBits = false;
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                String value = parameter.getValue();
+                switch (parameter.getKey()) {
+                    case "server_no_context_takeover":
+                        if (!value.isEmpty()) {
+                            return false;
+                        }
+                        noContextTakeover = true;
+                        break;
+                    case "client_no_context_takeover":
+                        if (!value.isEmpty()) {
+                            return false;
+                        }
+                        break;
+                    case "server_max_window_bits":
+                        // java.util.zip only compresses with a 15-bit window
+                        if (!value.equals("15")) {
+                            return false;
+                        }
+                        windowBits = true;
+                        break;
+                    case "client_max_window_bits":
+                        // Inflating with a 15-bit window reads any smaller one
+                        if (!value.isEmpty() && !value.matches("^(8|9|1[0-5])$")) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            if (noContextTakeover) {
+                contextTakeover = false;
+            }
+            serverMaxWindowBits = windowBits;
+            return true;
+        }
+
+        @Override
+        public String getProvidedExtensionAsServer() {
+            return "permessage-deflate" + (contextTakeover ? "" : "; server_no_context_takeover")
+                    + (isClientNoContextTakeover() ? "; client_no_context_takeover" : "")
+                    + (serverMaxWindowBits ? "; server_max_window_bits=15" : "");
+        }
+
+        @Override
+        public void encodeFrame(Framedata frame) {
+            // Control messages sent through WebSocket.send stay uncompressed:
+            // they are tens of bytes, and skipping them leaves a viewer's
+            // compression context untouched
+        }
+
+        @Override
+        public IExtension copyInstance() {
+            DeflateExtension copy = new DeflateExtension();
+            copy.level = level;
+            copy.contextTakeover = contextTakeover;
+            return copy;
+        }
+    }
+
+    // Per-connection state, kept in the connection's attachment. The frame
+    // counters are written by the broadcasting thread only.
+    private static final class Viewer {
+        final WebSocketImpl conn;
+        final AtomicLong framesSent = new AtomicLong();
+        final AtomicLong framesDropped = new AtomicLong();
+        final AtomicLong framesReduced = new AtomicLong();
+        // Set by the viewer's requests as well, hence volatile
+        volatile boolean needsKeyframe = true;
+        volatile StreamProfile profile;
+        boolean reduced;
+        // Reduced, and the last reduced keyframe queued shows the stream's
+        // current frame: unchanged frames are skipped until the viewer
+        // catches up or asks for a keyframe
+        volatile boolean reducedCurrent;
+        // permessage-deflate was negotiated; with context takeover the
+        // viewer's own compressor, guarded by the viewer, else null
+        boolean deflate;
+        Deflater contextDeflater;
+
+        Viewer(WebSocketImpl conn) {
+            this.conn = conn;
+        }
+    }
+
+    // One profile's stream; owned by the broadcasting thread. `id` names the
+    // stream's delta reference in the FrameSource.
+    private static final class Stream {
+        final StreamProfile profile;
+        final int id;
+        final ArrayList<Viewer> members = new ArrayList<>();
+        boolean started;
+        // A frame was skipped for the rate limit and not sent since
+        boolean pending;
+        long nextDueNanos;
+        int broadcastsSinceKeyframe;
+
+        Stream(StreamProfile profile, int id, long now) {
+            this.profile = profile;
+            this.id = id;
+            nextDueNanos = now;
+        }
+    }
+
+    // Iterated on every frame without locking; only connects and disconnects copy
+    private final CopyOnWriteArrayList<Viewer> viewers = new CopyOnWriteArrayList<>();
+    private final Map<StreamProfile, Stream> streams = new HashMap<>();
+    private final Map<String, ControlHandler> controlHandlers = new ConcurrentHashMap<>();
+    // Latest announcement of each type; also held while a viewer connects, so
+    // it gets each one exactly once, before any frame
+    private final Map<String, JSONObject> announcements = new HashMap<>();
+    private volatile StreamProfile defaultProfile = new StreamProfile(1, 0, FrameMessage.CODEC_RLE_1BPP);
+    private volatile int slowClientPolicy = SLOW_CLIENT_DROP;
+    private volatile int sendQueueLimit = DEFAULT_SEND_QUEUE_LIMIT;
+    private volatile int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+    private final Counter messagesSent;
+    private final Counter keyframesSent;
+    private final Counter bytesSent;
+    private final Counter framesDropped;
+    private final Counter framesReduced;
+    private final Counter slowDisconnects;
+    private final DeflateExtension deflateExtension;
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    // Broadcasting thread only
+    private Deflater sharedDeflater;
+    private final Counter deflateInputBytes;
+    private final Counter deflateOutputBytes;
+    private final Histogram deflateLatency;
+
+    public EdgeDetectorWebSocketServer() {
+        this(new MetricsRegistry());
+    }
+
+    public EdgeDetectorWebSocketServer(MetricsRegistry metrics) {
+        this(new InetSocketAddress("0.0.0.0", PORT), metrics);
+    }
+
+    // Hosts outside the app (e.g. loadtest/) bind where they like
+    public EdgeDetectorWebSocketServer(InetSocketAddress address, MetricsRegistry metrics) {
+        this(address, metrics, new DeflateExtension());
+    }
+
+    private EdgeDetectorWebSocketServer(InetSocketAddress address, MetricsRegistry metrics,
+            DeflateExtension deflateExtension) {
+        super(address,
+                Collections.singletonList(new Draft_6455(Collections.singletonList(deflateExtension))));
+        this.deflateExtension = deflateExtension;
+        metrics.gauge("edge_websocket_connections", "Connected WebSocket viewers", viewers::size);
+        metrics.gauge("edge_websocket_streams", "Distinct viewer profiles being encoded",
+                this::subscribedProfileCount);
+        metrics.gauge("edge_websocket_send_queue_frames",
+                "WebSocket frames queued for sending, summed over all viewers", this::sendQueueDepth);
+        metrics.gauge("edge_websocket_send_queue_bytes",
+                "Bytes queued for sending, summed over all viewers", this::sendQueueBytes);
+        messagesSent = metrics.counter("edge_websocket_messages_sent_total", "Frame messages sent, per viewer");
+        bytesSent = metrics.counter("edge_websocket_bytes_sent_total", "Payload bytes sent to viewers");
+        keyframesSent = metrics.counter("edge_websocket_keyframes_sent_total",
+                "Keyframes sent, per viewer; the other frame messages are deltas");
+        framesDropped = metrics.counter("edge_websocket_frames_dropped_total",
+                "Frames skipped for viewers whose send queue was full");
+        framesReduced = metrics.counter("edge_websocket_frames_reduced_total",
+                "Reduced frames sent to viewers whose send queue was full");
+        slowDisconnects = metrics.counter("edge_websocket_slow_disconnects_total",
+                "Viewers disconnected for falling behind");
+        deflateInputBytes = metrics.counter("edge_websocket_deflate_input_bytes_total",
+                "Message bytes compressed with permessage-deflate");
+        deflateOutputBytes = metrics.counter("edge_websocket_deflate_output_bytes_total",
+                "Compressed bytes those messages came to");
+        deflateLatency = metrics.histogram("edge_stage_latency_seconds", "stage=\"deflate\"",
+                "Time spent per frame in each pipeline stage");
+    }
+
+    // What happens to a viewer whose queue is over the limit: skip frames
+    // until it drains (DROP), send a reduced frame while it fits and skip
+    // otherwise (DOWNGRADE), or close the connection (DISCONNECT)
+    public void setSlowClientPolicy(int policy) {
+        slowClientPolicy = policy;
+    }
+
+    // Bytes that may wait in one viewer's send queue before the policy kicks in
+    public void setSendQueueLimit(int bytes) {
+        sendQueueLimit = bytes;
+    }
+
+    // Broadcasts between keyframes sent to every viewer; keyframes also bound
+    // how long a lost delta can go unnoticed
+    public void setKeyframeInterval(int broadcasts) {
+        keyframeInterval = Math.max(1, broadcasts);
+    }
+
+    // Offers permessage-deflate to viewers that connect from now on, at zlib
+    // `level` (1 fastest - 9 smallest, or COMPRESSION_OFF). Messages shorter
+    // than `threshold` bytes go out uncompressed. Context takeover lets each
+    // viewer's compressor refer back to earlier frames, which suits deltas,
+    // but then every viewer costs its own compression pass.
+    public void setCompression(int level, int threshold, boolean contextTakeover) {
+        if (level < COMPRESSION_OFF || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be 0-9: " + level);
+        }
+        compressionThreshold = Math.max(0, threshold);
+        deflateExtension.contextTakeover = contextTakeover;
+        deflateExtension.level = level;
+    }
+
+    // Profile of viewers that have not subscribed to one
+    public void setDefaultProfile(StreamProfile profile) {
+        defaultProfile = profile;
+    }
+
+    // Routes control messages of `type` to `handler`, or stops routing them
+    // when it is null. The server's own types cannot be taken over.
+    public void setControlHandler(String type, ControlHandler handler) {
+        if (handler == null) {
+            controlHandlers.remove(type);
+        } else {
+            controlHandlers.put(type, handler);
+        }
+    }
+
+    // Sends {"type": type, "data": data} to every viewer, and to viewers that
+    // connect later until the next announcement of the same type. For state
+    // of the host that viewers need to read frames by (e.g. the app's region
+    // layout); announced from the broadcasting thread, it reaches each viewer
+    // ahead of the frames broadcast after it.
+    public void announce(String type, JSONObject data) {
+        synchronized (announcements) {
+            announcements.put(type, data);
+            for (Viewer viewer : viewers) {
+                reply(viewer, type, data);
+            }
+        }
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        Viewer viewer = new Viewer((WebSocketImpl) conn);
+        viewer.profile = defaultProfile;
+        IExtension extension = ((Draft_6455) viewer.conn.getDraft()).getExtension();
+        if (extension instanceof DeflateExtension) {
+            DeflateExtension deflate = (DeflateExtension) extension;
+            viewer.deflate = true;
+            if (deflate.contextTakeover) {
+                viewer.contextDeflater = new Deflater(deflate.level, true);
+            }
+        }
+        conn.setAttachment(viewer);
+        synchronized (announcements) {
+            viewers.add(viewer);
+            // Tells the viewer which binary frame layout follows
+            conn.send("{\"type\":\"status\",\"data\":{\"protocol\":" + FrameMessage.VERSION + "}}");
+            for (Map.Entry<String, JSONObject> announcement : announcements.entrySet()) {
+                sendControl(viewer, announcement.getKey(), null, announcement.getValue());
+            }
+        }
+        ServerLog.d(TAG, "New connection established" + (viewer.deflate ? " with permessage-deflate" : ""));
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        removeViewer(conn);
+        ServerLog.d(TAG, "Connection closed");
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        Viewer viewer = conn.getAttachment();
+        if (viewer == null) {
+            return;
+        }
+        JSONObject json;
+        try {
+            json = new JSONObject(message);
+        } catch (JSONException e) {
+            ServerLog.w(TAG, "Ignoring malformed control message: " + e.getMessage());
+            return;
+        }
+        String type = json.optString("type");
+        switch (type) {
+            case "request_frame":
+            case "request_keyframe":
+                viewer.reducedCurrent = false;
+                viewer.needsKeyframe = true;
+                break;
+
+            case "subscribe":
+                subscribe(viewer, json.optJSONObject("profile"));
+                break;
+
+            default:
+                ControlHandler handler = controlHandlers.get(type);
+                if (handler != null) {
+                    handler.onControl(json, (replyType, data) -> reply(viewer, replyType, data));
+                } else {
+                    ServerLog.d(TAG, "Unknown control message: " + type);
+                }
+        }
+    }
+
+    private static void reply(Viewer viewer, String type, JSONObject data) {
+        try {
+            sendControl(viewer, type, null, data);
+        } catch (WebsocketNotConnectedException e) {
+            ServerLog.d(TAG, "Viewer left before the " + type + " reply");
+        }
+    }
+
+    private void subscribe(Viewer viewer, JSONObject request) {
+        StreamProfile profile;
+        try {
+            profile = request != null ? StreamProfile.fromJson(request, defaultProfile) : defaultProfile;
+        } catch (IllegalArgumentException e) {
+            sendControl(viewer, "error", "message", e.getMessage());
+            return;
+        }
+        // Checked against the other viewers' profiles; two viewers subscribing
+        // at once can still overshoot by one until one of them leaves
+        Set<StreamProfile> others = new HashSet<>();
+        for (Viewer other : viewers) {
+            if (other != viewer) {
+                others.add(other.profile);
+            }
+        }
+        if (!others.contains(profile) && others.size() >= MAX_STREAMS) {
+            sendControl(viewer, "error", "message", "Too many distinct profiles in use; try one of " + others);
+            return;
+        }
+        viewer.profile = profile;
+        viewer.reducedCurrent = false;
+        viewer.needsKeyframe = true;
+        sendControl(viewer, "profile", null, profile.toJson());
+        ServerLog.d(TAG, "Viewer " + viewer.conn.getRemoteSocketAddress() + " subscribed to " + profile);
+    }
+
+    // {"type": type, "data": data}, or {"type": type, "data": {key: data}}
+    private static void sendControl(Viewer viewer, String type, String key, Object data) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("type", type);
+            json.put("data", key != null ? new JSONObject().put(key, data) : data);
+            viewer.conn.send(json.toString());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        ServerLog.e(TAG, "WebSocket error: " + ex.getMessage());
+        if (conn != null) {
+            removeViewer(conn);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        ServerLog.d(TAG, "WebSocket server started on port " + getPort());
+    }
+
+    private void removeViewer(WebSocket conn) {
+        Viewer viewer = conn.getAttachment();
+        if (viewer != null && viewers.remove(viewer)) {
+            synchronized (viewer) {
+                if (viewer.contextDeflater != null) {
+                    viewer.contextDeflater.end();
+                    viewer.contextDeflater = null;
+                }
+            }
+            ServerLog.d(TAG, "Viewer " + conn.getRemoteSocketAddress() + ": " + viewer.framesSent.get() + " frames sent, "
+                    + viewer.framesReduced.get() + " reduced, " + viewer.framesDropped.get() + " dropped");
+        }
+    }
+
+    public boolean hasViewers() {
+        return !viewers.isEmpty();
+    }
+
+    public int getConnectionCount() {
+        return viewers.size();
+    }
+
+    private long subscribedProfileCount() {
+        Set<StreamProfile> profiles = new HashSet<>();
+        for (Viewer viewer : viewers) {
+            profiles.add(viewer.profile);
+        }
+        return profiles.size();
+    }
+
+    private long sendQueueDepth() {
+        long depth = 0;
+        for (Viewer viewer : viewers) {
+            depth += viewer.conn.outQueue.size();
+        }
+        return depth;
+    }
+
+    // Bytes waiting in the viewers' send queues, as exported to the metrics
+    public long sendQueueBytes() {
+        long bytes = 0;
+        for (Viewer viewer : viewers) {
+            bytes += queuedBytes(viewer.conn);
+        }
+        return bytes;
+    }
+
+    // Approximate: the selector thread drains the queue concurrently
+    private static long queuedBytes(WebSocketImpl conn) {
+        long bytes = 0;
+        for (ByteBuffer buffer : conn.outQueue) {
+            bytes += buffer.remaining();
+        }
+        return bytes;
+    }
+
+    // Whether a frame is worth broadcasting even if the scene has not
+    // changed: some viewer is waiting for a keyframe, or a rate-limited
+    // stream skipped the last change. A reduced viewer already showing the
+    // scene only counts once its queue has drained enough to go back to
+    // full frames. Call on the broadcasting thread.
+    public boolean needsBroadcast() {
+        for (Viewer viewer : viewers) {
+            if (viewer.needsKeyframe && (!viewer.reducedCurrent || caughtUp(queuedBytes(viewer.conn)))) {
+                return true;
+            }
+        }
+        for (Stream stream : streams.values()) {
+            if (stream.pending) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sends the current edge mask to every viewer as a delta or a keyframe
+    // of its profile's stream. Streams without viewers are dropped, and
+    // rate-limited streams that are not due are skipped without encoding.
+    public void broadcastFrame(FrameSource frame) {
+        if (viewers.isEmpty()) return;
+
+        long now = System.nanoTime();
+        for (Stream stream : streams.values()) {
+            stream.members.clear();
+        }
+        for (Viewer viewer : viewers) {
+            if (viewer.conn.isOpen()) {
+                streamFor(viewer.profile, now).members.add(viewer);
+            }
+        }
+        // Keyframes depend only on scale and codec, so streams that differ
+        // only in rate share them
+        Map<Integer, WireMessage> keyframes = new HashMap<>();
+        Map<Integer, WireMessage> reducedKeyframes = new HashMap<>();
+        Iterator<Stream> iterator = streams.values().iterator();
+        while (iterator.hasNext()) {
+            Stream stream = iterator.next();
+            if (stream.members.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+            StreamProfile profile = stream.profile;
+            if (profile.maxFps > 0) {
+                if (now - stream.nextDueNanos < 0) {
+                    stream.pending = true;
+                    continue;
+                }
+                // Keep the average rate, but do not catch up after a stall
+                long interval = 1_000_000_000L / profile.maxFps;
+                stream.nextDueNanos = now - stream.nextDueNanos >= interval
+                        ? now + interval : stream.nextDueNanos + interval;
+            }
+            stream.pending = false;
+            int key = profile.scale << 8 | profile.codec;
+            WireMessage keyframe = keyframes.get(key);
+            if (keyframe == null) {
+                keyframe = new WireMessage(() -> frame.keyframe(profile));
+                keyframes.put(key, keyframe);
+            }
+            WireMessage reduced = reducedKeyframes.get(key);
+            if (reduced == null) {
+                reduced = new WireMessage(() -> frame.reducedKeyframe(profile));
+                reducedKeyframes.put(key, reduced);
+            }
+            broadcastStream(stream, frame, keyframe, reduced);
+        }
+    }
+
+    private Stream streamFor(StreamProfile profile, long now) {
+        Stream stream = streams.get(profile);
+        if (stream == null) {
+            // Lowest id no stream uses; the first delta restarts its reference
+            int id = 0;
+            boolean taken = true;
+            while (taken) {
+                taken = false;
+                for (Stream other : streams.values()) {
+                    if (other.id == id) {
+                        taken = true;
+                        id++;
+                        break;
+                    }
+                }
+            }
+            stream = new Stream(profile, id, now);
+            streams.put(profile, stream);
+        }
+        return stream;
+    }
+
+    private void broadcastStream(Stream stream, FrameSource frame, WireMessage keyframes,
+            WireMessage reducedKeyframes) {
+        ByteBuffer delta = frame.delta(stream.profile, stream.id, !stream.started);
+        stream.started = true;
+        boolean keyframeForAll = delta == null || ++stream.broadcastsSinceKeyframe >= keyframeInterval;
+        if (keyframeForAll) {
+            stream.broadcastsSinceKeyframe = 0;
+        }
+        boolean unchanged = delta != null && FrameMessage.deltaTileCount(delta) == 0;
+        WireMessage deltas = new WireMessage(() -> delta);
+        int policy = slowClientPolicy;
+        long limit = sendQueueLimit;
+
+        for (Viewer viewer : stream.members) {
+            WebSocketImpl conn = viewer.conn;
+            boolean keyframe = keyframeForAll || viewer.needsKeyframe;
+            if (!keyframe && unchanged) {
+                // Already showing this frame
+                continue;
+            }
+            long queued = queuedBytes(conn);
+            if (viewer.reduced && caughtUp(queued)) {
+                // Caught up: back to full frames, starting from a keyframe
+                viewer.reduced = false;
+                viewer.reducedCurrent = false;
+                keyframe = true;
+            } else if (viewer.reducedCurrent && unchanged) {
+                // Its reduced keyframe already shows this frame
+                continue;
+            }
+            ByteBuffer wire = (keyframe ? keyframes : deltas).forViewer(viewer);
+            if (wire == null) {
+                viewer.needsKeyframe = true;
+                continue;
+            }
+            // A viewer with nothing queued always gets the frame, however large
+            if (!viewer.reduced && (queued == 0 || queued + wire.remaining() <= limit)) {
+                enqueue(viewer, wire);
+                if (keyframe) {
+                    viewer.needsKeyframe = false;
+                    keyframesSent.inc();
+                }
+                continue;
+            }
+
+            // This viewer misses the frame, so later deltas no longer apply
+            viewer.needsKeyframe = true;
+            discardContext(viewer);
+            if (policy == SLOW_CLIENT_DISCONNECT) {
+                slowDisconnects.inc();
+                ServerLog.w(TAG, "Disconnecting slow viewer " + conn.getRemoteSocketAddress() + " with "
+                        + queued + " bytes queued");
+                // A close frame would queue behind the backlog, so drop the connection outright
+                conn.closeConnection(CloseFrame.TRY_AGAIN_LATER, "Viewer too slow");
+                continue;
+            }
+            if (policy == SLOW_CLIENT_DOWNGRADE) {
+                viewer.reduced = true;
+                ByteBuffer reduced = reducedKeyframes.forViewer(viewer);
+                if (reduced != null && (queued == 0 || queued + reduced.remaining() <= limit)) {
+                    enqueue(viewer, reduced);
+                    viewer.reducedCurrent = true;
+                    viewer.framesReduced.incrementAndGet();
+                    framesReduced.inc();
+                    continue;
+                }
+                viewer.reducedCurrent = false;
+            }
+            discardContext(viewer);
+            viewer.framesDropped.incrementAndGet();
+            framesDropped.inc();
+        }
+    }
+
+    // Whether a reduced viewer may go back to full frames
+    private boolean caughtUp(long queued) {
+        return slowClientPolicy != SLOW_CLIENT_DOWNGRADE || queued <= sendQueueLimit / 4;
+    }
+
+    // A message compressed with the viewer's context was not sent, so the
+    // compressor must forget it. Its next message starts from an empty
+    // window; the viewer's decompressor keeps extra history, which is harmless.
+    private static void discardContext(Viewer viewer) {
+        synchronized (viewer) {
+            if (viewer.contextDeflater != null) {
+                viewer.contextDeflater.reset();
+            }
+        }
+    }
+
+    // A final, unmasked binary frame around `payload`, RSV1 marking it compressed
+    private static ByteBuffer binaryFrame(ByteBuffer payload, boolean compressed) {
+        int length = payload.remaining();
+        int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | (compressed ? 0x40 : 0) | 0x2));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            frame.put((byte) 126);
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(length);
+        }
+        frame.put(payload.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    // Compresses `message` with the viewer's own compressor, which keeps the
+    // context, so the result must be sent. Null once the viewer is gone.
+    private ByteBuffer deflateForViewer(Viewer viewer, ByteBuffer message) {
+        synchronized (viewer) {
+            if (viewer.contextDeflater == null) {
+                return null;
+            }
+            return binaryFrame(deflate(viewer.contextDeflater, message), true);
+        }
+    }
+
+    // One message as permessage-deflate sends it: raw DEFLATE ending in a
+    // sync flush, without the flush's trailing 00 00 FF FF
+    private ByteBuffer deflate(Deflater deflater, ByteBuffer message) {
+        if (deflater == null) {
+            deflater = sharedDeflater = new Deflater(deflateExtension.level, true);
+        }
+        long start = System.nanoTime();
+        deflater.setInput(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        byte[] out = new byte[message.remaining() / 2 + 64];
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            if (length < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        if (length >= DEFLATE_TAIL.length && out[length - 4] == DEFLATE_TAIL[0] && out[length - 3] == DEFLATE_TAIL[1]
+                && out[length - 2] == DEFLATE_TAIL[2] && out[length - 1] == DEFLATE_TAIL[3]) {
+            length -= DEFLATE_TAIL.length;
+        }
+        deflateLatency.observeNanos(System.nanoTime() - start);
+        deflateInputBytes.add(message.remaining());
+        deflateOutputBytes.add(length);
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    // Does what WebSocketImpl.send does after framing: queue the bytes and
+    // wake the selector. Each connection consumes its own view of the buffer.
+    private void enqueue(Viewer viewer, ByteBuffer frame) {
+        viewer.conn.outQueue.add(frame.duplicate());
+        onWriteDemand(viewer.conn);
+        viewer.framesSent.incrementAndGet();
+        messagesSent.inc();
+        bytesSent.add(frame.remaining());
+    }
+}
@@ -0,0 +1,73 @@
+package com.edgedetector;
+
+import java.io.PrintStream;
+
+// Logging for the code in the server module, which also runs outside the app
+// (see loadtest/). The app routes it to logcat with AndroidServerLog; until a
+// sink is installed lines go to stderr in logcat's brief format. Priorities
+// match android.util.Log.
+public final class ServerLog {
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+        void log(int priority, String tag, String message, Throwable error);
+    }
+
+    private static final Sink STDERR = (priority, tag, message, error) -> {
+        PrintStream out = System.err;
+        synchronized (out) {
+            out.println("DIWE".charAt(priority - DEBUG) + "/" + tag + ": " + message);
+            if (error != null) {
+                error.printStackTrace(out);
+            }
+        }
+    };
+
+    private static volatile Sink sink = STDERR;
+    private static volatile int minPriority = DEBUG;
+
+    private ServerLog() {
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : STDERR;
+    }
+
+    // Lines below `priority` are dropped before they reach the sink
+    public static void setMinPriority(int priority) {
+        minPriority = priority;
+    }
+
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        log(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        log(ERROR, tag, message, error);
+    }
+
+    private static void log(int priority, String tag, String message, Throwable error) {
+        if (priority >= minPriority) {
+            sink.log(priority, tag, message, error);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.edgedetector.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Monotonic count. Either owned (inc/add) or sampled from an existing source
+// such as FrameProcessor's counters, in which case inc/add are not used.
+public final class Counter extends Metric {
+    private final AtomicLong value = new AtomicLong();
+    private final LongSupplier source;
+
+    Counter(String name, String labels, LongSupplier source) {
+        super(name, labels);
+        this.source = source;
+    }
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    public long get() {
+        return source != null ? source.getAsLong() : value.get();
+    }
+
+    @Override
+    String type() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        writeSample(out, "", null, get());
+    }
+}
@@ -0,0 +1,33 @@
+package com.edgedetector.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+// Point-in-time value, either set explicitly or sampled when read.
+public final class Gauge extends Metric {
+    private final AtomicLong value = new AtomicLong();
+    private final LongSupplier source;
+
+    Gauge(String name, String labels, LongSupplier source) {
+        super(name, labels);
+        this.source = source;
+    }
+
+    public void set(long newValue) {
+        value.set(newValue);
+    }
+
+    public long get() {
+        return source != null ? source.getAsLong() : value.get();
+    }
+
+    @Override
+    String type() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        writeSample(out, "", null, get());
+    }
+}
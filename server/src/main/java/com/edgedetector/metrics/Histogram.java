@@ -0,0 +1,108 @@
+package com.edgedetector.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latency histogram with fixed bucket bounds. Recording is a bucket search and
+// two atomic adds, so it never allocates and is safe from any thread. Buckets
+// are cumulative over the process lifetime, as Prometheus expects; a Window
+// turns them into quantiles over the interval between two reads.
+public final class Histogram extends Metric {
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    // Upper bounds from 250 us to 1 s; 33 ms and 66 ms line up with 30 and 15 fps
+    public static final long[] LATENCY_BOUNDS_NANOS = {
+        250_000L, 500_000L, 1_000_000L, 2_000_000L, 4_000_000L, 8_000_000L, 16_000_000L,
+        33_000_000L, 66_000_000L, 133_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L
+    };
+
+    private final long[] bounds;
+    // One slot per bound plus the overflow (+Inf) bucket
+    private final AtomicLongArray buckets;
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    Histogram(String name, String labels, long[] boundsNanos) {
+        super(name, labels);
+        this.bounds = boundsNanos.clone();
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void observeNanos(long nanos) {
+        int index = 0;
+        while (index < bounds.length && nanos > bounds[index]) {
+            index++;
+        }
+        buckets.incrementAndGet(index);
+        sumNanos.addAndGet(nanos);
+    }
+
+    public Window newWindow() {
+        return new Window();
+    }
+
+    @Override
+    String type() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += buckets.get(i);
+            writeSample(out, "_bucket", "le=\"" + (bounds[i] / 1e9) + "\"", cumulative);
+        }
+        cumulative += buckets.get(bounds.length);
+        writeSample(out, "_bucket", "le=\"+Inf\"", cumulative);
+        writeSample(out, "_sum", null, sumNanos.get() / 1e9);
+        writeSample(out, "_count", null, cumulative);
+    }
+
+    // Bucket counts observed between consecutive advance() calls. Meant for a
+    // single reader (e.g. the on-screen stats); its arrays are reused.
+    public final class Window {
+        private final long[] last = new long[bounds.length + 1];
+        private final long[] delta = new long[bounds.length + 1];
+        private long count;
+
+        private Window() {
+        }
+
+        public void advance() {
+            count = 0;
+            for (int i = 0; i < last.length; i++) {
+                long current = buckets.get(i);
+                delta[i] = current - last[i];
+                last[i] = current;
+                count += delta[i];
+            }
+        }
+
+        public long count() {
+            return count;
+        }
+
+        // Estimates the q-quantile by interpolating inside its bucket. Values
+        // past the last bound are reported as that bound.
+        public double quantileMillis(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            double rank = q * count;
+            long seen = 0;
+            for (int i = 0; i < delta.length; i++) {
+                if (delta[i] == 0 || seen + delta[i] < rank) {
+                    seen += delta[i];
+                    continue;
+                }
+                if (i == bounds.length) {
+                    break;
+                }
+                long lower = i == 0 ? 0 : bounds[i - 1];
+                double fraction = (rank - seen) / delta[i];
+                return (lower + fraction * (bounds[i] - lower)) / NANOS_PER_MILLI;
+            }
+            return (double) bounds[bounds.length - 1] / NANOS_PER_MILLI;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.edgedetector.metrics;
+
+// Base for everything a MetricsRegistry exposes. A metric is identified by its
+// family name plus an optional, preformatted label set such as
+// stage="process"; metrics sharing a name form one family in the text output.
+public abstract class Metric {
+    private final String name;
+    private final String labels;
+
+    Metric(String name, String labels) {
+        this.name = name;
+        this.labels = labels;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLabels() {
+        return labels;
+    }
+
+    abstract String type();
+
+    // Appends this metric's samples in the Prometheus text format
+    abstract void writeSamples(StringBuilder out);
+
+    void writeSample(StringBuilder out, String suffix, String extraLabel, long value) {
+        writeSeries(out, suffix, extraLabel);
+        out.append(' ').append(value).append('\n');
+    }
+
+    void writeSample(StringBuilder out, String suffix, String extraLabel, double value) {
+        writeSeries(out, suffix, extraLabel);
+        out.append(' ').append(value).append('\n');
+    }
+
+    private void writeSeries(StringBuilder out, String suffix, String extraLabel) {
+        out.append(name).append(suffix);
+        boolean hasLabels = labels != null && !labels.isEmpty();
+        if (hasLabels || extraLabel != null) {
+            out.append('{');
+            if (hasLabels) {
+                out.append(labels);
+            }
+            if (extraLabel != null) {
+                if (hasLabels) {
+                    out.append(',');
+                }
+                out.append(extraLabel);
+            }
+            out.append('}');
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.edgedetector.metrics;
+
+import com.edgedetector.ServerLog;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Minimal HTTP endpoint serving the registry in the Prometheus text format at
+// /metrics. Scrapes are rare and tiny, so one thread answers them in turn.
+public class MetricsHttpServer {
+    private static final String TAG = "MetricsHttpServer";
+    private static final int READ_TIMEOUT_MS = 2000;
+
+    private final MetricsRegistry registry;
+    private final int port;
+    private ServerSocket serverSocket;
+    private Thread thread;
+
+    public MetricsHttpServer(MetricsRegistry registry, int port) {
+        this.registry = registry;
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("0.0.0.0", port));
+        thread = new Thread(this::acceptLoop, "MetricsHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                ServerLog.w(TAG, "Failed to close metrics socket", e);
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join(READ_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try (Socket client = serverSocket.accept()) {
+                client.setSoTimeout(READ_TIMEOUT_MS);
+                handle(client);
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    ServerLog.w(TAG, "Metrics request failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        // Skip the headers; the request has no body we care about
+        String header;
+        while ((header = reader.readLine()) != null && !header.isEmpty()) {
+        }
+
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        String status;
+        StringBuilder body = new StringBuilder(4096);
+        if (parts[0].equals("GET") && (path.equals("/metrics") || path.equals("/"))) {
+            status = "200 OK";
+            registry.writeText(body);
+        } else {
+            status = "404 Not Found";
+            body.append("Not found\n");
+        }
+
+        byte[] payload = body.toString().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + payload.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = client.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+    }
+}
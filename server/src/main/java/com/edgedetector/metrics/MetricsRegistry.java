@@ -0,0 +1,75 @@
+package com.edgedetector.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Holds the app's counters, gauges and histograms. Metrics are created once at
+// startup and then updated lock-free from the hot paths; only registration and
+// the text dump take the registry lock.
+public final class MetricsRegistry {
+    private static final class Family {
+        final String help;
+        final String type;
+        final List<Metric> metrics = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, null, null), help);
+    }
+
+    public Counter counter(String name, String help, LongSupplier source) {
+        return register(new Counter(name, null, source), help);
+    }
+
+    public Gauge gauge(String name, String help) {
+        return register(new Gauge(name, null, null), help);
+    }
+
+    public Gauge gauge(String name, String help, LongSupplier source) {
+        return register(new Gauge(name, null, source), help);
+    }
+
+    // `labels` is a preformatted label set, e.g. stage="process"
+    public Histogram histogram(String name, String labels, String help) {
+        return register(new Histogram(name, labels, Histogram.LATENCY_BOUNDS_NANOS), help);
+    }
+
+    // As above with other upper bounds, ascending, in nanoseconds
+    public Histogram histogram(String name, String labels, String help, long[] boundsNanos) {
+        return register(new Histogram(name, labels, boundsNanos), help);
+    }
+
+    private synchronized <M extends Metric> M register(M metric, String help) {
+        Family family = families.get(metric.getName());
+        if (family == null) {
+            family = new Family(help, metric.type());
+            families.put(metric.getName(), family);
+        } else if (!family.type.equals(metric.type())) {
+            throw new IllegalArgumentException("Metric " + metric.getName() + " is already a " + family.type);
+        }
+        family.metrics.add(metric);
+        return metric;
+    }
+
+    // Prometheus text exposition format, version 0.0.4
+    public synchronized void writeText(StringBuilder out) {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+            for (Metric metric : family.metrics) {
+                metric.writeSamples(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.edgedetector.protocol;
+
+import java.nio.ByteBuffer;
+
+// Binary frame messages sent to web viewers. Every WebSocket binary message
+// is a fixed 24-byte big-endian header followed by the payload:
+//
+//   offset  size  field
+//        0     1  protocol version (VERSION)
+//        1     1  message type (TYPE_*)
+//        2     1  pixel format of the decoded frame (PIXEL_FORMAT_*)
+//        3     1  payload codec (CODEC_*)
+//        4     4  frame sequence number, unsigned, wraps
+//        8     8  sensor timestamp in nanoseconds
+//       16     2  width, unsigned
+//       18     2  height, unsigned
+//       20     4  payload length in bytes
+//
+// TYPE_FRAME carries a complete frame (a keyframe). TYPE_DELTA carries only
+// the tiles that changed since the previous frame of the stream, so a viewer
+// can apply it only on top of that frame; a viewer that missed one waits for
+// the next keyframe. Its payload (CODEC_TILES_1BPP) is
+//
+//   u16 tile size, u16 tile count, then per tile
+//   u16 tile column, u16 tile row, ceil(w * h / 8) bytes holding the tile's
+//   w x h pixels (clipped at the frame edge), row-major, MSB first
+//
+// CODEC_RLE_1BPP is a whole frame packed the same way, one bit per pixel,
+// then run-length coded as repeated (varint zero bytes, varint literal
+// bytes, the literal bytes) until ceil(w * h / 8) bytes are covered; varints
+// are unsigned LEB128 (see jni/mask_codec.h).
+//
+// Control messages (viewer requests, server status) stay JSON text messages.
+// web/src/app.ts parses the same layout; keep the two in step.
+public final class FrameMessage {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+
+    public static final int TYPE_FRAME = 1;
+    public static final int TYPE_DELTA = 2;
+
+    // One byte per pixel, 0 or 255 for the edge mask
+    public static final int PIXEL_FORMAT_GRAY8 = 1;
+
+    public static final int CODEC_RAW = 0;
+    public static final int CODEC_PNG = 1;
+    public static final int CODEC_TILES_1BPP = 2;
+    public static final int CODEC_RLE_1BPP = 3;
+
+    private FrameMessage() {
+    }
+
+    // Builds a complete message, flipped and ready to send
+    public static ByteBuffer encode(int type, int pixelFormat, int codec, long seq, long timestamp,
+            int width, int height, byte[] payload, int offset, int length) {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + length);
+        writeHeader(message, type, pixelFormat, codec, seq, timestamp, width, height, length);
+        message.put(payload, offset, length);
+        message.flip();
+        return message;
+    }
+
+    // Same, taking the payload from `payload`'s position to its limit
+    public static ByteBuffer encode(int type, int pixelFormat, int codec, long seq, long timestamp,
+            int width, int height, ByteBuffer payload) {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+        writeHeader(message, type, pixelFormat, codec, seq, timestamp, width, height, payload.remaining());
+        message.put(payload);
+        message.flip();
+        return message;
+    }
+
+    // Number of tiles in a complete TYPE_DELTA message; 0 means nothing changed
+    public static int deltaTileCount(ByteBuffer message) {
+        return message.getShort(message.position() + HEADER_SIZE + 2) & 0xFFFF;
+    }
+
+    public static void writeHeader(ByteBuffer out, int type, int pixelFormat, int codec, long seq,
+            long timestamp, int width, int height, int payloadLength) {
+        if (width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("Frame too large: " + width + "x" + height);
+        }
+        out.put((byte) VERSION);
+        out.put((byte) type);
+        out.put((byte) pixelFormat);
+        out.put((byte) codec);
+        out.putInt((int) seq);
+        out.putLong(timestamp);
+        out.putShort((short) width);
+        out.putShort((short) height);
+        out.putInt(payloadLength);
+    }
+}
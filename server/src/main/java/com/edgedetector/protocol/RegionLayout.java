@@ -0,0 +1,187 @@
+package com.edgedetector.protocol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Regions of interest placed on a frame of a given size. The pipeline crops
+// each region out before conversion and Canny, and the edge mask it encodes
+// for viewers is a "canvas" holding only the regions' edges: every region at
+// the left edge, stacked top to bottom in the order given, zeros around
+// them. Frame messages then carry the canvas, so their size and encoding
+// cost follow the regions' area rather than the frame's.
+//
+// Regions are requested as fractions of the frame, so they stay on the same
+// part of the scene when the capture size changes. A viewer sets them with
+//
+//   {"type":"regions","regions":[{"x":0.1,"y":0.6,"width":0.8,"height":0.25}]}
+//
+// and an empty list goes back to the whole frame. Every viewer is sent the
+// layout in effect when it connects and whenever it changes, before the
+// first frame that uses it:
+//
+//   {"type":"layout","data":{"frameWidth":640,"frameHeight":480,"canvasWidth":512,
+//     "canvasHeight":120,"regions":[{"x":64,"y":288,"width":512,"height":120,"canvasX":0,"canvasY":0}]}}
+//
+// with an empty "regions" list while the whole frame is processed. A
+// stream's scale shrinks the canvas like a frame.
+public final class RegionLayout {
+    public static final int MAX_REGIONS = 4;
+    // Region offsets and sizes in frame pixels are multiples of this: even,
+    // so 4:2:0 chroma crops with them, and whole 4x4 blocks for the motion gate
+    public static final int ALIGN = 4;
+    // Canvas rows at which regions start are multiples of this, so a canvas
+    // shrunk by a power-of-two scale up to StreamProfile.MAX_SCALE, doubled
+    // for reduced frames, never mixes two regions in one pixel. Other scales
+    // can blur one row at a seam.
+    public static final int CANVAS_ALIGN = 16;
+    private static final int MIN_SIZE = 16;
+
+    public final int frameWidth;
+    public final int frameHeight;
+    public final int canvasWidth;
+    public final int canvasHeight;
+    // Per region: x, y, width, height in the frame, then canvas x and y
+    private final int[] placements;
+
+    private RegionLayout(int frameWidth, int frameHeight, int canvasWidth, int canvasHeight, int[] placements) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        this.placements = placements;
+    }
+
+    // Parses the "regions" list of a regions message into x, y, width and
+    // height fractions per region; an empty list gives an empty array
+    public static double[] parseRegions(JSONObject message) {
+        JSONArray list = message.optJSONArray("regions");
+        if (list == null) {
+            throw new IllegalArgumentException("regions must be a list");
+        }
+        if (list.length() > MAX_REGIONS) {
+            throw new IllegalArgumentException("At most " + MAX_REGIONS + " regions: " + list.length());
+        }
+        double[] regions = new double[list.length() * 4];
+        for (int i = 0; i < list.length(); i++) {
+            JSONObject region = list.optJSONObject(i);
+            if (region == null) {
+                throw new IllegalArgumentException("Region " + i + " is not an object");
+            }
+            double x = region.optDouble("x", Double.NaN);
+            double y = region.optDouble("y", Double.NaN);
+            double width = region.optDouble("width", Double.NaN);
+            double height = region.optDouble("height", Double.NaN);
+            // Negated so NaN fails too
+            if (!(x >= 0 && y >= 0 && width > 0 && height > 0 && x + width <= 1.0001 && y + height <= 1.0001)) {
+                throw new IllegalArgumentException(
+                        "Region " + i + " must have x, y, width and height inside the frame (0-1): " + region);
+            }
+            regions[i * 4] = x;
+            regions[i * 4 + 1] = y;
+            regions[i * 4 + 2] = width;
+            regions[i * 4 + 3] = height;
+        }
+        return regions;
+    }
+
+    // Places `regions` (fractions as parseRegions returns them, or null for
+    // the whole frame) on a frame of this size. Each grows outwards to ALIGN
+    // and to at least MIN_SIZE pixels, staying inside the frame.
+    public static RegionLayout place(double[] regions, int frameWidth, int frameHeight) {
+        if (regions == null || regions.length == 0) {
+            return new RegionLayout(frameWidth, frameHeight, frameWidth, frameHeight, new int[0]);
+        }
+        int count = regions.length / 4;
+        int[] placements = new int[count * 6];
+        int canvasWidth = 0;
+        int canvasY = 0;
+        int canvasHeight = 0;
+        for (int i = 0; i < count; i++) {
+            int[] columns = span(regions[i * 4], regions[i * 4 + 2], frameWidth);
+            int[] rows = span(regions[i * 4 + 1], regions[i * 4 + 3], frameHeight);
+            int width = columns[1] - columns[0];
+            int height = rows[1] - rows[0];
+            placements[i * 6] = columns[0];
+            placements[i * 6 + 1] = rows[0];
+            placements[i * 6 + 2] = width;
+            placements[i * 6 + 3] = height;
+            placements[i * 6 + 4] = 0;
+            placements[i * 6 + 5] = canvasY;
+            canvasWidth = Math.max(canvasWidth, width);
+            canvasHeight = canvasY + height;
+            canvasY = (canvasHeight + CANVAS_ALIGN - 1) / CANVAS_ALIGN * CANVAS_ALIGN;
+        }
+        return new RegionLayout(frameWidth, frameHeight, canvasWidth, canvasHeight, placements);
+    }
+
+    // First and last-plus-one pixel of a region along one axis
+    private static int[] span(double start, double length, int size) {
+        int limit = size / ALIGN * ALIGN;
+        int first = Math.min(limit, (int) Math.floor(start * size / ALIGN) * ALIGN);
+        int end = Math.min(limit, (int) Math.ceil((start + length) * size / ALIGN) * ALIGN);
+        if (end - first < MIN_SIZE) {
+            end = Math.min(limit, first + MIN_SIZE);
+            first = Math.max(0, end - MIN_SIZE);
+        }
+        return new int[] { first, end };
+    }
+
+    public boolean isWholeFrame() {
+        return placements.length == 0;
+    }
+
+    public int regionCount() {
+        return placements.length / 6;
+    }
+
+    // Frame pixels that go through edge detection per frame
+    public long area() {
+        if (isWholeFrame()) {
+            return (long) frameWidth * frameHeight;
+        }
+        long area = 0;
+        for (int i = 0; i < placements.length; i += 6) {
+            area += (long) placements[i + 2] * placements[i + 3];
+        }
+        return area;
+    }
+
+    // Six ints per region, in the order the native pipeline takes them:
+    // x, y, width, height in the frame, then canvas x and y
+    public int[] toArray() {
+        return placements.clone();
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("frameWidth", frameWidth);
+            json.put("frameHeight", frameHeight);
+            json.put("canvasWidth", canvasWidth);
+            json.put("canvasHeight", canvasHeight);
+            JSONArray regions = new JSONArray();
+            for (int i = 0; i < placements.length; i += 6) {
+                regions.put(new JSONObject()
+                        .put("x", placements[i])
+                        .put("y", placements[i + 1])
+                        .put("width", placements[i + 2])
+                        .put("height", placements[i + 3])
+                        .put("canvasX", placements[i + 4])
+                        .put("canvasY", placements[i + 5]));
+            }
+            json.put("regions", regions);
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return isWholeFrame() ? "whole " + frameWidth + "x" + frameHeight + " frame"
+                : regionCount() + " regions of a " + frameWidth + "x" + frameHeight + " frame on a "
+                        + canvasWidth + "x" + canvasHeight + " canvas";
+    }
+}
@@ -0,0 +1,113 @@
+package com.edgedetector.protocol;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// What a viewer subscribes to: the edge mask shrunk by `scale`, at most
+// `maxFps` frames per second (0 sends every frame), keyframes in `codec`.
+// Viewers with equal profiles share one stream, encoded once per frame.
+//
+// Viewers subscribe with a JSON control message; every field is optional
+// and falls back to the preset, or to the server's default profile:
+//
+//   {"type":"subscribe","profile":{"preset":"cellular","scale":2,"maxFps":10,"codec":"rle"}}
+//
+// The server answers {"type":"profile","data":{...}} with the profile in
+// effect, or {"type":"error","data":{"message":...}} and keeps the old one.
+// The mask is binary and both codecs are lossless, so scale and rate are
+// the only quality knobs.
+public final class StreamProfile {
+    public static final int MAX_SCALE = 8;
+    public static final int MAX_FPS = 60;
+
+    public final int scale;
+    public final int maxFps;
+    public final int codec;
+
+    public StreamProfile(int scale, int maxFps, int codec) {
+        if (scale < 1 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("scale must be 1-" + MAX_SCALE + ": " + scale);
+        }
+        if (maxFps < 0 || maxFps > MAX_FPS) {
+            throw new IllegalArgumentException("maxFps must be 0-" + MAX_FPS + ": " + maxFps);
+        }
+        if (codec != FrameMessage.CODEC_RLE_1BPP && codec != FrameMessage.CODEC_PNG) {
+            throw new IllegalArgumentException("Unsupported codec: " + codec);
+        }
+        this.scale = scale;
+        this.maxFps = maxFps;
+        this.codec = codec;
+    }
+
+    // Named starting points: "full" is the server default, "cellular" halves
+    // the resolution at 10 fps, "thumbnail" quarters it at 5 fps
+    public static StreamProfile preset(String name, StreamProfile full) {
+        switch (name) {
+            case "full":
+                return full;
+            case "cellular":
+                return new StreamProfile(2, 10, full.codec);
+            case "thumbnail":
+                return new StreamProfile(4, 5, full.codec);
+            default:
+                throw new IllegalArgumentException("Unknown profile preset: " + name);
+        }
+    }
+
+    // Parses the "profile" object of a subscribe message
+    public static StreamProfile fromJson(JSONObject json, StreamProfile full) {
+        StreamProfile base = json.has("preset") ? preset(json.optString("preset"), full) : full;
+        int codec = base.codec;
+        if (json.has("codec")) {
+            codec = codecId(json.optString("codec"));
+        }
+        return new StreamProfile(json.optInt("scale", base.scale), json.optInt("maxFps", base.maxFps), codec);
+    }
+
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("scale", scale);
+            json.put("maxFps", maxFps);
+            json.put("codec", codecName(codec));
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers
+            throw new IllegalStateException(e);
+        }
+        return json;
+    }
+
+    private static int codecId(String name) {
+        switch (name) {
+            case "rle":
+                return FrameMessage.CODEC_RLE_1BPP;
+            case "png":
+                return FrameMessage.CODEC_PNG;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name);
+        }
+    }
+
+    private static String codecName(int codec) {
+        return codec == FrameMessage.CODEC_PNG ? "png" : "rle";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof StreamProfile)) {
+            return false;
+        }
+        StreamProfile profile = (StreamProfile) other;
+        return scale == profile.scale && maxFps == profile.maxFps && codec == profile.codec;
+    }
+
+    @Override
+    public int hashCode() {
+        return (scale * 31 + maxFps) * 31 + codec;
+    }
+
+    @Override
+    public String toString() {
+        return scale + "x/" + (maxFps == 0 ? "all" : maxFps + "fps") + "/" + codecName(codec);
+    }
+}
@@ -0,0 +1,68 @@
+package com.edgedetector.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+// Reads headers at the offsets web/src/app.ts decodes them from
+public class FrameMessageTest {
+    @Test
+    public void headerRoundTrip() {
+        byte[] payload = { 9, 1, 2, 3, 4, 9 };
+        ByteBuffer message = FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_RLE_1BPP, 42, 123_456_789_012L, 640, 480, payload, 1, 4);
+        assertEquals(0, message.position());
+        assertEquals(FrameMessage.HEADER_SIZE + 4, message.remaining());
+        assertEquals(FrameMessage.VERSION, message.get(0));
+        assertEquals(FrameMessage.TYPE_FRAME, message.get(1));
+        assertEquals(FrameMessage.PIXEL_FORMAT_GRAY8, message.get(2));
+        assertEquals(FrameMessage.CODEC_RLE_1BPP, message.get(3));
+        assertEquals(42, message.getInt(4));
+        assertEquals(123_456_789_012L, message.getLong(8));
+        assertEquals(640, message.getShort(16) & 0xFFFF);
+        assertEquals(480, message.getShort(18) & 0xFFFF);
+        assertEquals(4, message.getInt(20));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, message.get(FrameMessage.HEADER_SIZE + i));
+        }
+    }
+
+    @Test
+    public void sequenceAndSizesAreUnsigned() {
+        ByteBuffer message = FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_RAW, 0xFFFF_FFFFL, 0, 0xFFFF, 40_000, new byte[0], 0, 0);
+        assertEquals(0xFFFF_FFFFL, message.getInt(4) & 0xFFFF_FFFFL);
+        assertEquals(0xFFFF, message.getShort(16) & 0xFFFF);
+        assertEquals(40_000, message.getShort(18) & 0xFFFF);
+        // The sequence number wraps
+        message = FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_RAW, 0x1_0000_0005L, 0, 1, 1, new byte[0], 0, 0);
+        assertEquals(5, message.getInt(4));
+    }
+
+    @Test
+    public void encodesFromBuffer() {
+        ByteBuffer payload = ByteBuffer.allocate(16);
+        payload.putShort((short) 32).putShort((short) 3).put(new byte[4]);
+        payload.flip();
+        ByteBuffer message = FrameMessage.encode(FrameMessage.TYPE_DELTA, FrameMessage.PIXEL_FORMAT_GRAY8,
+                FrameMessage.CODEC_TILES_1BPP, 7, 0, 320, 240, payload);
+        assertEquals(0, payload.remaining());
+        assertEquals(8, message.getInt(20));
+        assertEquals(FrameMessage.HEADER_SIZE + 8, message.remaining());
+        assertEquals(3, FrameMessage.deltaTileCount(message));
+    }
+
+    @Test
+    public void rejectsOversizedFrames() {
+        try {
+            FrameMessage.encode(FrameMessage.TYPE_FRAME, FrameMessage.PIXEL_FORMAT_GRAY8, FrameMessage.CODEC_RAW,
+                    0, 0, 0x10000, 1, new byte[0], 0, 0);
+            fail("Accepted a 65536 px wide frame");
+        } catch (IllegalArgumentException expected) {
+            // Width and height are 16-bit fields
+        }
+    }
+}
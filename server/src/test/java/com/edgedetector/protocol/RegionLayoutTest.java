@@ -0,0 +1,114 @@
+package com.edgedetector.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class RegionLayoutTest {
+    private static double[] parse(String regions) {
+        return RegionLayout.parseRegions(new JSONObject("{\"type\":\"regions\",\"regions\":" + regions + "}"));
+    }
+
+    private static void assertRejected(String regions) {
+        try {
+            parse(regions);
+            fail("Accepted " + regions);
+        } catch (IllegalArgumentException expected) {
+            // Reported to the viewer as an error
+        }
+    }
+
+    @Test
+    public void parsesFractionsInOrder() {
+        double[] regions = parse("[{\"x\":0.1,\"y\":0.6,\"width\":0.8,\"height\":0.25},"
+                + "{\"x\":0,\"y\":0,\"width\":1,\"height\":0.5}]");
+        assertArrayEquals(new double[] { 0.1, 0.6, 0.8, 0.25, 0, 0, 1, 0.5 }, regions, 0);
+    }
+
+    @Test
+    public void emptyListIsWholeFrame() {
+        assertEquals(0, parse("[]").length);
+        assertTrue(RegionLayout.place(parse("[]"), 640, 480).isWholeFrame());
+    }
+
+    @Test
+    public void rejectsBadRegions() {
+        assertRejected("{}");
+        assertRejected("[1]");
+        assertRejected("[{\"x\":0.1,\"y\":0.1,\"width\":0.5}]");
+        assertRejected("[{\"x\":-0.1,\"y\":0,\"width\":0.5,\"height\":0.5}]");
+        assertRejected("[{\"x\":0.6,\"y\":0,\"width\":0.5,\"height\":0.5}]");
+        assertRejected("[{\"x\":0,\"y\":0,\"width\":0,\"height\":0.5}]");
+        StringBuilder tooMany = new StringBuilder("[");
+        for (int i = 0; i <= RegionLayout.MAX_REGIONS; i++) {
+            tooMany.append(i == 0 ? "" : ",").append("{\"x\":0,\"y\":0,\"width\":0.5,\"height\":0.5}");
+        }
+        assertRejected(tooMany.append(']').toString());
+    }
+
+    @Test
+    public void wholeFrameLayout() {
+        RegionLayout layout = RegionLayout.place(null, 640, 480);
+        assertTrue(layout.isWholeFrame());
+        assertEquals(640, layout.canvasWidth);
+        assertEquals(480, layout.canvasHeight);
+        assertEquals(640L * 480, layout.area());
+        assertEquals(0, layout.toArray().length);
+    }
+
+    @Test
+    public void growsOutwardsToAlignment() {
+        // 0.1 * 642 = 64.2 and 0.9 * 642 = 577.8
+        RegionLayout layout = RegionLayout.place(new double[] { 0.1, 0.5, 0.8, 0.25 }, 642, 480);
+        assertArrayEquals(new int[] { 64, 240, 516, 120, 0, 0 }, layout.toArray());
+        assertEquals(516, layout.canvasWidth);
+        assertEquals(120, layout.canvasHeight);
+    }
+
+    @Test
+    public void clampsSpanAtFrameEdge() {
+        // Neither size is a multiple of ALIGN; regions stop at the last whole
+        // block and keep MIN_SIZE by growing back into the frame
+        RegionLayout layout = RegionLayout.place(new double[] { 0.99, 0.99, 0.01, 0.01 }, 642, 482);
+        assertArrayEquals(new int[] { 624, 464, 16, 16, 0, 0 }, layout.toArray());
+        layout = RegionLayout.place(new double[] { 0.5, 0, 0.5, 1 }, 642, 482);
+        assertArrayEquals(new int[] { 320, 0, 320, 480, 0, 0 }, layout.toArray());
+    }
+
+    @Test
+    public void growsTinyRegionsToMinimumSize() {
+        RegionLayout layout = RegionLayout.place(new double[] { 0, 0, 0.001, 0.001 }, 640, 480);
+        assertArrayEquals(new int[] { 0, 0, 16, 16, 0, 0 }, layout.toArray());
+    }
+
+    @Test
+    public void stacksRegionsOnAlignedCanvasRows() {
+        RegionLayout layout = RegionLayout.place(
+                new double[] { 0, 0, 0.5, 0.25, 0.5, 0.5, 0.25, 0.125 }, 640, 480);
+        int[] placements = layout.toArray();
+        assertEquals(2, layout.regionCount());
+        assertArrayEquals(new int[] { 0, 0, 320, 120, 0, 0, 320, 240, 160, 60, 0, 128 }, placements);
+        assertEquals(0, placements[11] % RegionLayout.CANVAS_ALIGN);
+        assertEquals(320, layout.canvasWidth);
+        assertEquals(188, layout.canvasHeight);
+        assertEquals(320L * 120 + 160 * 60, layout.area());
+    }
+
+    @Test
+    public void describesPlacementsInJson() {
+        RegionLayout layout = RegionLayout.place(new double[] { 0.1, 0.6, 0.8, 0.25 }, 640, 480);
+        JSONObject json = layout.toJson();
+        assertEquals(640, json.getInt("frameWidth"));
+        assertEquals(layout.canvasHeight, json.getInt("canvasHeight"));
+        JSONObject region = json.getJSONArray("regions").getJSONObject(0);
+        assertEquals(64, region.getInt("x"));
+        assertEquals(288, region.getInt("y"));
+        assertEquals(512, region.getInt("width"));
+        assertEquals(120, region.getInt("height"));
+        assertEquals(0, region.getInt("canvasY"));
+    }
+}
@@ -0,0 +1,63 @@
+package com.edgedetector.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class StreamProfileTest {
+    private static final StreamProfile FULL = new StreamProfile(1, 0, FrameMessage.CODEC_RLE_1BPP);
+
+    private static StreamProfile parse(String profile) {
+        return StreamProfile.fromJson(new JSONObject(profile), FULL);
+    }
+
+    private static void assertRejected(String profile) {
+        try {
+            parse(profile);
+            fail("Accepted " + profile);
+        } catch (IllegalArgumentException expected) {
+            // The viewer keeps its old profile
+        }
+    }
+
+    @Test
+    public void emptyProfileIsServerDefault() {
+        assertEquals(FULL, parse("{}"));
+    }
+
+    @Test
+    public void presets() {
+        assertSame(FULL, StreamProfile.preset("full", FULL));
+        assertEquals(new StreamProfile(2, 10, FrameMessage.CODEC_RLE_1BPP), parse("{\"preset\":\"cellular\"}"));
+        assertEquals(new StreamProfile(4, 5, FrameMessage.CODEC_RLE_1BPP), parse("{\"preset\":\"thumbnail\"}"));
+    }
+
+    @Test
+    public void fieldsOverridePreset() {
+        assertEquals(new StreamProfile(2, 15, FrameMessage.CODEC_PNG),
+                parse("{\"preset\":\"cellular\",\"maxFps\":15,\"codec\":\"png\"}"));
+        assertEquals(new StreamProfile(8, 0, FrameMessage.CODEC_RLE_1BPP), parse("{\"scale\":8}"));
+    }
+
+    @Test
+    public void rejectsOutOfRangeValues() {
+        assertRejected("{\"scale\":0}");
+        assertRejected("{\"scale\":" + (StreamProfile.MAX_SCALE + 1) + "}");
+        assertRejected("{\"maxFps\":-1}");
+        assertRejected("{\"maxFps\":" + (StreamProfile.MAX_FPS + 1) + "}");
+        assertRejected("{\"codec\":\"jpeg\"}");
+        assertRejected("{\"preset\":\"hd\"}");
+    }
+
+    @Test
+    public void jsonRoundTrip() {
+        StreamProfile profile = new StreamProfile(4, 12, FrameMessage.CODEC_PNG);
+        JSONObject json = profile.toJson();
+        assertEquals("png", json.getString("codec"));
+        assertEquals(profile, StreamProfile.fromJson(json, FULL));
+        assertEquals(profile.hashCode(), StreamProfile.fromJson(json, FULL).hashCode());
+    }
+}
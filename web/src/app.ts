@@ -8,6 +8,119 @@ interface FrameStats {
     connectionQuality: string;
 }
 
+// Binary frame messages: a 24-byte big-endian header followed by the payload.
+// Mirrors com.edgedetector.protocol.FrameMessage on the device.
+const FRAME_PROTOCOL_VERSION = 1;
+const FRAME_HEADER_SIZE = 24;
+const MESSAGE_TYPE_FRAME = 1;
+const MESSAGE_TYPE_DELTA = 2;
+const PIXEL_FORMAT_GRAY8 = 1;
+const CODEC_RAW = 0;
+const CODEC_PNG = 1;
+// Delta payload: u16 tile size, u16 tile count, then per tile u16 column,
+// u16 row and the tile's pixels at one bit each, row-major, MSB first
+const CODEC_TILES_1BPP = 2;
+// Whole frame packed like the tiles, then run-length coded: repeated
+// (varint zero bytes, varint literal bytes, literal bytes)
+const CODEC_RLE_1BPP = 3;
+
+interface FrameHeader {
+    version: number;
+    type: number;
+    pixelFormat: number;
+    codec: number;
+    seq: number;
+    // Sensor timestamp in nanoseconds; only meaningful relative to other frames
+    timestamp: bigint;
+    width: number;
+    height: number;
+    length: number;
+}
+
+function parseFrameHeader(view: DataView): FrameHeader | null {
+    if (view.byteLength < FRAME_HEADER_SIZE) {
+        return null;
+    }
+    return {
+        version: view.getUint8(0),
+        type: view.getUint8(1),
+        pixelFormat: view.getUint8(2),
+        codec: view.getUint8(3),
+        seq: view.getUint32(4),
+        timestamp: view.getBigInt64(8),
+        width: view.getUint16(16),
+        height: view.getUint16(18),
+        length: view.getUint32(20)
+    };
+}
+
+// Reads an unsigned LEB128 varint at position[0], advancing it; -1 when truncated
+function readVarint(data: Uint8Array, position: number[]): number {
+    let value = 0;
+    for (let shift = 0; shift < 35; shift += 7) {
+        if (position[0] >= data.length) {
+            return -1;
+        }
+        const byte = data[position[0]++];
+        value += (byte & 0x7f) * 2 ** shift;
+        if ((byte & 0x80) === 0) {
+            return value;
+        }
+    }
+    return -1;
+}
+
+// Decodes a CODEC_RLE_1BPP payload into one byte (0 or 255) per pixel, or
+// null when it is malformed. Mirrors rleDecode/unpackMask in jni/mask_codec.cpp.
+function decodeRleMask(data: Uint8Array, width: number, height: number): Uint8Array | null {
+    const pixels = width * height;
+    const packedLength = Math.ceil(pixels / 8);
+    const gray = new Uint8Array(pixels);
+    const position = [0];
+    let filled = 0;
+    while (filled < packedLength) {
+        const zeros = readVarint(data, position);
+        const literal = readVarint(data, position);
+        if (zeros < 0 || literal < 0 || filled + zeros + literal > packedLength ||
+            position[0] + literal > data.length) {
+            return null;
+        }
+        // Zero bytes are already zero pixels
+        filled += zeros;
+        for (let i = 0; i < literal; i++, filled++) {
+            const byte = data[position[0]++];
+            if (byte === 0) {
+                continue;
+            }
+            const base = filled * 8;
+            for (let bit = 0; bit < 8 && base + bit < pixels; bit++) {
+                if (byte & (0x80 >> bit)) {
+                    gray[base + bit] = 255;
+                }
+            }
+        }
+    }
+    return position[0] === data.length ? gray : null;
+}
+
+// Stream the viewer subscribes to; fields left out take the preset's or the
+// server default's value (see com.edgedetector.protocol.StreamProfile)
+interface StreamProfileRequest {
+    preset?: 'full' | 'cellular' | 'thumbnail';
+    scale?: number;
+    maxFps?: number;
+    codec?: 'rle' | 'png';
+}
+
+// Part of the frame the app processes, as fractions of it (see
+// com.edgedetector.protocol.RegionLayout)
+interface RegionRequest {
+    x: number;
+    y: number;
+    width: number;
+    height: number;
+}
+
 interface ConnectionConfig {
     url: string;
     autoReconnect: boolean;
@@ -20,6 +133,7 @@ class EdgeDetectorViewer {
     private loadingMessage!: HTMLDivElement;
     private refreshBtn!: HTMLButtonElement;
     private toggleModeBtn!: HTMLButtonElement;
+    private dumpBtn!: HTMLButtonElement;
     private fpsValue!: HTMLDivElement;
     private resolutionValue!: HTMLDivElement;
     private modeValue!: HTMLDivElement;
@@ -36,6 +150,16 @@ class EdgeDetectorViewer {
     private isConnected: boolean = false;
     private lastFrameTime: number = 0;
     private frameTimeouts: number[] = [];
+    private frameCanvas!: HTMLCanvasElement;
+    // The last complete frame, one byte per pixel, that deltas apply to
+    private frameGray: Uint8Array | null = null;
+    private frameImageData: ImageData | null = null;
+    private frameSynced: boolean = false;
+    private keyframeRequested: boolean = false;
+    // Frame messages are handled one at a time, in arrival order, even
+    // while a keyframe is still decoding
+    private frameQueue: Promise<void> = Promise.resolve();
+    private streamProfile: StreamProfileRequest | null = null;
 
     // Sample base64 edge-detected image (small demo image)
     private sampleEdgeFrame = 'data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAAoAAAAHgCAYAAAA10dzkAAAACXBIWXMAAAsTAAALEwEAmpwYAAAKT2lDQ1BQaG90b3Nob3AgSUNDIHByb2ZpbGUAAHjanVNnVFPpFj333vRCS4iAlEtvUhUIIFJCi4AUkSYqIQkQSoghodkVUcERRUUEG8igiAOOjoCMFVEsDIoK2AfkIaKOg6OIisr74Xuja9a89+bN/rXXPues852zzwfACAyWSDNRNYAMqUIeEeCDx8TG4eQuQIEKJHAAEAizZCFz/SMBAPh+PDwrIsAHvgABeNMLCADATZvAMByH/w/qQplcAYCEAcB0kThLCIAUAEB6jkKmAEBGAYCdmCZTAKAEAGDLY2LjAFAtAGAnf+bTAICd+Jl7AQBblCEVAaCRACATZYhEAGg7AKzPVopFAFgwABRmS8Q5ANgtADBJV2ZIALC3AMDOEAuyAAgMADBRiIUpAAR7AGDIIyN4AISZABRG8lc88SuuEOcqAAB4mbI8uSQ5RYFbCC1xB1dXLh4ozkkXKxQ2YQJhmkAuwnmZGTKBNA/g88wAAKCRFRHgg/P9eM4Ors7ONo62Dl8t6r8G/yJiYuP+5c+rcEAAAOF0ftH+LC+zGoA7BoBt/qIl7gRoXgugdfeLZrIPQLUAoOnaV/Nw+H48PEWhkLnZ2eXk5NhKxEJbYcpXff5nwl/AV/1s+X48/Pf14L7iJIEyXYFHBPjgwsz0TKUcz5IJhGLc5o9H/LcL//wd0yLESWK5WCoU41EScY5EmozzMqUiiUKSKcUl0v9k4t8s+wM+3zUAsGo+AXuRLahdYwP2SycQWHTA4vcAAPK7b8HUKAgDgGiD4c93/+8//UegJQCAZkmScQAAXkQkLlTKsz/HCAAARKCBKrBBG/TBGCzABhzBBdzBC/xgNoRCJMTCQhBCCmSAHHJgKayCQiiGzbAdKmAv1EAdNMBRaIaTcA4uwlW4Dj1wD/phCJ7BKLyBCQRByAgTYSHaiAFiilgjjggXmYX4IcFIBBKLJCDJiBRRIkuRNUgxUopUIFVIHfI9cgI5h1xGupE7yAAygvyGvEcxlIGyUT3UDLVDuag3GoRGogvQZHQxmo8WoJvQcrQaPYw2oefQq2gP2o8+Q8cwwOgYBzPEbDAuxsNCsTgsCZNjy7EirAyrxhqwVqwDu4n1Y8+xdwQSgUXACTYEd0IgYR5BSFhMWE7YSKggHCQ0EdoJNwkDhFHCJyKTqEu0JroR+cQYYjIxh1hILCPWEo8TLxB7iEPENyQSiUMyJ7mQAkmxpFTSEtJG0m5SI+ksqZs0SBojk8naZGuyBzmULCAryIXkneTD5DPkG+Qh8lsKnWJAcaT4U+IoUspqShnlEOU05QZlmDJBVaOaUt2ooVQRNY9aQq2htlKvUYeoEzR1mjnNgxZJS6WtopXTGmgXaPdpr+h0uhHdlR5Ol9BX0svpR+iX6AP0dwwNhhWDx4hnKBmbGAcYZxl3GK+YTKYZ04sZx1QwNzHrmOeZD5lvVVgqtip8FZHKCpVKlSaVGyovVKmqpqreqgtV81XLVI+pXlN9rkZVM1PjqQnUlqtVqp1Q61MbU2epO6iHqmeob1Q/pH5Z/YkGWcNMw09DpFGgsV/jvMYgC2MZs3gsIWsNq4Z1gTXEJrHN2Xx2KruY/R27iz2qqaE5QzNKM1ezUvOUZj8H45hx+Jx0TgnnKKeX836K3hTvKeIpG6Y0TLkxZVxrqpaXllirSKtRq0frvTau7aedpr1Fu1n7gQ5Bx0onXCdHZ4/OBZ3nU9lT3acKpxZNPTr1ri6qa6UbobtEd79up+6Ynr5egJ5Mb6feeb3n+hx9L/1U/W36p/VHDFgGswwkBtsMzhg8xTVxbzwdL8fb8VFDXcNAQ6VhlWGX4YSRudE8o9VGjUYPjGnGXOMk423GbcajJgYmISZLTepN7ppSTbmmKaY7TDtMx83MzaLN1pk1mz0x1zLnm+eb15vft2BaeFostqi2uGVJsuRaplnutrxuhVo5WaVYVVpds0atna0l1rutu6cRp7lOk06rntZnw7Dxtsm2qbcZsOXYBtuutm22fWFnYhdnt8Wuw+6TvZN9un2N/T0HDYfZDqsdWh1+c7RyFDpWOt6azpzuP33F9JbpL2dYzxDP2DPjthPLKcRpnVOb00dnF2e5c4PziIuJS4LLLpc+Lpsbxt3IveRKdPVxXeF60vWdm7Obwu2o26/uNu5p7ofcn8w0nymeWTNz0MPIQ+BR5dE/C5+VMGvfrH5PQ0+BZ7XnIy9jL5FXrdewt6V3qvdh7xc+9j5yn+M+4zw33jLeWV/MN8C3yLfLT8Nvnl+F30N/I/9k/3r/0QCngCUBZwOJgUGBWwL7+Hp8Ib+OPzrbZfay2e1BjKC5QRVBj4KtguXBrSFoyOyQrSH355jOkc5pDoVQfujW0Adh5mGLw34MJ4WHhVeGP45wiFga0TGXNXfR3ENz30T6RJZE3ptnMU85ry1KNSo+qi5qPNo3ujS6P8YuZlnM1VidWElsSxw5LiquNm5svt/87fOH4p3iC+N7F5gvyF1weaHOwvSFpxapLhIsOpZATIhOOJTwQRAqqBaMJfITdyWOCnnCHcJnIi/RNtGI2ENcKh5O8kgqTXqS7JG8NXkkxTOlLOW5hCepkLxMDUzdmzqeFpp2IG0yPTq9MYOSkZBxQqohTZO2Z+pn5mZ2y6xlhbL+xW6Lty8elQfJa7OQrAVZLQq2QqboVFoo1yoHsmdlV2a/zYnKOZarnivN7cyzytuQN5zvn//tEsIS4ZK2pYZLVy0dWOa9rGo5sjxxedsK4xUFK4ZWBqw8uIq2Km3VT6vtV5eufr0mek1rgV7ByoLBtQFr6wtVCuWFfevc1+1dT1gvWd+1YfqGnRs+FYmKrhTbF5cVf9go3HjlG4dvyr+Z3JS0qavEuWTPZtJm6ebeLZ5bDpaql+aXDm4N2dq0Dd9WtO319kXbL5fNKNu7g7ZDuaO/PLi8ZafJzs07P1SkVPRU+lQ27tLdtWHX+G7R7ht7vPY07NXbW7z3/T7JvttVAVVN1WbVZftJ+7P3P66Jqun4lvttXa1ObXHtxwPSA/0HIw6217nU1R3SPVRSj9Yr60cOxx++/p3vdy0NNg1VjZzG4iNwRHnk6fcJ3/ceDTradox7rOEH0x92HWcdL2pCmvKaRptTmvtbYlu6T8w+0dbq3nr8R9sfD5w0PFl5SvNUyWna6YLTk2fyz4ydlZ19fi753GDborZ752PO32oPb++6EHTh0kX/i+c7vDvOXPK4dPKy2+UTV7hXmq86X23qdOo8/pPTT8e7nLuarrlca7nuer21e2b36RueN87d9L158Rb/1tWeOT3dvfN6b/fF9/XfFt1+cif9zsu72Xcn7q28T7xf9EDtQdlD3YfVP1v+3Njv3H9qwHeg89HcR/cGhYPP/pH1jw9DBY+Zj8uGDYbrnjg+OTniP3L96fynQ89kzyaeF/6i/suuFxYvfvjV69fO0ZjRoZfyl5O/bXyl/erA6xmv28bCxh6+yXgzMV70VvvtwXfcdx3vo98PT+R8IH8o/2j5sfVT0Kf7kxmTk/8EA5jz/GMzLdsAAAAgY0hSTQAAeiUAAICDAAD5/wAAgOkAAHUwAADqYAAAOpgAABdvkl/FRgAACtFJREFUeNrs3T9v00oYxeGfAYkFJKBhQRTQkD+AhH9K0oGQ0tHRAaFAR0MLFFBBTwMNHR1IFC1pQSJpo+hNsT4TxyEJkOxZa+y599HbJnYmbLxZ55x3ZmeuX79+CQAAaJdb/AQAABCAAABAAQgAABCAAABAAQgAABCAAABAAQgAABCAAABAAQgAgCffvn379OjRI3769KnT7/vLL78sLS09fvx4eXn5zp07/DgAAEZJq9Xq9/uNRqPVanX9rReLxVKpdOXKFQQgAADjgdGhEqBZiY+Dg4N3795tb2/v7e3Nzc0tLy+fOXPmy5cvBwcH9Xq90Wgw3gYAYFR5z4ej0Wh0e3s7DEOvjOdyuWKxOOGXHBwcvHnz5sOHD1EUhWGYz+c/f/7c7XZFZGVlJZfLLS4uWgh+//7906dPOzs7GxsbnBQAAKOk0+l0u93M5+zfvz81NTU3N7ewsODfmpqampuba7fbR0dH3W632WzGdJBrCBaLxaurq0tLS6urq9euXTu5xeC1tbVr164B9BzIrWAIIw/fMrDYGJwfrBONl7djWJa3Av2xR/8eVOlnVqvVwsNZKBSu3bx27+HDjfX1raysLCwsnCw2K5VKrVa7k8+nOxFyAG4XFxf7xeLGzZu+LPnmzZt8Pj8xMeE/z+VylUrF7NVqta2tLfP/zMxMJpMJmxe+vHhxeHioIhh7o1vGIBJl0PJrqLwPOtaDHV8Kx/hMZNbY0tJSq9Wal5b+iKN5VL+46Kqgqyi+i0itVov2fyKfz2ez2TNnzsRyXuz5LqfXpyuCOzI+/36/f6hPdJHj72yJ1j5vy8jXZzuzaJ+JfKDddhEUyNKePX9+95AjAAEZo8jfOIlDI3d1dfXuXqP9iqVSaWsrTCaJrq4ePXrUbDZbgcb6+vrKysre3l6j0Th0VfCy9uN3u91go0F3Yl8yDRbE/vNWN2uXEZG/8Zjpr8xO6Ik1dP8Y7iRWDwyNsaFGaLFV+2k5ODgQkYODA1dvOru7uwcHB/Y7A8XdSNgpF9ysXSa1V4J9Jmq1Wlc5fr0wSPxoP8YPKtL3qL9/j9eJ7QDbCdXGsN1i+Hm7VrvTIQ3CIMGgPnZMh8P6dNVqtUG/RD7Q7vBtsBNrsLi+o/HqT5RSFkI7L+/Z+aE8OhxWdD1p/WLTlGD9+vXPnz+nLYT2+j1pu9k1eZkFfbPZdOGy6irJAKXdycVjKYT2uF7aL72jS1ypEBb8VIl8dn8QlUqlydTMtFqttHO4vPLDarUabYvjONQ/hgHNJNpPp4Q5TnNjvOlg0B+E/v6bLGlmR39k2dWCF68R9AdhGhXCjNKlg6Y+c2xDmHTWwciHqn0AAKP1a9i1x5rPvIoV38OlkSfuEUgAIgB/D7KVHWsGC9IYZD5z6gd7ExCAfx6YOOvHfCa0g/2B5tn4AUu/v7KbLJ5XvOTQoQOEgQBEAP5+IJlPRDNnOOOelP2u+6H/mGJzYPLzLsC8TgS1+UQKxObtVFqOgJBEi9K4Fht/kcCPGsxWWdEjYpJdtPGp7YMjSwjJnc0fOIKkKnkOkM+PQQQgAvAPJ3bJpvZJGqNjv3/ffZfPl8tkMrkf7f9BhyxKbxBQfupGZjqt/qSwOSJfLpf7Ks8sWm2WJtpJlM1m2+12FEWxNUXZO5vNZtJtFPEqj93/7Hvx1Uy+M8bNdLRF+42YRHnU/ZKNnxvOzfYhZMafyPcMEjNkPKfAJTOBCMCRJfBhm1NijGnMv2hg4+/9kE3/AQAAKfGMoG1zHbdJxe/zSPNNh/9SH/ySbhOpFMLLo/n7cLTbAoC/gEL4R54QhQAwvgGIAghjEDgCEIAANAMQxmBwBCAAgQCwEtj+xpPe+LWdC5P4vdPctBp0Fl1uAe14zLGDBNj+a/JtE0E7FNpu1e/v31fJSqy9c7QSqxXJN3mz/zCtdW3vJqFxh6xKKJO90uB84v1DdpgIQJ0Aqq8OOxWAI9nC6cMGvdGr3zPL3oWRtL5F26AhbZOGiX3OySzK5G8LuwBsfYUNLmO5LCr2Duj47SfgLwiAL59KXrJ7U8s9aQsqHQKQOwEI7LQOa7TbbP9QnJCtNMOJvLtg1M6sGOkBAAgAAATgyJqVw+A4AhABCAAgABGAAAACEAGIAAQAEIAIQAQgAIAARABCAAgAAATgeP4aTnMTa9CtKum0/OoCNq/FbWFJ/uO7v7lbfb/B3i2kfFfJOW1+/8luTjqO1mNfN2n/AEQqpC2EaYvOkT4WBODU1JTKl5U3JSI5AACNQOEOwL1v7Dvu0KHrfZ29L5xgm6jdZAIA0AeAOGEb1N9dNgzpSGqALLPnhP5zRFE0CULy7SKhb4V5Xr9TePE0bKJXrVa9SjjOdP4CVABVk3Y5l6vu+dKLPKUZlPZBu5i0l9O8yOj8++/vP+1+45/PfGbNiPy5r9tfaZxSaQyZJ/k5ODBSdmOFO+0Zm3I4EoCYCQcgAEcBayoQgHAEQAACABCAAIAABAAgABGAAIDReVJPZiGV4i9LJO8fQOPJQCEAR5fhAhGAALYLQQACfxQAgQhAAJuGACAAYZMQgAC2DQEIAEAAAgAAAOODJ4GhEgARAAhAAACwRwAgABGAALYLgQhAAAEIlwgBCCAAATQhAAEEIF59AALgJN6gGdeeFQCAjrw//8P7/w==';
@@ -51,9 +175,11 @@ class EdgeDetectorViewer {
         
         // Initialize DOM elements
         this.frameImage = document.getElementById('frameImage') as HTMLImageElement;
+        this.frameCanvas = document.getElementById('frameCanvas') as HTMLCanvasElement;
         this.loadingMessage = document.getElementById('loadingMessage') as HTMLDivElement;
         this.refreshBtn = document.getElementById('refreshBtn') as HTMLButtonElement;
         this.toggleModeBtn = document.getElementById('toggleModeBtn') as HTMLButtonElement;
+        this.dumpBtn = document.getElementById('dumpBtn') as HTMLButtonElement;
         this.fpsValue = document.getElementById('fpsValue') as HTMLDivElement;
         this.resolutionValue = document.getElementById('resolutionValue') as HTMLDivElement;
         this.modeValue = document.getElementById('modeValue') as HTMLDivElement;
@@ -89,6 +215,10 @@ class EdgeDetectorViewer {
             this.toggleMode();
         });
         
+        this.dumpBtn.addEventListener('click', () => {
+            this.requestDump();
+        });
+        
         // Add manual connection button if it doesn't exist
         this.createManualConnectionButton();
     }
@@ -231,19 +361,33 @@ class EdgeDetectorViewer {
         
         try {
             this.webSocket = new WebSocket(this.connectionConfig.url);
+            // Frames arrive as binary messages; control messages stay JSON text
+            this.webSocket.binaryType = 'arraybuffer';
             
             this.webSocket.onopen = () => {
                 console.log('🔌 Connected to Edge Detector server at', this.connectionConfig.url);
                 this.updateConnectionStatus('Connected', 'online');
                 this.reconnectAttempts = 0;
                 
-                // Request initial frame
-                if (this.webSocket) {
+                // Subscribing starts the stream with a keyframe; otherwise
+                // request the initial frame of the default stream
+                this.frameSynced = false;
+                this.keyframeRequested = false;
+                if (this.streamProfile) {
+                    this.sendSubscribe();
+                } else if (this.webSocket) {
                     this.webSocket.send(JSON.stringify({ type: 'request_frame' }));
                 }
             };
 
             this.webSocket.onmessage = (event) => {
+                if (event.data instanceof ArrayBuffer) {
+                    const data = event.data;
+                    this.frameQueue = this.frameQueue
+                        .then(() => this.handleBinaryFrame(data))
+                        .catch((error) => console.error('Failed to show frame:', error));
+                    return;
+                }
                 try {
                     const message = JSON.parse(event.data);
                     this.handleWebSocketMessage(message);
@@ -276,28 +420,198 @@ class EdgeDetectorViewer {
         }
     }
     
-    private handleWebSocketMessage(message: any): void {
-        const currentTime = Date.now();
+    private async handleBinaryFrame(data: ArrayBuffer): Promise<void> {
+        const header = parseFrameHeader(new DataView(data));
+        if (!header || header.version !== FRAME_PROTOCOL_VERSION) {
+            console.error('Unsupported frame message', header);
+            return;
+        }
+        if (FRAME_HEADER_SIZE + header.length > data.byteLength) {
+            console.error('Truncated frame message:', header.length, 'bytes announced,',
+                data.byteLength - FRAME_HEADER_SIZE, 'received');
+            return;
+        }
+        const payload = new Uint8Array(data, FRAME_HEADER_SIZE, header.length);
+        this.stats.resolution = `${header.width} x ${header.height}`;
+        this.recordFrameArrival();
         
-        switch (message.type) {
-            case 'frame':
-                this.updateFrameFromSource(`data:image/jpeg;base64,${message.data}`);
-                this.updateFrameStats(message.stats || {});
+        switch (header.type) {
+            case MESSAGE_TYPE_FRAME:
+                await this.handleKeyframe(header, data);
                 break;
                 
-            case 'stats':
-                this.updateFrameStats(message.data);
+            case MESSAGE_TYPE_DELTA:
+                this.handleDelta(header, payload);
                 break;
                 
-            case 'status':
-                console.log('Server status:', message.data);
+            default:
+                console.log('Unknown frame message type:', header.type);
+        }
+    }
+    
+    private async handleKeyframe(header: FrameHeader, data: ArrayBuffer): Promise<void> {
+        const payload = new Uint8Array(data, FRAME_HEADER_SIZE, header.length);
+        switch (header.codec) {
+            case CODEC_PNG: {
+                const bitmap = await createImageBitmap(new Blob([payload], { type: 'image/png' }));
+                const context = this.resizeFrameCanvas(bitmap.width, bitmap.height);
+                context.drawImage(bitmap, 0, 0);
+                bitmap.close();
+                // Keep the pixels so later deltas can be applied on top
+                const image = context.getImageData(0, 0, bitmap.width, bitmap.height);
+                const gray = new Uint8Array(bitmap.width * bitmap.height);
+                for (let i = 0, j = 0; i < gray.length; i++, j += 4) {
+                    gray[i] = image.data[j];
+                }
+                this.frameGray = gray;
+                this.frameImageData = image;
+                break;
+            }
+                
+            case CODEC_RAW:
+                if (header.pixelFormat !== PIXEL_FORMAT_GRAY8 || payload.length < header.width * header.height) {
+                    console.error('Unsupported raw frame', header);
+                    return;
+                }
+                this.loadGrayFrame(payload.slice(0, header.width * header.height), header.width, header.height);
+                break;
+                
+            case CODEC_RLE_1BPP: {
+                const gray = decodeRleMask(payload, header.width, header.height);
+                if (!gray) {
+                    console.error('Corrupt run-length frame', header);
+                    return;
+                }
+                this.loadGrayFrame(gray, header.width, header.height);
                 break;
+            }
                 
             default:
-                console.log('Unknown message type:', message.type);
+                console.log('Unknown frame codec:', header.codec);
+                return;
         }
-        
-        // Calculate FPS based on frame reception rate
+        this.frameSynced = true;
+        this.keyframeRequested = false;
+        this.showFrameCanvas();
+    }
+    
+    // Applies the changed tiles to the last frame. A delta only makes sense
+    // on top of the frame before it, so until a keyframe arrives they are
+    // dropped and one is requested.
+    private handleDelta(header: FrameHeader, payload: Uint8Array): void {
+        const gray = this.frameGray;
+        if (!this.frameSynced || !gray || header.codec !== CODEC_TILES_1BPP ||
+            header.width !== this.frameCanvas.width || header.height !== this.frameCanvas.height) {
+            this.requestKeyframe();
+            return;
+        }
+        const view = new DataView(payload.buffer, payload.byteOffset, payload.byteLength);
+        const tileSize = view.getUint16(0);
+        const count = view.getUint16(2);
+        let offset = 4;
+        for (let t = 0; t < count; t++) {
+            const x0 = view.getUint16(offset) * tileSize;
+            const y0 = view.getUint16(offset + 2) * tileSize;
+            offset += 4;
+            const w = Math.min(tileSize, header.width - x0);
+            const h = Math.min(tileSize, header.height - y0);
+            if (w <= 0 || h <= 0 || offset + Math.ceil(w * h / 8) > payload.length) {
+                console.error('Corrupt delta message', header);
+                this.frameSynced = false;
+                this.requestKeyframe();
+                return;
+            }
+            let bit = 0;
+            for (let y = y0; y < y0 + h; y++) {
+                let index = y * header.width + x0;
+                for (let x = 0; x < w; x++, bit++) {
+                    gray[index++] = (payload[offset + (bit >> 3)] & (0x80 >> (bit & 7))) ? 255 : 0;
+                }
+            }
+            offset += Math.ceil(w * h / 8);
+            this.drawGrayRegion(x0, y0, w, h);
+        }
+        this.showFrameCanvas();
+    }
+    
+    private sendSubscribe(): void {
+        if (this.webSocket && this.webSocket.readyState === WebSocket.OPEN) {
+            this.webSocket.send(JSON.stringify({ type: 'subscribe', profile: this.streamProfile || {} }));
+        }
+    }
+    
+    private requestKeyframe(): void {
+        if (this.keyframeRequested || !this.webSocket || this.webSocket.readyState !== WebSocket.OPEN) {
+            return;
+        }
+        this.keyframeRequested = true;
+        this.webSocket.send(JSON.stringify({ type: 'request_keyframe' }));
+    }
+    
+    // Asks the app to save the masks of its last seconds, for a glitch just seen
+    private requestDump(): void {
+        if (!this.webSocket || this.webSocket.readyState !== WebSocket.OPEN) {
+            console.warn('Not connected, nothing to dump');
+            return;
+        }
+        this.webSocket.send(JSON.stringify({ type: 'dump' }));
+    }
+    
+    private loadGrayFrame(gray: Uint8Array, width: number, height: number): void {
+        this.resizeFrameCanvas(width, height);
+        this.frameGray = gray;
+        this.frameImageData = new ImageData(width, height);
+        this.drawGrayRegion(0, 0, width, height);
+    }
+    
+    private resizeFrameCanvas(width: number, height: number): CanvasRenderingContext2D {
+        if (this.frameCanvas.width !== width || this.frameCanvas.height !== height) {
+            this.frameCanvas.width = width;
+            this.frameCanvas.height = height;
+        }
+        const context = this.frameCanvas.getContext('2d');
+        if (!context) {
+            throw new Error('No 2D canvas context');
+        }
+        return context;
+    }
+    
+    // Copies a rectangle of the gray frame to the canvas
+    private drawGrayRegion(x0: number, y0: number, w: number, h: number): void {
+        const gray = this.frameGray;
+        const image = this.frameImageData;
+        const context = this.frameCanvas.getContext('2d');
+        if (!gray || !image || !context) {
+            return;
+        }
+        const rgba = image.data;
+        for (let y = y0; y < y0 + h; y++) {
+            for (let i = y * image.width + x0, end = i + w; i < end; i++) {
+                const value = gray[i];
+                const j = i * 4;
+                rgba[j] = value;
+                rgba[j + 1] = value;
+                rgba[j + 2] = value;
+                rgba[j + 3] = 255;
+            }
+        }
+        context.putImageData(image, 0, 0, x0, y0, w, h);
+    }
+    
+    private showFrameCanvas(): void {
+        if (this.frameCanvas.style.display === 'none') {
+            this.loadingMessage.style.display = 'none';
+            this.frameImage.style.display = 'none';
+            this.frameCanvas.style.display = 'block';
+        }
+        this.stats.lastUpdated = new Date().toLocaleTimeString();
+        this.stats.frameCount++;
+        this.updateStatsDisplay();
+    }
+    
+    // FPS from the frame reception rate
+    private recordFrameArrival(): void {
+        const currentTime = Date.now();
         if (this.lastFrameTime > 0) {
             const timeDiff = currentTime - this.lastFrameTime;
             if (timeDiff > 0) {
@@ -307,6 +621,48 @@ class EdgeDetectorViewer {
         this.lastFrameTime = currentTime;
     }
     
+    private handleWebSocketMessage(message: any): void {
+        switch (message.type) {
+            case 'stats':
+                this.updateFrameStats(message.data);
+                break;
+                
+            case 'status':
+                console.log('Server status:', message.data);
+                break;
+                
+            case 'profile':
+                console.log('Stream profile:', message.data);
+                this.stats.mode = `Edge Detection (1/${message.data.scale}, ` +
+                    `${message.data.maxFps ? message.data.maxFps + ' fps' : 'all frames'}, ${message.data.codec})`;
+                this.updateStatsDisplay();
+                break;
+                
+            case 'layout':
+                // Frames from here on hold only these regions, stacked
+                if (message.data.regions.length > 0) {
+                    console.log(`Edges in ${message.data.regions.length} regions of the ` +
+                        `${message.data.frameWidth}x${message.data.frameHeight} frame, on a ` +
+                        `${message.data.canvasWidth}x${message.data.canvasHeight} canvas:`, message.data.regions);
+                } else {
+                    console.log(`Edges in the whole ${message.data.frameWidth}x${message.data.frameHeight} frame`);
+                }
+                break;
+                
+            case 'dump':
+                console.log(`Saved ${message.data.frames} frames (${message.data.seconds.toFixed(1)} s) ` +
+                    `to ${message.data.path} on the device`);
+                break;
+                
+            case 'error':
+                console.error('Server error:', message.data.message);
+                break;
+                
+            default:
+                console.log('Unknown message type:', message.type);
+        }
+    }
+    
     private updateFrameStats(newStats: Partial<FrameStats>): void {
         this.stats = { ...this.stats, ...newStats };
         this.stats.lastUpdated = new Date().toLocaleTimeString();
@@ -326,8 +682,9 @@ class EdgeDetectorViewer {
         }, delay);
     }
     
-    // Method to update frame from external source (e.g., WebSocket, HTTP endpoint)
-    public updateFrameFromSource(base64Data: string, newStats?: Partial<FrameStats>): void {
+    // Method to update frame from external source (e.g., WebSocket, HTTP endpoint);
+    // takes any image URL, including data: and blob: URLs
+    public updateFrameFromSource(imageUrl: string, newStats?: Partial<FrameStats>): void {
         if (newStats) {
             this.stats = { ...this.stats, ...newStats };
         }
@@ -346,7 +703,7 @@ class EdgeDetectorViewer {
             this.frameImage.style.display = 'none';
         };
         
-        this.frameImage.src = base64Data;
+        this.frameImage.src = imageUrl;
     }
     
     // Public methods for external control
@@ -372,6 +729,22 @@ class EdgeDetectorViewer {
         };
     }
     
+    // Switches to another stream profile, now or on the next connection
+    public setStreamProfile(profile: StreamProfileRequest): void {
+        this.streamProfile = profile;
+        this.sendSubscribe();
+    }
+    
+    // Has the app process and send only these parts of the frame, to every
+    // viewer; an empty list goes back to the whole frame
+    public setRegions(regions: RegionRequest[]): void {
+        if (!this.webSocket || this.webSocket.readyState !== WebSocket.OPEN) {
+            console.warn('Not connected, regions not sent');
+            return;
+        }
+        this.webSocket.send(JSON.stringify({ type: 'regions', regions }));
+    }
+    
     public setAutoReconnect(enabled: boolean): void {
         this.connectionConfig.autoReconnect = enabled;
     }
@@ -399,6 +772,25 @@ document.addEventListener('DOMContentLoaded', () => {
     
     // Handle URL parameters for automatic connection
     const urlParams = new URLSearchParams(window.location.search);
+    // e.g. ?profile=cellular, or ?scale=2&fps=10&codec=png
+    const profile: StreamProfileRequest = {};
+    const preset = urlParams.get('profile');
+    if (preset === 'full' || preset === 'cellular' || preset === 'thumbnail') {
+        profile.preset = preset;
+    }
+    if (urlParams.has('scale')) {
+        profile.scale = Number(urlParams.get('scale'));
+    }
+    if (urlParams.has('fps')) {
+        profile.maxFps = Number(urlParams.get('fps'));
+    }
+    const codec = urlParams.get('codec');
+    if (codec === 'rle' || codec === 'png') {
+        profile.codec = codec;
+    }
+    if (Object.keys(profile).length > 0) {
+        viewer.setStreamProfile(profile);
+    }
     const wsUrl = urlParams.get('ws');
     if (wsUrl) {
         console.log('🔗 Auto-connecting to WebSocket from URL parameter:', wsUrl);
@@ -419,9 +811,13 @@ document.addEventListener('DOMContentLoaded', () => {
     (window as any).connectToEdgeDetector = (url: string) => viewer.connect(url);
     (window as any).disconnectFromEdgeDetector = () => viewer.disconnect();
     (window as any).getEdgeDetectorStatus = () => viewer.getConnectionStatus();
+    (window as any).setEdgeDetectorProfile = (profile: StreamProfileRequest) => viewer.setStreamProfile(profile);
+    (window as any).setEdgeDetectorRegions = (regions: RegionRequest[]) => viewer.setRegions(regions);
     
     console.log('🎨 Edge Detector Web Viewer initialized');
     console.log('� Manual connection: Use connectToEdgeDetector("ws://IP:8765")');
     console.log('🔗 QR code connection: Point camera at QR code from connection page');
     console.log('📊 Connection status: Use getEdgeDetectorStatus()');
+    console.log('📶 Stream profile: Use setEdgeDetectorProfile({ preset: "cellular" }) or ?profile=cellular');
+    console.log('🔲 Regions: Use setEdgeDetectorRegions([{ x: 0.25, y: 0.25, width: 0.5, height: 0.5 }]), [] for all');
 });
\ No newline at end of file